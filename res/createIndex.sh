@@ -3,7 +3,7 @@
 # before you run this script make sure the you have faceted browser vad activated
 # Either use the web interface (in conductor: System Admin -> Packages, select fct)
 # or isql command line: vad_install ('fct_dav.vad', 0);
-# Also you need to have wget and bunzip2 installed and it would be very
+# Also you need to have wget and bunzip2 (only to import into virtuoso) installed and it would be very
 # helpful if virtuoso is running and java is on PATH
 
 virt_isql="/usr/local/bin/isql"
@@ -18,8 +18,21 @@ fctVad="/usr/local/Cellar/virtuoso/6.1.5/share/virtuoso/vad/fct_dav.vad"
 createGraph=true
 importData=true
 rankData=true
+# build the index straight from the dump files, virtuoso is not needed at all
+dumpMode=false
+# rank the resources in java instead of with virtuoso's s_rank()
+offlineRank=false
 language=de
 
+buildMode=sparql
+if $dumpMode ; then
+    createGraph=false
+    importData=false
+    rankData=false
+    offlineRank=true
+    buildMode=dump
+fi
+
 indexDir="/Users/gerb/Development/workspaces/experimental/solr_4/dbpedia_resources_38_score_accent/index/index	"
 
 # splits files and imports them into virtuoso
@@ -28,19 +41,23 @@ function importFile() {
     echo "importing $1 ..."
     load_source="$1"
     load_target=`mktemp -t XXXX`
-    cp $load_source $load_target
+    # virtuoso can not read bzip2, the indexer reads the compressed dumps directly
+    if [ ! -f $load_source ] && [ -f $load_source".bz2" ]; then
+        bunzip2 -c $load_source".bz2" > $load_target
+    else
+        cp $load_source $load_target
+    fi
     load_query="EXEC=TTLP_MT(file_to_string_output('$load_target'), '', '$virt_graphName', 255)"
     $virt_isql "$virt_port" "$virt_userName" "$virt_passWord" "$load_query"
 }
 
-# downloads and unzippes the file only if it is not 
-# already available
+# downloads the file only if it is not already available, it
+# is kept compressed since the indexer reads .bz2 files directly
 function download() {
     
     # only download the files if they are not already there
-    if [ ! -f $1 ]; then
+    if [ ! -f $1 ] && [ ! -f $1".bz2" ]; then
         wget "http://downloads.dbpedia.org/3.8/$language/$1.bz2"
-        bunzip2 $1".bz2"
     fi
 }
     
@@ -52,6 +69,8 @@ download labels_$language.ttl
 download disambiguations_$language.ttl
 download redirects_$language.ttl
 download interlanguage_links_$language.ttl
+download page_links_$language.ttl
+download long_abstracts_$language.ttl
 
 if $createGraph ; then
     # create the graph where the files get imported into
@@ -84,6 +103,10 @@ if $importData ; then
     importFile "mappingbased_properties_$language.ttl"
 fi
 
+if $offlineRank ; then
+    rankData=false
+fi
+
 if $rankData ; then
     # create the page rank and install the necessary tool 
     $virt_isql $virt_port $virt_userName $virt_passWord "EXEC=vad_install ('$fctVad', 0);"
@@ -96,4 +119,19 @@ fi
 # -d: path to index dir, needs trailing slash
 # -s: sparql endpoint, should be local because we make 2,7mio queries :)
 # -g: graph name  
-java -jar -Xmx10G indexCreator.jar -o true -b 1024 -d "`pwd`/" -i $indexDir -s $virt_sparql -g $virt_graphName -l $language
+# -fw: number of concurrent sparql fetch workers
+# -iw: number of threads feeding the index writer
+# -q: max number of fetched documents waiting to be indexed
+# -qb: number of uris fetched with a single (VALUES) sparql query
+# -m: build mode, sparql queries the endpoint, dump reads the local n-triple files, local loads them into an embedded model [sparql || dump || local]
+# -mb: memory budget in megabyte for one sorted run when joining dump files
+# -c: count inbound links from mappingbased_properties and page_links instead of sparql [true || false]
+# -r: compute the page rank from mappingbased_properties and page_links instead of IRI_RANK [true || false]
+# -ci: commit the index every n documents
+# -rs: resume an interrupted build from its last commit, needs -o false [true || false]
+# -sh: number of index shards written in parallel, each in a sub-directory of the index dir
+# -ks: keep the shards for a MultiReader instead of merging them into one index at the end [true || false]
+# -u: update the index of the last release incrementally, only added, changed and removed resources are written, needs -o false [true || false]
+# -ps: sort the finished index by popularity, so the best candidates of a surface form are found without scoring all of its resources [true || false]
+# -sp: schema profile, full indexes and stores every field, lookup only indexes uri, label, types and surface forms and stores what is shown [full || lookup]
+java -jar -Xmx10G indexCreator.jar -o true -b 1024 -d "`pwd`/" -i $indexDir -s $virt_sparql -g $virt_graphName -l $language -fw 16 -iw 4 -q 20000 -qb 100 -c true -m $buildMode -mb 512 -r $offlineRank -ci 100000
@@ -0,0 +1,119 @@
+package de.aksw;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+
+import de.aksw.DumpDocumentAssembler.Attribute;
+import de.aksw.DumpDocumentAssembler.ResourceAttributes;
+
+/**
+ * Builds and reads the SPARQL query for the attributes of a batch of resources.
+ *
+ * Independent OPTIONALs per attribute return the cross product of all values
+ * (every type repeated with every label and abstract). This query binds the
+ * resources and the wanted predicates with VALUES instead, so there is exactly
+ * one (?s ?p ?o) row per triple and every literal is transferred once. The rows
+ * are streamed into {@link ResourceAttributes}, nothing but the first value of
+ * single valued attributes is kept.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class AttributeQuery {
+
+	private final String graph;
+	private final boolean rank;
+	private final Map<String,Attribute> predicates = new HashMap<String,Attribute>();
+	private final String predicateValues;
+
+	/**
+	 * @param graph - the graph to query, null for the default graph
+	 * @param rank - also ask for virtuoso's IRI_RANK of every resource
+	 * @param attributes - the attributes to fetch
+	 */
+	public AttributeQuery(String graph, boolean rank, Attribute... attributes) {
+
+		this.graph = graph;
+		this.rank = rank;
+
+		StringBuilder values = new StringBuilder();
+		for ( Attribute attribute : attributes ) {
+
+			predicates.put(attribute.getPredicate(), attribute);
+			values.append('<').append(attribute.getPredicate()).append("> ");
+		}
+		this.predicateValues = values.toString();
+	}
+
+	/**
+	 * @param uris - the (escaped) uris of the resources
+	 * @return the query
+	 */
+	public String create(Collection<String> uris) {
+
+		StringBuilder query = new StringBuilder("SELECT ?s ?p ?o ");
+		if ( rank ) query.append("(<LONG::IRI_RANK> (?s)) as ?rank ");
+		if ( graph != null ) query.append("FROM <").append(graph).append("> ");
+		query.append("WHERE { VALUES ?s { ");
+		for ( String uri : uris ) query.append('<').append(uri).append("> ");
+		query.append("} VALUES ?p { ").append(predicateValues).append("} ?s ?p ?o . }");
+
+		return query.toString();
+	}
+
+	/**
+	 * Queries the source for the attributes of the resources.
+	 *
+	 * @param source - the endpoint or local model
+	 * @param uris - the (escaped) uris of the resources
+	 * @return uri to attributes, resources without any value are missing
+	 * @throws FetchController.FetchFailedException - if the source could not be queried
+	 * @throws InterruptedException
+	 */
+	public Map<String,ResourceAttributes> execute(AttributeSource source, Collection<String> uris) throws FetchController.FetchFailedException, InterruptedException {
+
+		return source.select(create(uris), uris, new AttributeSource.ResultReader<Map<String,ResourceAttributes>>() {
+
+			@Override
+			public Map<String,ResourceAttributes> read(ResultSet result) {
+
+				return AttributeQuery.this.read(result);
+			}
+		});
+	}
+
+	/**
+	 * Consumes the result of a query created by {@link #create(Collection)}.
+	 *
+	 * @param result - the result, read row by row
+	 * @return uri to attributes, in the order the resources appear in the result, resources without any value are missing
+	 */
+	public Map<String,ResourceAttributes> read(ResultSet result) {
+
+		Map<String,ResourceAttributes> resources = new LinkedHashMap<String,ResourceAttributes>();
+		while ( result.hasNext() ) {
+
+			QuerySolution solution = result.next();
+			Attribute attribute = predicates.get(solution.getResource("p").getURI());
+			if ( attribute == null ) continue;
+
+			String uri = solution.getResource("s").getURI();
+			ResourceAttributes resource = resources.get(uri);
+			if ( resource == null ) {
+
+				resource = new ResourceAttributes(uri, uri);
+				RDFNode rankNode = solution.get("rank");
+				if ( rankNode != null && rankNode.isLiteral() ) resource.setRank(rankNode.asLiteral().getInt());
+				resources.put(uri, resource);
+			}
+
+			RDFNode value = solution.get("o");
+			resource.add(attribute, value.isLiteral() ? value.asLiteral().getLexicalForm() : value.toString());
+		}
+		return resources;
+	}
+}
@@ -0,0 +1,40 @@
+package de.aksw;
+import java.util.Collection;
+
+import com.hp.hpl.jena.query.ResultSet;
+
+/**
+ * Where the generators get the attributes of the resources from: a
+ * SPARQL endpoint ({@link SparqlEndpointSource}) or the dump files loaded
+ * into an embedded model ({@link LocalModelSource}). Both answer the same
+ * queries, so the generators don't need to know which one is used.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public interface AttributeSource {
+
+	/**
+	 * Consumes the result of a query, it is only valid during the call.
+	 */
+	public interface ResultReader<T> {
+
+		T read(ResultSet result);
+	}
+
+	/**
+	 * Executes the select query and hands the result to the reader.
+	 *
+	 * @param query - the select query
+	 * @param uris - the resources the query is about
+	 * @param reader - consumes the result
+	 * @return what the reader returned
+	 * @throws FetchController.FetchFailedException - if the source could not be queried
+	 * @throws InterruptedException
+	 */
+	<T> T select(String query, Collection<String> uris, ResultReader<T> reader) throws FetchController.FetchFailedException, InterruptedException;
+
+	/**
+	 * @return true if the source understands virtuoso's &lt;LONG::IRI_RANK&gt; function
+	 */
+	boolean isRankSupported();
+}
@@ -0,0 +1,396 @@
+package de.aksw;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The subjects of the redirect and disambiguation dumps (the uris which are
+ * no concepts) as a persisted, memory mapped set, replacing the HashSets of
+ * several million uris every stage used to parse the dumps into.
+ *
+ *  - the uris are sorted (with an {@link ExternalSorter}) and front coded in
+ *    blocks of {@link #BLOCK_SIZE}: the first uri of a block is stored in
+ *    full, every other one as the length of the prefix it shares with its
+ *    predecessor and the rest of its UTF-8 bytes
+ *  - an index of the block offsets allows a binary search over the first uris
+ *  - a Bloom filter in front answers most lookups of good uris without
+ *    touching the table
+ *
+ * The file is built once and mapped by every later run, the heap needed is
+ * only a few buffers. Safe to query from several threads.
+ *
+ * File layout (big endian): magic, number of uris, number of blocks, number of
+ * Bloom filter words, number of hash functions, length of the table, the Bloom
+ * filter words, the block offsets, the table. The whole file is mapped at once,
+ * so it is limited to 2GB.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class BadUriFilter {
+
+	private static final Logger logger = Logger.getLogger("BadUriFilter");
+
+	private static final int MAGIC = 0x42555231; // "BUR1"
+	private static final int HEADER_LENGTH = 24;
+	private static final int BLOCK_SIZE = 16;
+	private static final int BLOOM_BITS_PER_URI = 10;
+	private static final int BLOOM_HASHES = 7;
+
+	private final int size;
+	private final LongBuffer bloom;
+	private final IntBuffer blocks;
+	private final ByteBuffer table;
+	private final int hashes;
+
+	private BadUriFilter(int size, LongBuffer bloom, int hashes, IntBuffer blocks, ByteBuffer table) {
+
+		this.size = size;
+		this.bloom = bloom;
+		this.hashes = hashes;
+		this.blocks = blocks;
+		this.table = table;
+	}
+
+	/**
+	 * Sorts and merges the uris of all files and writes them as a filter file.
+	 * The uris are looked up as they are, e.g. the unescaped subjects of a
+	 * {@link ParallelNTriplesReader}.
+	 *
+	 * @param filterFile - the file to write
+	 * @param uriFiles - tab separated files with a bad uri in the first column of every line
+	 * @param sorter - sorts the uris
+	 * @throws IOException
+	 */
+	public static void build(String filterFile, List<String> uriFiles, ExternalSorter sorter) throws IOException {
+
+		long start = System.currentTimeMillis();
+		List<File> sortedFiles = new ArrayList<File>();
+		for ( String uriFile : uriFiles ) {
+
+			logger.info("Sorting the uris of: " + uriFile);
+			sortedFiles.add(sorter.sort(uriFile, ExternalSorter.TSV_FIRST_COLUMN));
+		}
+
+		try (final SortedMergeJoin join = new SortedMergeJoin(sortedFiles, Collections.nCopies(sortedFiles.size(), ExternalSorter.TSV_FIRST_COLUMN))) {
+
+			write(filterFile, new SortedUris() {
+
+				@Override
+				public String next() throws IOException {
+
+					return join.next() ? join.getKey() : null;
+				}
+			});
+		}
+		for ( File sortedFile : sortedFiles ) sortedFile.delete();
+		logger.info("Finished building the bad uri filter in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * The bad uris in String order, duplicates are skipped by the writer.
+	 */
+	private interface SortedUris {
+
+		/**
+		 * @return the next uri, null if there are no more
+		 */
+		String next() throws IOException;
+	}
+
+	private static void write(String filterFile, SortedUris uris) throws IOException {
+
+		// front code the distinct uris into a temporary table, the Bloom filter can only be sized once they are counted
+		File tableFile = File.createTempFile("bad-uris-", ".table", new File(filterFile).getAbsoluteFile().getParentFile());
+		tableFile.deleteOnExit();
+		int size = 0;
+		int[] blockOffsets = new int[1024];
+		int tableLength = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tableFile), 1 << 16))) {
+
+			byte[] previous = new byte[0];
+			String next;
+			while ( (next = uris.next()) != null ) {
+
+				byte[] uri = next.getBytes(StandardCharsets.UTF_8);
+				if ( size > 0 && Arrays.equals(previous, uri) ) continue;
+
+				int shared = 0;
+				if ( size % BLOCK_SIZE == 0 ) {
+
+					if ( size / BLOCK_SIZE == blockOffsets.length ) blockOffsets = Arrays.copyOf(blockOffsets, blockOffsets.length * 2);
+					blockOffsets[size / BLOCK_SIZE] = out.size();
+				}
+				else while ( shared < uri.length && shared < previous.length && uri[shared] == previous[shared] ) shared++;
+
+				writeVarInt(out, shared);
+				writeVarInt(out, uri.length - shared);
+				out.write(uri, shared, uri.length - shared);
+				previous = uri;
+				size++;
+			}
+			// DataOutputStream counts in an int, which wraps beyond 2GB
+			if ( out.size() < 0 ) throw new IOException("Bad uri table exceeds 2GB!");
+			tableLength = out.size();
+		}
+
+		int blockCount = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		long[] bloom = new long[Math.max(1, (int) (((long) size * BLOOM_BITS_PER_URI + 63) / 64))];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tableFile), 1 << 16))) {
+
+			byte[] uri = new byte[256];
+			for ( int i = 0; i < size; i++ ) {
+
+				int shared = readVarInt(in);
+				int length = shared + readVarInt(in);
+				if ( length > uri.length ) uri = Arrays.copyOf(uri, Math.max(length, uri.length * 2));
+				in.readFully(uri, shared, length - shared);
+				addToBloom(bloom, BLOOM_HASHES, uri, length);
+			}
+		}
+
+		File temporary = new File(filterFile + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+				InputStream in = new BufferedInputStream(new FileInputStream(tableFile), 1 << 16)) {
+
+			out.writeInt(MAGIC);
+			out.writeInt(size);
+			out.writeInt(blockCount);
+			out.writeInt(bloom.length);
+			out.writeInt(BLOOM_HASHES);
+			out.writeInt(tableLength);
+			for ( long word : bloom ) out.writeLong(word);
+			for ( int block = 0; block < blockCount; block++ ) out.writeInt(blockOffsets[block]);
+			copy(in, out);
+		}
+		tableFile.delete();
+		File target = new File(filterFile);
+		if ( target.exists() && !target.delete() ) throw new IOException("Could not replace: " + filterFile);
+		if ( !temporary.renameTo(target) ) throw new IOException("Could not rename " + temporary + " to " + filterFile);
+
+		logger.info("Finished writing " + size + " bad uris to: " + filterFile);
+	}
+
+	/**
+	 * Maps a file written by one of the build methods.
+	 *
+	 * @param filterFile - the file to map
+	 * @return the filter
+	 * @throws IOException - if the file can not be read or is no bad uri filter
+	 */
+	public static BadUriFilter load(String filterFile) throws IOException {
+
+		try (RandomAccessFile file = new RandomAccessFile(filterFile, "r")) {
+
+			if ( file.length() > Integer.MAX_VALUE ) throw new IOException("Bad uri filter: " + filterFile + " is larger than 2GB!");
+			// the mapping stays valid after the channel is closed
+			ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+			if ( buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC ) throw new IOException("Not a bad uri filter: " + filterFile);
+			int size = buffer.getInt();
+			int blockCount = buffer.getInt();
+			int bloomWords = buffer.getInt();
+			int hashes = buffer.getInt();
+			int tableLength = buffer.getInt();
+			if ( (long) HEADER_LENGTH + 8L * bloomWords + 4L * blockCount + tableLength != file.length() )
+				throw new IOException("Truncated bad uri filter: " + filterFile);
+
+			LongBuffer bloom = slice(buffer, bloomWords * 8).asLongBuffer();
+			IntBuffer blocks = slice(buffer, blockCount * 4).asIntBuffer();
+			ByteBuffer table = slice(buffer, tableLength);
+
+			logger.info("Mapped " + size + " bad uris from: " + filterFile);
+			return new BadUriFilter(size, bloom, hashes, blocks, table);
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int length) {
+
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+
+	/**
+	 * @return the number of bad uris
+	 */
+	public int size() {
+
+		return size;
+	}
+
+	/**
+	 * @param uri - the uri as found in the dumps (without angle brackets)
+	 * @return true if the uri is the subject of one of the dump files
+	 */
+	public boolean contains(String uri) {
+
+		byte[] bytes = uri.getBytes(StandardCharsets.UTF_8);
+		if ( !mightContain(bytes) ) return false;
+
+		// the last block whose first uri is not greater than the uri
+		int low = 0;
+		int high = blocks.capacity() - 1;
+		int block = -1;
+		while ( low <= high ) {
+
+			int middle = (low + high) >>> 1;
+			int offset = blocks.get(middle);
+			int position = offset + varIntLength(table, offset);
+			int length = readVarInt(table, position);
+			position += varIntLength(table, position);
+
+			int comparison = uri.compareTo(decode(position, length));
+			if ( comparison == 0 ) return true;
+			if ( comparison > 0 ) {
+
+				block = middle;
+				low = middle + 1;
+			}
+			else high = middle - 1;
+		}
+		if ( block < 0 ) return false;
+
+		// rebuild the uris of the block one after the other, the first one is not equal
+		byte[] current = new byte[Math.max(64, bytes.length)];
+		int position = blocks.get(block);
+		int end = block + 1 < blocks.capacity() ? blocks.get(block + 1) : table.capacity();
+		while ( position < end ) {
+
+			int shared = readVarInt(table, position);
+			position += varIntLength(table, position);
+			int suffix = readVarInt(table, position);
+			position += varIntLength(table, position);
+
+			if ( shared + suffix > current.length ) current = Arrays.copyOf(current, shared + suffix);
+			for ( int i = 0; i < suffix; i++ ) current[shared + i] = table.get(position + i);
+			position += suffix;
+
+			if ( shared + suffix == bytes.length && equals(current, bytes) ) return true;
+		}
+		return false;
+	}
+
+	private String decode(int position, int length) {
+
+		ByteBuffer slice = table.duplicate();
+		slice.limit(position + length).position(position);
+		return StandardCharsets.UTF_8.decode(slice).toString();
+	}
+
+	private static boolean equals(byte[] current, byte[] bytes) {
+
+		for ( int i = 0; i < bytes.length; i++ )
+			if ( current[i] != bytes[i] ) return false;
+		return true;
+	}
+
+	private boolean mightContain(byte[] uri) {
+
+		long bits = 64L * bloom.capacity();
+		int h1 = hash(uri, uri.length, 0x9747B28C);
+		int h2 = hash(uri, uri.length, h1);
+		for ( int i = 0; i < hashes; i++ ) {
+
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bits;
+			if ( (bloom.get((int) (bit >>> 6)) & (1L << bit)) == 0 ) return false;
+		}
+		return true;
+	}
+
+	private static void addToBloom(long[] bloom, int hashes, byte[] uri, int length) {
+
+		long bits = 64L * bloom.length;
+		int h1 = hash(uri, length, 0x9747B28C);
+		int h2 = hash(uri, length, h1);
+		for ( int i = 0; i < hashes; i++ ) {
+
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bits;
+			bloom[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Murmur3 style mixing of the bytes, two seeds give the two hashes of the double hashing.
+	 */
+	private static int hash(byte[] bytes, int length, int seed) {
+
+		int h = seed;
+		for ( int i = 0; i < length; i++ ) {
+
+			int k = (bytes[i] & 0xFF) * 0xCC9E2D51;
+			k = Integer.rotateLeft(k, 15) * 0x1B873593;
+			h = Integer.rotateLeft(h ^ k, 13) * 5 + 0xE6546B64;
+		}
+		h ^= length;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		return h ^ (h >>> 16);
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+
+		while ( (value & ~0x7F) != 0 ) {
+
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+
+		int value = 0;
+		for ( int shift = 0; ; shift += 7 ) {
+
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if ( b >= 0 ) return value;
+		}
+	}
+
+	private static int readVarInt(ByteBuffer buffer, int position) {
+
+		int value = 0;
+		for ( int shift = 0; ; shift += 7 ) {
+
+			byte b = buffer.get(position++);
+			value |= (b & 0x7F) << shift;
+			if ( b >= 0 ) return value;
+		}
+	}
+
+	private static int varIntLength(ByteBuffer buffer, int position) {
+
+		int length = 1;
+		while ( buffer.get(position++) < 0 ) length++;
+		return length;
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while ( (read = in.read(buffer)) > 0 ) out.write(buffer, 0, read);
+	}
+}
@@ -3,44 +3,32 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.DoubleField;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.FieldType;
-import org.apache.lucene.document.IntField;
-import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.util.Version;
-import org.semanticweb.yars.nx.Node;
-import org.semanticweb.yars.nx.parser.NxParser;
 import com.google.common.net.UrlEscapers;
-import com.hp.hpl.jena.query.Query;
-import com.hp.hpl.jena.query.QueryExecution;
-import com.hp.hpl.jena.query.QueryExecutionFactory;
-import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
-import com.hp.hpl.jena.rdf.model.RDFNode;
-import com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP;
-import com.hp.hpl.jena.sparql.engine.http.QueryExceptionHTTP;
 import de.danielgerber.file.BufferedFileWriter;
 import de.danielgerber.file.BufferedFileWriter.WRITER_WRITE_MODE;
 import de.danielgerber.file.FileUtil;
-import de.danielgerber.rdf.NtripleUtil;
 
 /**
  * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
@@ -53,7 +41,6 @@ public class DBpediaLuceneIndexGenerator {
 	private static final String DBPEDIA_NAMESPACE = "http://dbpedia.org/resource/";
 	private static final int BATCH_SIZE = 10000;
 	private static final int maxNrOfTries = 10;
-	private static final int DELAY_IN_MS = 5;
 	// default values, should get overwritten with main args
 	private static String GRAPH                 = "http://dbpedia.org";
 	private static double RAM_BUFFER_MAX_SIZE   = 128;
@@ -63,14 +50,47 @@ public class DBpediaLuceneIndexGenerator {
 	public static String LANGUAGE 				= null;
 	private static String INDEX_DIRECTORY       = "";
 	private static String SPARQL_ENDPOINT       = "http://localhost:8890/sparql";
-	private static IndexWriter writer;
+	private static int FETCH_WORKERS            = 16;
+	private static int INDEX_WORKERS            = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private static int QUEUE_SIZE               = 2 * BATCH_SIZE;
+	private static int QUERY_BATCH_SIZE         = 1;
+	private static boolean OFFLINE_LINK_COUNTS  = false;
+	private static String BUILD_MODE            = "sparql";
+	private static int SORT_MEMORY_BUDGET       = 512;
+	private static int CHECKPOINT_INTERVAL      = 100000;
+	private static boolean RESUME               = false;
+	private static int SHARDS               = 1;
+	private static boolean KEEP_SHARDS          = false;
+	private static boolean UPDATE_INDEX         = false;
+	private static boolean SORT_BY_POPULARITY   = false;
+	private static SchemaProfile SCHEMA_PROFILE = SchemaProfile.FULL;
+	private static InboundLinkCounter inboundLinkCounter;
+	private static boolean OFFLINE_PAGE_RANK    = false;
+	private static PageRank pageRank;
+	private static FetchController fetchController;
+	private static AttributeQuery attributeQuery;
+	private static AttributeSource attributeSource;
+	private static ShardedIndexWriter writer;
+	private static IncrementalUpdate update;
+	private static ThreadLocal<IndexDocumentTemplate.Full> documentTemplates;
 
 	public static String DBPEDIA_REDIRECTS_FILE       = null;
 	public static String DBPEDIA_LABELS_FILE          = null;
 	public static String DBPEDIA_DISAMBIGUATIONS_FILE = null;
 	public static String SURFACE_FORMS_FILE           = null;
+	public static String SURFACE_FORMS_STORE_FILE     = null;
+	public static String BAD_URIS_FILE                = null;
 	public static String FILTERED_LABELS_FILE		  = null;
 	public static String INTER_LANGUAGE_LINKS_FILE	  = null;
+	public static String MAPPINGBASED_PROPERTIES_FILE = null;
+	public static String PAGE_LINKS_FILE              = null;
+	public static String INBOUND_LINK_COUNTS_FILE     = null;
+	public static String PAGE_RANK_FILE               = null;
+	public static String IMAGES_FILE                  = null;
+	public static String INSTANCE_TYPES_FILE          = null;
+	public static String SHORT_ABSTRACTS_FILE         = null;
+	public static String LONG_ABSTRACTS_FILE          = null;
+	public static String GIVEN_UP_URIS_FILE           = null;
 
 	/**
 	 * @param args
@@ -90,46 +110,49 @@ public class DBpediaLuceneIndexGenerator {
 			if ( args[i].equals("-g") ) GRAPH               	= args[i+1];
 			if ( args[i].equals("-l") ) LANGUAGE            	= args[i+1];
 			if ( args[i].equals("-f") ) FILTER_SURFACE_FORMS	= new Boolean(args[i+1]);
+			if ( args[i].equals("-fw") ) FETCH_WORKERS			= Integer.valueOf(args[i+1]);
+			if ( args[i].equals("-iw") ) INDEX_WORKERS			= Integer.valueOf(args[i+1]);
+			if ( args[i].equals("-q") ) QUEUE_SIZE				= Integer.valueOf(args[i+1]);
+			if ( args[i].equals("-qb") ) QUERY_BATCH_SIZE		= Integer.valueOf(args[i+1]);
+			if ( args[i].equals("-c") ) OFFLINE_LINK_COUNTS		= Boolean.valueOf(args[i+1]);
+			if ( args[i].equals("-r") ) OFFLINE_PAGE_RANK		= Boolean.valueOf(args[i+1]);
+			if ( args[i].equals("-m") ) BUILD_MODE				= args[i+1];
+			if ( args[i].equals("-mb") ) SORT_MEMORY_BUDGET		= Integer.valueOf(args[i+1]);
+			if ( args[i].equals("-ci") ) CHECKPOINT_INTERVAL	= Integer.valueOf(args[i+1]);
+			if ( args[i].equals("-rs") ) RESUME					= Boolean.valueOf(args[i+1]);
+			if ( args[i].equals("-sh") ) SHARDS					= Integer.valueOf(args[i+1]);
+			if ( args[i].equals("-ks") ) KEEP_SHARDS			= Boolean.valueOf(args[i+1]);
+			if ( args[i].equals("-u") ) UPDATE_INDEX			= Boolean.valueOf(args[i+1]);
+			if ( args[i].equals("-ps") ) SORT_BY_POPULARITY		= Boolean.valueOf(args[i+1]);
+			if ( args[i].equals("-sp") ) SCHEMA_PROFILE			= SchemaProfile.parse(args[i+1]);
 
 			DBPEDIA_REDIRECTS_FILE       = DBpediaLuceneIndexGenerator.DIRECTORY + "redirects_" + LANGUAGE + ".ttl";
 			DBPEDIA_LABELS_FILE          = DBpediaLuceneIndexGenerator.DIRECTORY + "labels_" + LANGUAGE + ".ttl";
 			DBPEDIA_DISAMBIGUATIONS_FILE = DBpediaLuceneIndexGenerator.DIRECTORY + "disambiguations_" + LANGUAGE + ".ttl";
 			SURFACE_FORMS_FILE           = DBpediaLuceneIndexGenerator.DIRECTORY + LANGUAGE + "_surface_forms.tsv";
+			SURFACE_FORMS_STORE_FILE     = DBpediaLuceneIndexGenerator.DIRECTORY + LANGUAGE + "_surface_forms.bin";
+			BAD_URIS_FILE                = DBpediaLuceneIndexGenerator.DIRECTORY + LANGUAGE + "_bad_uris.bin";
 			FILTERED_LABELS_FILE		 = DBpediaLuceneIndexGenerator.DIRECTORY + "labels_" + LANGUAGE + "_filtered.ttl";
 			INTER_LANGUAGE_LINKS_FILE    = DBpediaLuceneIndexGenerator.DIRECTORY + "interlanguage_links_" + LANGUAGE + ".ttl";
+			MAPPINGBASED_PROPERTIES_FILE = DBpediaLuceneIndexGenerator.DIRECTORY + "mappingbased_properties_" + LANGUAGE + ".ttl";
+			PAGE_LINKS_FILE              = DBpediaLuceneIndexGenerator.DIRECTORY + "page_links_" + LANGUAGE + ".ttl";
+			INBOUND_LINK_COUNTS_FILE     = DBpediaLuceneIndexGenerator.DIRECTORY + LANGUAGE + "_inbound_link_counts.bin";
+			PAGE_RANK_FILE               = DBpediaLuceneIndexGenerator.DIRECTORY + LANGUAGE + "_page_rank.bin";
+			IMAGES_FILE                  = DBpediaLuceneIndexGenerator.DIRECTORY + "images_" + LANGUAGE + ".ttl";
+			INSTANCE_TYPES_FILE          = DBpediaLuceneIndexGenerator.DIRECTORY + "instance_types_" + LANGUAGE + ".ttl";
+			SHORT_ABSTRACTS_FILE         = DBpediaLuceneIndexGenerator.DIRECTORY + "short_abstracts_" + LANGUAGE + ".ttl";
+			LONG_ABSTRACTS_FILE          = DBpediaLuceneIndexGenerator.DIRECTORY + "long_abstracts_" + LANGUAGE + ".ttl";
+			GIVEN_UP_URIS_FILE           = DBpediaLuceneIndexGenerator.DIRECTORY + LANGUAGE + "_given_up_uris.txt";
 		}
 
-		DBpediaSpotlightSurfaceFormGenerator surfaceFormGenerator = new DBpediaSpotlightSurfaceFormGenerator();
+		DBpediaSpotlightSurfaceFormGenerator surfaceFormGenerator = new DBpediaSpotlightSurfaceFormGenerator(createExternalSorter());
 
 		// we need to break here, because after the step we need to import the stuff to virtuoso
 		if ( FILTER_SURFACE_FORMS ) {
 
 			System.out.println("Starting to filter labels_" + LANGUAGE + ".uri!");
-			Set<String> badUris = new HashSet<String>();
-			badUris.addAll(NtripleUtil.getSubjectsFromNTriple(DBPEDIA_REDIRECTS_FILE, ""));
-			System.out.println("Finished reading bad redirect uris!");
-			badUris.addAll(NtripleUtil.getSubjectsFromNTriple(DBPEDIA_DISAMBIGUATIONS_FILE, ""));
-			System.out.println("Finished reading bad disambiguations uris!");
-
-			// write the file
-			BufferedFileWriter writer = FileUtil.openWriter(FILTERED_LABELS_FILE, "UTF-8", WRITER_WRITE_MODE.OVERRIDE);
-			System.out.println("Writing filtered labels file: " + FILTERED_LABELS_FILE);
-			NxParser n3Parser = NtripleUtil.openNxParser(DBPEDIA_LABELS_FILE);
-			while (n3Parser.hasNext()) {
-
-				Node[] node = n3Parser.next();
-				String subjectUri = node[0].toString();
-
-				if ( !badUris.contains(subjectUri) ) {
-
-					writer.write(node[0].toN3() + " " + node[1].toN3() + " " + node[2].toN3() + " .");
-				}
-			}
-
-			writer.close();
-
-			// generate the surface forms (and save them to the file) or load them from a file
-			surfaceFormGenerator.createOrReadSurfaceForms();
+			// filter the labels and generate the surface forms (and save them to the file) in one pass over the dumps
+			surfaceFormGenerator.createFilteredLabelsAndSurfaceForms();
 
 			return;
 		}
@@ -140,147 +163,322 @@ public class DBpediaLuceneIndexGenerator {
 		System.out.println("Index-Directory: " + INDEX_DIRECTORY);
 		System.out.println("SPARQL-Endpoint: " + SPARQL_ENDPOINT);
 		System.out.println("GRAPH: " + GRAPH);
-
-		DBpediaLuceneIndexGenerator indexGenerator = new DBpediaLuceneIndexGenerator();
+		System.out.println("Offline-Link-Counts: " + OFFLINE_LINK_COUNTS);
+		System.out.println("Offline-Page-Rank: " + OFFLINE_PAGE_RANK);
+		System.out.println("Build-Mode: " + BUILD_MODE);
+		System.out.println("Checkpoint-Interval: " + CHECKPOINT_INTERVAL);
+		System.out.println("Resume: " + RESUME);
+		System.out.println("Shards: " + SHARDS + (SHARDS > 1 && KEEP_SHARDS ? " (kept)" : ""));
+		System.out.println("Incremental-Update: " + UPDATE_INDEX);
+		System.out.println("Sort-By-Popularity: " + SORT_BY_POPULARITY);
+		System.out.println("Schema-Profile: " + SCHEMA_PROFILE);
+		if ( RESUME && OVERWRITE_INDEX ) throw new IllegalArgumentException("Resuming an index build needs -o false!");
+		if ( UPDATE_INDEX && (OVERWRITE_INDEX || RESUME) ) throw new IllegalArgumentException("An incremental update needs -o false and is started again instead of resumed!");
+		if ( UPDATE_INDEX && SHARDS > 1 && !KEEP_SHARDS ) throw new IllegalArgumentException("An incremental update of a sharded index needs the shards kept by the last build (-ks true)!");
+		if ( SORT_BY_POPULARITY && SHARDS > 1 && KEEP_SHARDS ) throw new IllegalArgumentException("Only a merged index can be sorted by popularity, the shards can not be kept (-ks false)!");
+		if ( SORT_BY_POPULARITY && SCHEMA_PROFILE != SchemaProfile.FULL ) throw new IllegalArgumentException("Only an index with every field stored can be sorted by popularity (-sp full)!");
+
+		final DBpediaLuceneIndexGenerator indexGenerator = new DBpediaLuceneIndexGenerator();
+		documentTemplates = IndexDocumentTemplate.createThreadLocal(IndexDocumentTemplate.Full.class, SCHEMA_PROFILE);
 
 		// create the index writer configuration and create a new index writer
-		IndexWriterConfig indexWriterConfig = new IndexWriterConfig(Version.LUCENE_48, new StandardAnalyzer(Version.LUCENE_48));
-		indexWriterConfig.setRAMBufferSizeMB(RAM_BUFFER_MAX_SIZE);
-		indexWriterConfig.setOpenMode(OVERWRITE_INDEX || !indexGenerator.isIndexExisting(INDEX_DIRECTORY) ? OpenMode.CREATE : OpenMode.APPEND);
-		writer = indexGenerator.createIndex(INDEX_DIRECTORY, indexWriterConfig);
-
-		Map<String,Set<String>> surfaceForms = surfaceFormGenerator.createOrReadSurfaceForms();
-		Map<String,String> language2dbpediaLinks = createInterLanguageLinks();
-
-		Set<IndexDocument> indexDocuments = new HashSet<IndexDocument>((int)(BATCH_SIZE*1.4));
-
-		// time measurements
-		int counter = 0;
-		int noLabelCounter = 0;
-		int http404Counter = 0;
-		long start = System.currentTimeMillis();
-		int total = surfaceForms.size();
-		Set<String> surfaceFormValues;
-
-		Iterator<Map.Entry<String,Set<String>>> surfaceFormIterator = surfaceForms.entrySet().iterator();
-		while ( surfaceFormIterator.hasNext() ) {
-
-			Map.Entry<String,Set<String>> entry = surfaceFormIterator.next();
-			String fragment = entry.getKey();
-			String uri = UrlEscapers.urlFragmentEscaper().escape(DBPEDIA_NAMESPACE + fragment);
-			try {
-				long startTime = System.currentTimeMillis();
-				indexDocuments.add(indexGenerator.queryAttributesForUri(uri, entry.getValue(), language2dbpediaLinks));
-				long endTime = System.currentTimeMillis();
-//				System.out.println("Operation took " + (endTime - startTime) + "ms");
-			}
-			catch(NoLabelException e)
-			{
-				if(noLabelCounter++%100==0)
-				{System.out.println(e.getMessage()+"\t|\t"+noLabelCounter+"/"+(counter+1)+" labels faulty ("+100*noLabelCounter/counter+"%)");}
+		// label and surface forms are folded to ascii, so they match with and without accents
+		final OpenMode openMode = OVERWRITE_INDEX || !indexGenerator.isIndexExisting(INDEX_DIRECTORY) ? OpenMode.CREATE : OpenMode.APPEND;
+		final ShardedIndexWriter.ConfigFactory configFactory = new ShardedIndexWriter.ConfigFactory() {
+
+			@Override
+			public IndexWriterConfig create() {
+
+				IndexWriterConfig indexWriterConfig = new IndexWriterConfig(Version.LUCENE_48, IndexAnalyzers.createAnalyzer(Version.LUCENE_48));
+				indexWriterConfig.setRAMBufferSizeMB(RAM_BUFFER_MAX_SIZE);
+				indexWriterConfig.setOpenMode(openMode);
+				return indexWriterConfig;
 			}
-			// don't know which one it is
-			//          catch(org.openjena.atlas.web.HttpException|org.apache.jena.atlas.web.HttpException e)
-			catch(QueryExceptionHTTP e)
-			{System.out.println("Waiting for 1 second"+e.getMessage());Thread.sleep(1000);}
+		};
+		writer = indexGenerator.createIndex(INDEX_DIRECTORY, configFactory);
+
+		final SurfaceFormStore surfaceForms = surfaceFormGenerator.createOrReadSurfaceForms();
+		final Map<String,String> language2dbpediaLinks = createInterLanguageLinks();
+		// count the inbound links from the dumps instead of asking the endpoint for every uri
+		if ( OFFLINE_LINK_COUNTS || !isSparqlMode() )
+			inboundLinkCounter = InboundLinkCounter.createOrRead(INBOUND_LINK_COUNTS_FILE, Arrays.asList(MAPPINGBASED_PROPERTIES_FILE, PAGE_LINKS_FILE));
+		// rank the resources ourselves instead of relying on virtuoso's IRI_RANK
+		if ( OFFLINE_PAGE_RANK || !isSparqlMode() )
+			pageRank = PageRank.createOrRead(PAGE_RANK_FILE, Arrays.asList(MAPPINGBASED_PROPERTIES_FILE, PAGE_LINKS_FILE));
+
+		if ( isSparqlMode() ) {
+
+			fetchController = new FetchController(FETCH_WORKERS, maxNrOfTries);
+			attributeSource = new SparqlEndpointSource(SPARQL_ENDPOINT, fetchController);
+		}
+		else if ( isLocalMode() ) attributeSource = createLocalSource(surfaceForms);
+		// the rank comes from virtuoso's IRI_RANK unless it has been computed offline or the source can't rank
+		boolean rankFromSource = pageRank == null && attributeSource != null && attributeSource.isRankSupported();
+		attributeQuery = new AttributeQuery(GRAPH, rankFromSource, DumpDocumentAssembler.Attribute.LABEL,
+				DumpDocumentAssembler.Attribute.IMAGE, DumpDocumentAssembler.Attribute.TYPE, DumpDocumentAssembler.Attribute.SHORT_ABSTRACT);
+
+		final AtomicInteger counter = new AtomicInteger();
+		final AtomicInteger noLabelCounter = new AtomicInteger();
 
-			// improve speed through batch save
-			if ( ++counter % BATCH_SIZE == 0 ) {
+		final IndexCheckpoint checkpoint = new IndexCheckpoint(writer, RESUME);
+		// compare the new release with the last build, only changed resources are written
+		if ( UPDATE_INDEX ) update = new IncrementalUpdate(writer);
 
-				indexGenerator.addIndexDocuments(indexDocuments);
-				System.out.println("Done: " + counter + "/" + total + " " + MessageFormat.format("{0,number,#.##%}", (double) counter / (double) total) + " in " + (System.currentTimeMillis() - start) + "ms" );
-				start = System.currentTimeMillis();
-				indexDocuments = new HashSet<IndexDocument>((int)(BATCH_SIZE*1.4));
+		IndexingPipeline.DocumentIndexer<IndexDocument> indexer = new IndexingPipeline.DocumentIndexer<IndexDocument>() {
 
+			@Override
+			public void addIndexDocuments(List<IndexDocument> indexDocuments) throws IOException {
+
+				// documents after the last checkpoint might already be in the resumed index
+				List<IndexDocument> newDocuments = new ArrayList<IndexDocument>(indexDocuments.size());
+				for ( IndexDocument indexDocument : indexDocuments )
+					if ( !checkpoint.isIndexed(indexDocument.getUri()) ) newDocuments.add(indexDocument);
+				indexGenerator.addIndexDocuments(newDocuments);
 			}
+		};
+
+		IndexingPipeline<IndexDocument> pipeline = new IndexingPipeline<IndexDocument>(FETCH_WORKERS, INDEX_WORKERS, QUEUE_SIZE, BATCH_SIZE, QUERY_BATCH_SIZE);
+		pipeline.setResumePosition(checkpoint.getResumePosition());
+		pipeline.setCheckpoints(CHECKPOINT_INTERVAL, checkpoint);
+		checkpoint.installShutdownHook(pipeline);
+		if ( isDumpMode() ) {
+
+			// read all attributes from the local dumps, no sparql endpoint needed
+			pipeline.run(createDumpDocuments(surfaceForms, language2dbpediaLinks), surfaceForms.size(), indexer);
+		}
+		// the ids of the store are in key order, so a resumed run sees the resources in the same order
+		else pipeline.run(surfaceForms.size(),
+				new IndexingPipeline.DocumentFetcher<IndexDocument>() {
+
+					@Override
+					public List<IndexDocument> fetch(int from, int to) throws Exception {
+
+						// the surface forms are only decoded for the resources being fetched
+						Map<String,Set<String>> urisToSurfaceForms = new LinkedHashMap<String,Set<String>>();
+						for ( int id = from; id < to; id++ ) {
+
+							String uri = UrlEscapers.urlFragmentEscaper().escape(DBPEDIA_NAMESPACE + surfaceForms.getKey(id));
+							// no need to query the endpoint again for resources in the resumed index
+							if ( !checkpoint.isIndexed(URLDecoder.decode(uri, "UTF-8")) ) urisToSurfaceForms.put(uri, surfaceForms.getSurfaceForms(id));
+						}
+						if ( urisToSurfaceForms.isEmpty() ) return null;
+						int current = counter.addAndGet(to - from);
+						try {
+
+							if ( urisToSurfaceForms.size() > 1 ) return indexGenerator.queryAttributesForUris(urisToSurfaceForms, language2dbpediaLinks, noLabelCounter);
+
+							Map.Entry<String,Set<String>> entry = urisToSurfaceForms.entrySet().iterator().next();
+							IndexDocument document = indexGenerator.queryAttributesForUri(entry.getKey(), entry.getValue(), language2dbpediaLinks);
+							return document == null ? null : Collections.singletonList(document);
+						}
+						catch(NoLabelException e)
+						{
+							int noLabels = noLabelCounter.incrementAndGet();
+							if(noLabels%100==1)
+							{System.out.println(e.getMessage()+"\t|\t"+noLabels+"/"+current+" labels faulty ("+100*noLabels/current+"%)");}
+						}
+						// the uris are reported by the fetch controller at the end
+						catch(FetchController.FetchFailedException e)
+						{System.out.println(e.getMessage()); keepIndexed(urisToSurfaceForms.keySet());}
+						// the pipeline skips the batch
+						catch(Exception e)
+						{keepIndexed(urisToSurfaceForms.keySet()); throw e;}
+
+						return null;
+					}
+				}, indexer);
+
+		if ( update != null ) {
+
+			// a stopped pipeline did not see every resource of the release, so nothing is known to be removed
+			if ( !pipeline.isStopped() ) update.deleteRemoved();
+			update.report();
+			update.close();
+		}
+		checkpoint.checkpoint(pipeline.getCheckpoint());
+		checkpoint.closeWriter();
+		// the shutdown hook waits for the merge and the sort, they are not interrupted halfway
+		try {
+
+			// the shards are either kept for a MultiReader (see ShardedIndexWriter#openReader) or merged into one index
+			if ( !KEEP_SHARDS ) writer.merge();
+			// a stopped build is not complete yet, it gets sorted once it is resumed and finished
+			if ( SORT_BY_POPULARITY && !pipeline.isStopped() ) PopularitySortedIndex.sort(INDEX_DIRECTORY, configFactory);
+		}
+		finally {
+
+			checkpoint.finished();
+		}
+		if ( fetchController != null ) fetchController.report(GIVEN_UP_URIS_FILE);
+	}
+
+	/**
+	 * An update must not delete the documents of resources which could not be
+	 * fetched, they are kept as they are.
+	 * 
+	 * @param uris - the escaped uris of a batch which failed
+	 */
+	private static void keepIndexed(Set<String> uris) throws IOException {
+
+		if ( update == null ) return;
+		for ( String uri : uris ) update.keep(URLDecoder.decode(uri, "UTF-8"));
+	}
+
+	private static boolean isDumpMode() {
+
+		return "dump".equals(BUILD_MODE);
+	}
+
+	private static boolean isLocalMode() {
+
+		return "local".equals(BUILD_MODE);
+	}
+
+	private static boolean isSparqlMode() {
+
+		return !isDumpMode() && !isLocalMode();
+	}
+
+	/**
+	 * Loads the attributes of the resources to be indexed from the local
+	 * dumps into an embedded model, which then answers the same queries as
+	 * the endpoint would.
+	 * 
+	 * @param surfaceForms - the resources to be indexed
+	 * @return the source
+	 */
+	private static AttributeSource createLocalSource(SurfaceFormStore surfaceForms) {
+
+		Set<String> uris = new HashSet<String>();
+		SurfaceFormStore.Cursor cursor = surfaceForms.cursor();
+		while ( cursor.next() ) uris.add(UrlEscapers.urlFragmentEscaper().escape(DBPEDIA_NAMESPACE + cursor.getKey()));
+
+		LocalModelSource source = new LocalModelSource(uris);
+		source.load(new File(FILTERED_LABELS_FILE).exists() ? FILTERED_LABELS_FILE : DBPEDIA_LABELS_FILE);
+		source.load(IMAGES_FILE);
+		source.load(INSTANCE_TYPES_FILE);
+		source.load(SHORT_ABSTRACTS_FILE);
+		System.out.println("Loaded " + source.size() + " triples into the local model");
+
+		return source;
+	}
+
+	/**
+	 * Creates a sorter which spills to the dump directory and uses at most the configured memory per run.
+	 */
+	static ExternalSorter createExternalSorter() {
+
+		return new ExternalSorter((long) SORT_MEMORY_BUDGET * 1024 * 1024, new File(DIRECTORY.isEmpty() ? "." : DIRECTORY));
+	}
+
+	/**
+	 * Joins the resources to be indexed with the local dump files, the
+	 * documents are assembled one at a time in subject order.
+	 * 
+	 * @param surfaceForms - the resources to be indexed
+	 * @param language2dbpediaLinks - the inter language links
+	 * @return the documents
+	 * @throws IOException 
+	 */
+	private static Iterator<IndexDocument> createDumpDocuments(final SurfaceFormStore surfaceForms, final Map<String,String> language2dbpediaLinks) throws IOException {
 
+		// the resources need to be sorted by the uri found in the dumps
+		File resourcesFile = File.createTempFile("resources-", ".tsv", new File(DIRECTORY.isEmpty() ? "." : DIRECTORY));
+		resourcesFile.deleteOnExit();
+		BufferedFileWriter resourcesWriter = FileUtil.openWriter(resourcesFile.getAbsolutePath(), "UTF-8", WRITER_WRITE_MODE.OVERRIDE);
+		SurfaceFormStore.Cursor cursor = surfaceForms.cursor();
+		while ( cursor.next() ) {
 
+			String fragment = cursor.getKey();
+			resourcesWriter.write(UrlEscapers.urlFragmentEscaper().escape(DBPEDIA_NAMESPACE + fragment) + "\t" + fragment);
 		}
-		// write the last few items
-		indexGenerator.addIndexDocuments(indexDocuments);
-		writer.commit();
-		writer.close();
+		resourcesWriter.close();
+
+		DumpDocumentAssembler assembler = new DumpDocumentAssembler(createExternalSorter());
+		assembler.read(DumpDocumentAssembler.Attribute.LABEL, new File(FILTERED_LABELS_FILE).exists() ? FILTERED_LABELS_FILE : DBPEDIA_LABELS_FILE);
+		assembler.read(DumpDocumentAssembler.Attribute.IMAGE, IMAGES_FILE);
+		assembler.read(DumpDocumentAssembler.Attribute.TYPE, INSTANCE_TYPES_FILE);
+		assembler.read(DumpDocumentAssembler.Attribute.SHORT_ABSTRACT, SHORT_ABSTRACTS_FILE);
+
+		return assembler.assemble(resourcesFile.getAbsolutePath(), new DumpDocumentAssembler.DocumentFactory<IndexDocument>() {
+
+			@Override
+			public IndexDocument create(DumpDocumentAssembler.ResourceAttributes resource) throws IOException {
+
+				return DumpDocumentAssembler.createIndexDocument(resource, surfaceForms.getSurfaceForms(resource.getKey()), language2dbpediaLinks, inboundLinkCounter, pageRank);
+			}
+		});
 	}
 
-	private static Map<String, String> createInterLanguageLinks() {
+	private static Map<String, String> createInterLanguageLinks() throws IOException {
 
 		Map<String,String> languageToDbpediaUris = new HashMap<String, String>();
 
 		if ( LANGUAGE.equals("en") ) return languageToDbpediaUris;
 
-		NxParser n3Parser = NtripleUtil.openNxParser(DBpediaLuceneIndexGenerator.INTER_LANGUAGE_LINKS_FILE);
-		while (n3Parser.hasNext()) {
+		// one map per range, merged in file order so a later link of a resource still wins
+		ParallelNTriplesReader reader = new ParallelNTriplesReader(DBpediaLuceneIndexGenerator.INTER_LANGUAGE_LINKS_FILE);
+		final List<Map<String,String>> ranges = new ArrayList<Map<String,String>>();
+		for ( int range = 0; range < reader.getRangeCount(); range++ ) ranges.add(new HashMap<String,String>());
+		reader.read(new ParallelNTriplesReader.TripleHandler() {
 
-			Node[] node = n3Parser.next();
-			String subjectUri = node[0].toString();
-			String objectUri = node[2].toString();
+			@Override
+			public void handle(ParallelNTriplesReader.Triple triple) {
 
-			if ( objectUri.startsWith("http://dbpedia.org") ) languageToDbpediaUris.put(subjectUri, objectUri);
-		}
+				String subjectUri = triple.getSubject();
+				String objectUri = triple.getObject();
+
+				if ( objectUri.startsWith("http://dbpedia.org") ) ranges.get(triple.getRange()).put(subjectUri, objectUri);
+			}
+		});
+		for ( Map<String,String> range : ranges ) languageToDbpediaUris.putAll(range);
 
 		return languageToDbpediaUris;
 	}
 
 	/**
-	 * Adds a set of index documents in batch mode to the index
+	 * Adds a set of index documents to the index, one after another through
+	 * the {@link IndexDocumentTemplate} of the calling thread.
 	 * Uris and image urls as well as type Uris are not analyzed.
 	 * Termvectors are not stored for anything. Everything else is
-	 * analyzed using a standard analyzer. 
+	 * analyzed using a standard analyzer, label and surface forms are
+	 * folded to ascii as well (see {@link IndexAnalyzers}). Page rank,
+	 * disambiguation score and popularity bucket are written as doc
+	 * values too (see {@link PopularityColumns}). Which fields are
+	 * indexed and stored depends on the {@link #SCHEMA_PROFILE}.
 	 * 
 	 * @param indexDocuments - the documents to be indexed
 	 * @throws CorruptIndexException - index corrupted
 	 * @throws IOException - error
 	 */
-	private void addIndexDocuments(Set<IndexDocument> indexDocuments) throws CorruptIndexException, IOException {
-
-		Set<Document> luceneDocuments = new HashSet<Document>();
-		FieldType stringType = new FieldType(StringField.TYPE_STORED);
-		stringType.setStoreTermVectors(false);
-		FieldType textType = new FieldType(TextField.TYPE_STORED);
-		textType.setStoreTermVectors(false);
-		Document luceneDocument;
+	private void addIndexDocuments(List<IndexDocument> indexDocuments) throws CorruptIndexException, IOException {
+
+		IndexDocumentTemplate.Full template = documentTemplates.get();
 		for ( IndexDocument indexDocument : indexDocuments ) {
 
-			luceneDocument = new Document();
-			luceneDocument.add(new Field("uri", indexDocument.getUri(), stringType));
-			luceneDocument.add(new Field("dbpediaUri", indexDocument.getCanonicalDBpediaUri(), stringType));
-			luceneDocument.add(new Field("label", indexDocument.getLabel(), textType));
-			luceneDocument.add(new Field("comment", indexDocument.getShortAbstract(), textType));
-			luceneDocument.add(new Field("imageURL", indexDocument.getImageUri(), stringType));
-			luceneDocument.add(new IntField("pagerank", indexDocument.getPageRank(), Field.Store.YES));
-			luceneDocument.add(new DoubleField("disambiguationScore", indexDocument.getDisambiguationScore(), Field.Store.YES));
-			for ( String type : indexDocument.getTypes() )
-				luceneDocument.add(new Field("types", type, stringType));
-			for ( String surfaceForm : indexDocument.getSurfaceForms() )
-				luceneDocument.add(new Field("surfaceForms", surfaceForm, textType));
-
-			luceneDocuments.add(luceneDocument);
+			List<IndexableField> fields = template.fill(indexDocument);
+			if ( update == null ) writer.addDocument(indexDocument.getUri(), fields);
+			// only resources which were added or changed since the last build are written
+			else if ( update.isChanged(indexDocument.getUri(), template.getContentHash()) ) writer.updateDocument(indexDocument.getUri(), fields);
 		}
-		writer.addDocuments(luceneDocuments);
 	}
 
-	public double getAprioriScore1(String uri, String endpoint, String graph) {
+	public double getAprioriScore1(String uri, String graph) throws FetchController.FetchFailedException, InterruptedException {
 
-		String query = "SELECT (COUNT(?s) AS ?cnt) WHERE {?s ?p <"+uri+">}";
-		Query sparqlQuery = QueryFactory.create(query);
-		QueryExecution qexec;
-		if (graph != null) {
-			qexec = QueryExecutionFactory.sparqlService(endpoint, sparqlQuery, graph);
-		} else {
-			qexec = QueryExecutionFactory.sparqlService(endpoint, sparqlQuery);
-		}
-		ResultSet results = qexec.execSelect();
-		int count = 0;
-		try {
-			while (results.hasNext()) {
-				QuerySolution soln = results.nextSolution();
-				count = soln.getLiteral("cnt").getInt();
+		String query = "SELECT (COUNT(?s) AS ?cnt) " + (graph != null ? "FROM <" + graph + "> " : "") + "WHERE {?s ?p <"+uri+">}";
+		int count = attributeSource.select(query, Collections.singleton(uri), new AttributeSource.ResultReader<Integer>() {
+
+			@Override
+			public Integer read(ResultSet results) {
+
+				int count = 0;
+				while (results.hasNext()) {
+					QuerySolution soln = results.nextSolution();
+					count = soln.getLiteral("cnt").getInt();
+				}
+				return count;
 			}
-		}
-		catch(Exception e)
-		{
-			e.printStackTrace();
-		}
+		});
 		//logger.info(uri+" -> "+Math.log(count+1));
 		return Math.log(count+1);
 	}
@@ -294,7 +492,7 @@ public class DBpediaLuceneIndexGenerator {
 	}
 
 	/**
-	 * Queries a configured sparql endpoint for all information a document needs
+	 * Queries the attribute source (sparql endpoint or local model) for all information a document needs
 	 *  - rank
 	 *  - label
 	 *  - uri
@@ -308,87 +506,117 @@ public class DBpediaLuceneIndexGenerator {
 	 * @return a document ready to be indexed
 	 * @throws UnsupportedEncodingException 
 	 * @throws NoLabelException 
+	 * @throws FetchController.FetchFailedException 
+	 * @throws InterruptedException 
 	 */
-	private IndexDocument queryAttributesForUri(String uri, Set<String> surfaceForms, Map<String, String> language2dbpediaLinks) throws UnsupportedEncodingException, NoLabelException {
-
-		String query =
-				String.format(
-						"SELECT (<LONG::IRI_RANK> (<%s>)) as ?rank ?label ?imageUrl ?abstract ?types " +
-								"FROM <%s> " +
-								"WHERE { " +
-								"   OPTIONAL { <%s> <http://www.w3.org/2000/01/rdf-schema#label> ?label . } " +
-								"   OPTIONAL { <%s> <http://dbpedia.org/ontology/thumbnail> ?imageUrl . } " +
-								"   OPTIONAL { <%s> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> ?types . } " +
-								"   OPTIONAL { <%s> <http://www.w3.org/2000/01/rdf-schema#comment> ?abstract . } " +
-								"}", uri, GRAPH, uri, uri, uri, uri);
-
-		// execute the query
-		IndexDocument document = new IndexDocument();
-		QueryEngineHTTP qexec = new QueryEngineHTTP(SPARQL_ENDPOINT, query);
-		int nrOfTries = 0;
-		ResultSet result = null;
-		while(result == null && nrOfTries++ <= maxNrOfTries){
-			try {
-				result = qexec.execSelect();
-			} catch (Exception e1) {
-				System.err.println("An error occured while executing SPARQL query\n" + query + "\nRetrying...");
-				e1.printStackTrace();
-				try {
-					Thread.sleep(DELAY_IN_MS);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+	private IndexDocument queryAttributesForUri(String uri, Set<String> surfaceForms, Map<String, String> language2dbpediaLinks) throws UnsupportedEncodingException, NoLabelException, FetchController.FetchFailedException, InterruptedException {
+
+		DumpDocumentAssembler.ResourceAttributes resource = attributeQuery.execute(attributeSource, Collections.singleton(uri)).get(uri);
+		if ( resource == null || resource.getLabel() == null ) throw new NoLabelException(uri);
 
-		if(result == null){
-			return null;
+		Double disambiguationScore = inboundLinkCounter != null ? null : getAprioriScore1(uri, GRAPH);
+		return createIndexDocument(resource, surfaceForms, language2dbpediaLinks, disambiguationScore);
+	}
+
+	/**
+	 * Batched version of {@link #queryAttributesForUri(String, Set, Map)}. All 
+	 * resources are fetched with a single VALUES query and their inbound link
+	 * counts with a single grouped COUNT query, the rows are then split back
+	 * into one document per resource.
+	 * 
+	 * @param urisToSurfaceForms the (escaped) URIs of the resources and their surface forms
+	 * @param language2dbpediaLinks
+	 * @param noLabelCounter counts the resources without a label, those are skipped
+	 * @return the documents ready to be indexed
+	 * @throws UnsupportedEncodingException 
+	 * @throws FetchController.FetchFailedException - if the endpoint could not be queried
+	 * @throws InterruptedException 
+	 */
+	private List<IndexDocument> queryAttributesForUris(Map<String,Set<String>> urisToSurfaceForms, Map<String, String> language2dbpediaLinks, AtomicInteger noLabelCounter) throws UnsupportedEncodingException, FetchController.FetchFailedException, InterruptedException {
+
+		Map<String,DumpDocumentAssembler.ResourceAttributes> resources = attributeQuery.execute(attributeSource, urisToSurfaceForms.keySet());
+		Set<String> labeledUris = new LinkedHashSet<String>();
+		for ( DumpDocumentAssembler.ResourceAttributes resource : resources.values() )
+			if ( resource.getLabel() != null ) labeledUris.add(resource.getUri());
+
+		Map<String,Double> disambiguationScores = inboundLinkCounter != null || labeledUris.isEmpty() ? null : getAprioriScores(labeledUris, GRAPH);
+		List<IndexDocument> documents = new ArrayList<IndexDocument>(labeledUris.size());
+		for ( String uri : labeledUris ) {
+
+			Double disambiguationScore = disambiguationScores == null ? null : disambiguationScores.containsKey(uri) ? disambiguationScores.get(uri) : Math.log(1);
+			documents.add(createIndexDocument(resources.get(uri), urisToSurfaceForms.get(uri), language2dbpediaLinks, disambiguationScore));
 		}
 
-		while (result.hasNext()) {
+		int missing = urisToSurfaceForms.size() - documents.size();
+		int noLabels = noLabelCounter.addAndGet(missing);
+		if ( noLabels / 100 != (noLabels - missing) / 100 ) 
+			System.out.println("No label found for " + missing + " of " + urisToSurfaceForms.size() + " uris in batch, " + noLabels + " in total");
 
-			QuerySolution solution = result.next();
+		return documents;
+	}
 
-			// those values do get repeated, we need them to set only one time
-			if ( document.getUri().isEmpty() ) {
+	/**
+	 * Builds the document just like in dump mode, the rank and the
+	 * disambiguation score come from the endpoint unless they are computed offline.
+	 */
+	private static IndexDocument createIndexDocument(DumpDocumentAssembler.ResourceAttributes resource, Set<String> surfaceForms,
+			Map<String, String> language2dbpediaLinks, Double disambiguationScore) throws UnsupportedEncodingException {
 
-				document.setUri(URLDecoder.decode(uri, "UTF-8"));                
-				RDFNode label = solution.get("label");
-				if(label==null) throw new NoLabelException(uri);
-				document.setLabel(label.asLiteral().getLexicalForm());
+		IndexDocument document = DumpDocumentAssembler.createIndexDocument(resource, surfaceForms, language2dbpediaLinks, inboundLinkCounter, pageRank);
+		if ( pageRank == null ) document.setPageRank(resource.getRank());
+		if ( disambiguationScore != null ) document.setDisambiguationScore(disambiguationScore);
 
-				document.setPageRank(solution.get("rank") != null ? Integer.valueOf(solution.get("rank").toString().replace("^^http://www.w3.org/2001/XMLSchema#integer", "")) : 0);
-				document.setImageUri(solution.get("imageUrl") != null ? solution.get("imageUrl").toString() : "");
-				document.setShortAbstract(solution.get("abstract") != null ? solution.get("abstract").asLiteral().getLexicalForm() : "");
-				document.setCanonicalDBpediaUri(language2dbpediaLinks.containsKey(uri) ? language2dbpediaLinks.get(uri) : "");
+		return document;
+	}
+
+	/**
+	 * Batched version of {@link #getAprioriScore1(String, String)}, 
+	 * resources without inbound links are not contained in the result.
+	 * 
+	 * @param uris the resources
+	 * @return uri to log(inbound links + 1)
+	 * @throws FetchController.FetchFailedException 
+	 * @throws InterruptedException 
+	 */
+	public Map<String,Double> getAprioriScores(Set<String> uris, String graph) throws FetchController.FetchFailedException, InterruptedException {
+
+		String query = "SELECT ?s (COUNT(?o) AS ?cnt) " + (graph != null ? "FROM <" + graph + "> " : "") + 
+				"WHERE { VALUES ?s { " + createValuesBlock(uris) + " } ?o ?p ?s } GROUP BY ?s";
 
-				try {
-					double disambiguationScore = getAprioriScore1(uri, SPARQL_ENDPOINT, GRAPH);
-					document.setDisambiguationScore(disambiguationScore);
-				} catch (Exception e) {
-					e.printStackTrace();
+		return attributeSource.select(query, uris, new AttributeSource.ResultReader<Map<String,Double>>() {
+
+			@Override
+			public Map<String,Double> read(ResultSet results) {
+
+				Map<String,Double> scores = new HashMap<String,Double>();
+				while (results.hasNext()) {
+					QuerySolution soln = results.nextSolution();
+					scores.put(soln.getResource("s").getURI(), Math.log(soln.getLiteral("cnt").getInt() + 1));
 				}
+				return scores;
 			}
-			// there might be different types
-			if (solution.get("types") != null) document.getTypes().add(solution.get("types").toString());
-		}
-		document.setSurfaceForms(surfaceForms == null ? new HashSet<String>() : surfaceForms);
+		});
+	}
 
-		return document;
+	private static String createValuesBlock(Set<String> uris) {
+
+		StringBuilder values = new StringBuilder();
+		for ( String uri : uris ) values.append('<').append(uri).append("> ");
+		return values.toString();
 	}
 
 	/**
-	 * Create a new filesystem lucene index
+	 * Create a new filesystem lucene index, split into {@link #SHARDS} shards
 	 * 
 	 * @param absoluteFilePath - the path where to create/append the index
-	 * @param indexWriterConfig - the index write configuration
+	 * @param configFactory - creates the index write configuration of every shard
 	 * @return
 	 */
-	private IndexWriter createIndex(String absoluteFilePath, IndexWriterConfig indexWriterConfig) {
+	private ShardedIndexWriter createIndex(String absoluteFilePath, ShardedIndexWriter.ConfigFactory configFactory) {
 
 		try {
 
-			return new IndexWriter(FSDirectory.open(new File(absoluteFilePath)), indexWriterConfig);
+			return new ShardedIndexWriter(absoluteFilePath, SHARDS, RESUME || UPDATE_INDEX, configFactory);
 		}
 		catch (CorruptIndexException e) {
 
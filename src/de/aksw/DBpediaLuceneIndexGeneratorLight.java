@@ -2,43 +2,37 @@ package de.aksw;
 import java.io.File;
 import java.io.IOException;
 import java.net.URLDecoder;
-import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
-import org.apache.lucene.document.FieldType;
-import org.apache.lucene.document.StringField;
-import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.util.Version;
-import org.semanticweb.yars.nx.Node;
-import org.semanticweb.yars.nx.parser.NxParser;
 
-import com.hp.hpl.jena.query.QuerySolution;
-import com.hp.hpl.jena.query.ResultSet;
-import com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP;
 
 import de.danielgerber.file.BufferedFileWriter;
 import de.danielgerber.file.BufferedFileWriter.WRITER_WRITE_MODE;
 import de.danielgerber.file.FileUtil;
-import de.danielgerber.rdf.NtripleUtil;
 
 /**
  * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
  */
 public class DBpediaLuceneIndexGeneratorLight {
 
+    private static final int BATCH_SIZE = 10000;
+    private static final int maxNrOfTries = 10;
+    
 	// default values, should get overwritten with main args
     private static String GRAPH                 = "http://dbpedia.org";
     private static double RAM_BUFFER_MAX_SIZE   = 1024;
@@ -48,20 +42,42 @@ public class DBpediaLuceneIndexGeneratorLight {
     public static String LANGUAGE 				= null;
     private static String INDEX_DIRECTORY       = "";
     private static String SPARQL_ENDPOINT       = "http://localhost:8890/sparql";
-    private static IndexWriter writer;
+    private static int FETCH_WORKERS            = 16;
+    private static int INDEX_WORKERS            = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static int QUEUE_SIZE               = 2 * BATCH_SIZE;
+    private static int QUERY_BATCH_SIZE         = 1;
+    private static String BUILD_MODE            = "sparql";
+    private static int SORT_MEMORY_BUDGET       = 512;
+    private static int CHECKPOINT_INTERVAL      = 100000;
+    private static boolean RESUME               = false;
+    private static int SHARDS               = 1;
+    private static boolean KEEP_SHARDS          = false;
+    private static boolean UPDATE_INDEX         = false;
+    private static SchemaProfile SCHEMA_PROFILE = SchemaProfile.FULL;
+    private static FetchController fetchController;
+    private static AttributeQuery attributeQuery;
+    private static AttributeSource attributeSource;
+    private static ShardedIndexWriter writer;
+    private static IncrementalUpdate update;
+    private static ThreadLocal<IndexDocumentTemplate.Light> documentTemplates;
     
     public static String DBPEDIA_REDIRECTS_FILE       = null;
     public static String DBPEDIA_LABELS_FILE          = null;
     public static String DBPEDIA_DISAMBIGUATIONS_FILE = null;
     public static String SURFACE_FORMS_FILE           = null;
     public static String FILTERED_LABELS_FILE		  = null;
+    public static String INSTANCE_TYPES_FILE          = null;
+    public static String SHORT_ABSTRACTS_FILE         = null;
+    public static String LONG_ABSTRACTS_FILE          = null;
+    public static String GIVEN_UP_URIS_FILE           = null;
     
     /**
      * @param args
      * @throws IOException 
      * @throws CorruptIndexException 
+     * @throws InterruptedException 
      */
-    public static void main(String[] args) throws CorruptIndexException, IOException {
+    public static void main(String[] args) throws CorruptIndexException, IOException, InterruptedException {
         
         for (int i = 0; i < args.length ; i = i + 2) {
             
@@ -73,51 +89,46 @@ public class DBpediaLuceneIndexGeneratorLight {
             if ( args[i].equals("-g") ) GRAPH               	= args[i+1];
             if ( args[i].equals("-l") ) LANGUAGE            	= args[i+1];
 			if ( args[i].equals("-f") ) FILTER_SURFACE_FORMS	= new Boolean(args[i+1]);
+            if ( args[i].equals("-fw") ) FETCH_WORKERS          = Integer.valueOf(args[i+1]);
+            if ( args[i].equals("-iw") ) INDEX_WORKERS          = Integer.valueOf(args[i+1]);
+            if ( args[i].equals("-q") ) QUEUE_SIZE              = Integer.valueOf(args[i+1]);
+            if ( args[i].equals("-qb") ) QUERY_BATCH_SIZE       = Integer.valueOf(args[i+1]);
+            if ( args[i].equals("-m") ) BUILD_MODE              = args[i+1];
+            if ( args[i].equals("-mb") ) SORT_MEMORY_BUDGET     = Integer.valueOf(args[i+1]);
+            if ( args[i].equals("-ci") ) CHECKPOINT_INTERVAL    = Integer.valueOf(args[i+1]);
+            if ( args[i].equals("-rs") ) RESUME                 = Boolean.valueOf(args[i+1]);
+            if ( args[i].equals("-sh") ) SHARDS                 = Integer.valueOf(args[i+1]);
+            if ( args[i].equals("-ks") ) KEEP_SHARDS            = Boolean.valueOf(args[i+1]);
+            if ( args[i].equals("-u") ) UPDATE_INDEX           = Boolean.valueOf(args[i+1]);
+            if ( args[i].equals("-sp") ) SCHEMA_PROFILE         = SchemaProfile.parse(args[i+1]);
             
             DBPEDIA_REDIRECTS_FILE       = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "redirects_" + LANGUAGE + ".ttl";
             DBPEDIA_LABELS_FILE          = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "labels_" + LANGUAGE + ".ttl";
             DBPEDIA_DISAMBIGUATIONS_FILE = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "disambiguations_" + LANGUAGE + ".ttl";
             SURFACE_FORMS_FILE           = DBpediaLuceneIndexGeneratorLight.DIRECTORY + LANGUAGE + "_surface_forms.tsv";
             FILTERED_LABELS_FILE		 = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "labels_" + LANGUAGE + "_filtered.ttl";
+            INSTANCE_TYPES_FILE          = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "instance_types_" + LANGUAGE + ".ttl";
+            SHORT_ABSTRACTS_FILE         = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "short_abstracts_" + LANGUAGE + ".ttl";
+            LONG_ABSTRACTS_FILE          = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "long_abstracts_" + LANGUAGE + ".ttl";
+            GIVEN_UP_URIS_FILE           = DBpediaLuceneIndexGeneratorLight.DIRECTORY + LANGUAGE + "_given_up_uris.txt";
             
             DBpediaLuceneIndexGenerator.DBPEDIA_REDIRECTS_FILE       = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "redirects_" + LANGUAGE + ".ttl";
             DBpediaLuceneIndexGenerator.DBPEDIA_LABELS_FILE          = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "labels_" + LANGUAGE + ".ttl";
             DBpediaLuceneIndexGenerator.DBPEDIA_DISAMBIGUATIONS_FILE = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "disambiguations_" + LANGUAGE + ".ttl";
             DBpediaLuceneIndexGenerator.SURFACE_FORMS_FILE           = DBpediaLuceneIndexGeneratorLight.DIRECTORY + LANGUAGE + "_surface_forms.tsv";
+            DBpediaLuceneIndexGenerator.SURFACE_FORMS_STORE_FILE     = DBpediaLuceneIndexGeneratorLight.DIRECTORY + LANGUAGE + "_surface_forms.bin";
+            DBpediaLuceneIndexGenerator.BAD_URIS_FILE                = DBpediaLuceneIndexGeneratorLight.DIRECTORY + LANGUAGE + "_bad_uris.bin";
             DBpediaLuceneIndexGenerator.FILTERED_LABELS_FILE		 = DBpediaLuceneIndexGeneratorLight.DIRECTORY + "labels_" + LANGUAGE + "_filtered.ttl";
         }
         
-        DBpediaSpotlightSurfaceFormGenerator surfaceFormGenerator = new DBpediaSpotlightSurfaceFormGenerator();
+        DBpediaSpotlightSurfaceFormGenerator surfaceFormGenerator = new DBpediaSpotlightSurfaceFormGenerator(createExternalSorter());
         
         // we need to break here, because after the step we need to import the stuff to virtuoso
         if ( FILTER_SURFACE_FORMS ) {
             
         	System.out.println("Starting to filter labels_" + LANGUAGE + ".uri!");
-            Set<String> badUris = new HashSet<String>();
-            badUris.addAll(NtripleUtil.getSubjectsFromNTriple(DBPEDIA_REDIRECTS_FILE, ""));
-            System.out.println("Finished reading bad redirect uris!");
-            badUris.addAll(NtripleUtil.getSubjectsFromNTriple(DBPEDIA_DISAMBIGUATIONS_FILE, ""));
-            System.out.println("Finished reading bad disambiguations uris!");
-            
-            // write the file
-            BufferedFileWriter writer = FileUtil.openWriter(FILTERED_LABELS_FILE, "UTF-8", WRITER_WRITE_MODE.OVERRIDE);
-            System.out.println("Writing filtered labels file: " + FILTERED_LABELS_FILE);
-            NxParser n3Parser = NtripleUtil.openNxParser(DBPEDIA_LABELS_FILE);
-            while (n3Parser.hasNext()) {
-                
-                Node[] node = n3Parser.next();
-                String subjectUri = node[0].toString();
-                
-                if ( !badUris.contains(subjectUri) ) {
-                    
-                    writer.write(node[0].toN3() + " " + node[1].toN3() + " " + node[2].toN3() + " .");
-                }
-            }
-            
-            writer.close();
-            
-            // generate the surface forms (and save them to the file) or load them from a file
-            surfaceFormGenerator.createOrReadSurfaceForms();
+            // filter the labels and generate the surface forms (and save them to the file) in one pass over the dumps
+            surfaceFormGenerator.createFilteredLabelsAndSurfaceForms();
             
             return;
         }
@@ -128,85 +139,215 @@ public class DBpediaLuceneIndexGeneratorLight {
         System.out.println("Index-Directory: " + INDEX_DIRECTORY);
         System.out.println("SPARQL-Endpoint: " + SPARQL_ENDPOINT);
         System.out.println("GRAPH: " + GRAPH);
+        System.out.println("Build-Mode: " + BUILD_MODE);
+        System.out.println("Checkpoint-Interval: " + CHECKPOINT_INTERVAL);
+        System.out.println("Resume: " + RESUME);
+        System.out.println("Shards: " + SHARDS + (SHARDS > 1 && KEEP_SHARDS ? " (kept)" : ""));
+        System.out.println("Incremental-Update: " + UPDATE_INDEX);
+        System.out.println("Schema-Profile: " + SCHEMA_PROFILE);
+        if ( RESUME && OVERWRITE_INDEX ) throw new IllegalArgumentException("Resuming an index build needs -o false!");
+        if ( UPDATE_INDEX && (OVERWRITE_INDEX || RESUME) ) throw new IllegalArgumentException("An incremental update needs -o false and is started again instead of resumed!");
+        if ( UPDATE_INDEX && SHARDS > 1 && !KEEP_SHARDS ) throw new IllegalArgumentException("An incremental update of a sharded index needs the shards kept by the last build (-ks true)!");
         
-        DBpediaLuceneIndexGeneratorLight indexGenerator = new DBpediaLuceneIndexGeneratorLight();
+        final DBpediaLuceneIndexGeneratorLight indexGenerator = new DBpediaLuceneIndexGeneratorLight();
+        documentTemplates = IndexDocumentTemplate.createThreadLocal(IndexDocumentTemplate.Light.class, SCHEMA_PROFILE);
+        attributeQuery = new AttributeQuery(GRAPH, false, DumpDocumentAssembler.Attribute.LABEL, DumpDocumentAssembler.Attribute.TYPE,
+                DumpDocumentAssembler.Attribute.SHORT_ABSTRACT, DumpDocumentAssembler.Attribute.LONG_ABSTRACT);
         
         // create the index writer configuration and create a new index writer
-        IndexWriterConfig indexWriterConfig = new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
-        indexWriterConfig.setRAMBufferSizeMB(RAM_BUFFER_MAX_SIZE);
-        indexWriterConfig.setOpenMode(OVERWRITE_INDEX || !indexGenerator.isIndexExisting(INDEX_DIRECTORY) ? OpenMode.CREATE : OpenMode.APPEND);
-        writer = indexGenerator.createIndex(INDEX_DIRECTORY, indexWriterConfig);
+        // the label is folded to ascii, the surface forms are kept as one folded term
+        final OpenMode openMode = OVERWRITE_INDEX || !indexGenerator.isIndexExisting(INDEX_DIRECTORY) ? OpenMode.CREATE : OpenMode.APPEND;
+        writer = indexGenerator.createIndex(INDEX_DIRECTORY, new ShardedIndexWriter.ConfigFactory() {
 
-        Map<String,Set<String>> surfaceForms = surfaceFormGenerator.createOrReadSurfaceForms();
-        
-        Set<IndexDocumentLight> indexDocuments = new HashSet<IndexDocumentLight>();
+            @Override
+            public IndexWriterConfig create() {
+
+                IndexWriterConfig indexWriterConfig = new IndexWriterConfig(Version.LUCENE_40, IndexAnalyzers.createLightAnalyzer(Version.LUCENE_40));
+                indexWriterConfig.setRAMBufferSizeMB(RAM_BUFFER_MAX_SIZE);
+                indexWriterConfig.setOpenMode(openMode);
+                return indexWriterConfig;
+            }
+        });
+
+        final SurfaceFormStore surfaceForms = surfaceFormGenerator.createOrReadSurfaceForms();
+        if ( "local".equals(BUILD_MODE) ) attributeSource = createLocalSource(surfaceForms);
+        else if ( !"dump".equals(BUILD_MODE) ) {
+            
+            fetchController = new FetchController(FETCH_WORKERS, maxNrOfTries);
+            attributeSource = new SparqlEndpointSource(SPARQL_ENDPOINT, fetchController);
+        }
+        final IndexCheckpoint checkpoint = new IndexCheckpoint(writer, RESUME);
+        // compare the new release with the last build, only changed resources are written
+        if ( UPDATE_INDEX ) update = new IncrementalUpdate(writer);
         
-        // time measurements
-        int counter = 0;
-        long start = System.currentTimeMillis();
-        int total = surfaceForms.size();
+        IndexingPipeline.DocumentIndexer<IndexDocumentLight> indexer = new IndexingPipeline.DocumentIndexer<IndexDocumentLight>() {
+
+            @Override
+            public void addIndexDocuments(List<IndexDocumentLight> indexDocuments) throws IOException {
+
+                // documents after the last checkpoint might already be in the resumed index
+                List<IndexDocumentLight> newDocuments = new ArrayList<IndexDocumentLight>(indexDocuments.size());
+                for ( IndexDocumentLight indexDocument : indexDocuments )
+                    if ( !checkpoint.isIndexed(indexDocument.getUri()) ) newDocuments.add(indexDocument);
+                indexGenerator.addIndexDocuments(newDocuments);
+            }
+        };
         
-        Iterator<Map.Entry<String,Set<String>>> surfaceFormIterator = surfaceForms.entrySet().iterator();
-        while ( surfaceFormIterator.hasNext() ) {
+        IndexingPipeline<IndexDocumentLight> pipeline = new IndexingPipeline<IndexDocumentLight>(FETCH_WORKERS, INDEX_WORKERS, QUEUE_SIZE, BATCH_SIZE, QUERY_BATCH_SIZE);
+        pipeline.setResumePosition(checkpoint.getResumePosition());
+        pipeline.setCheckpoints(CHECKPOINT_INTERVAL, checkpoint);
+        checkpoint.installShutdownHook(pipeline);
+        if ( "dump".equals(BUILD_MODE) ) {
             
-            try {
-				Map.Entry<String,Set<String>> entry = surfaceFormIterator.next();
-				indexDocuments.add(indexGenerator.queryAttributesForUri(entry.getKey(), entry.getValue()));
-				
-				// improve speed through batch save
-				if ( ++counter % 10000 == 0 ) {
+            // read all attributes from the local dumps, no sparql endpoint needed
+            pipeline.run(createDumpDocuments(surfaceForms), surfaceForms.size(), indexer);
+        }
+        // the ids of the store are in key order, so a resumed run sees the resources in the same order
+        else pipeline.run(surfaceForms.size(),
+                new IndexingPipeline.DocumentFetcher<IndexDocumentLight>() {
+
+                    @Override
+                    public List<IndexDocumentLight> fetch(int from, int to) throws Exception {
+
+                        // the surface forms are only decoded for the resources being fetched
+                        Map<String,Set<String>> urisToSurfaceForms = new LinkedHashMap<String,Set<String>>();
+                        for ( int id = from; id < to; id++ ) {
+                            
+                            String uri = surfaceForms.getKey(id);
+                            // no need to query the endpoint again for resources in the resumed index
+                            if ( !checkpoint.isIndexed(URLDecoder.decode(uri, "UTF-8")) ) urisToSurfaceForms.put(uri, surfaceForms.getSurfaceForms(id));
+                        }
+                        
+                        if ( urisToSurfaceForms.isEmpty() ) return null;
+                        try {
+                            
+                            if ( urisToSurfaceForms.size() > 1 ) return indexGenerator.queryAttributesForUris(urisToSurfaceForms);
+                            
+                            Map.Entry<String,Set<String>> entry = urisToSurfaceForms.entrySet().iterator().next();
+                            IndexDocumentLight document = indexGenerator.queryAttributesForUri(entry.getKey(), entry.getValue());
+                            return document == null ? null : Collections.singletonList(document);
+                        }
+                        // the uris are reported by the fetch controller at the end
+                        catch (FetchController.FetchFailedException e) {
+                            
+                            System.out.println(e.getMessage());
+                            return null;
+                        }
+                    }
+                }, indexer);
+        
+        if ( update != null ) {
+
+            // a stopped pipeline did not see every resource of the release, so nothing is known to be removed
+            if ( !pipeline.isStopped() ) update.deleteRemoved();
+            update.report();
+            update.close();
+        }
+        checkpoint.checkpoint(pipeline.getCheckpoint());
+        checkpoint.closeWriter();
+        // the shutdown hook waits for the merge, it is not interrupted halfway
+        try {
 
-				    indexGenerator.addIndexDocuments(indexDocuments);
-				    System.out.println("Done: " + counter + "/" + total + " " + MessageFormat.format("{0,number,#.##%}", (double) counter / (double) total) + " in " + (System.currentTimeMillis() - start) + "ms" );
-				    start = System.currentTimeMillis();
-				    indexDocuments = new HashSet<IndexDocumentLight>();
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+            // the shards are either kept for a MultiReader (see ShardedIndexWriter#openReader) or merged into one index
+            if ( !KEEP_SHARDS ) writer.merge();
         }
-        // write the last few items
-        indexGenerator.addIndexDocuments(indexDocuments);
+        finally {
+
+            checkpoint.finished();
+        }
+        if ( fetchController != null ) fetchController.report(GIVEN_UP_URIS_FILE);
+    }
+
+    /**
+     * Loads the attributes of the resources to be indexed from the local
+     * dumps into an embedded model, which then answers the same queries as
+     * the endpoint would.
+     * 
+     * @param surfaceForms - the resources to be indexed
+     * @return the source
+     */
+    private static AttributeSource createLocalSource(SurfaceFormStore surfaceForms) {
         
-        writer.close();
+        Set<String> uris = new HashSet<String>();
+        SurfaceFormStore.Cursor cursor = surfaceForms.cursor();
+        while ( cursor.next() ) uris.add(cursor.getKey());
+        
+        LocalModelSource source = new LocalModelSource(uris);
+        source.load(new File(FILTERED_LABELS_FILE).exists() ? FILTERED_LABELS_FILE : DBPEDIA_LABELS_FILE);
+        source.load(INSTANCE_TYPES_FILE);
+        source.load(SHORT_ABSTRACTS_FILE);
+        source.load(LONG_ABSTRACTS_FILE);
+        System.out.println("Loaded " + source.size() + " triples into the local model");
+        
+        return source;
+    }
+    
+    private static ExternalSorter createExternalSorter() {
+        
+        return new ExternalSorter((long) SORT_MEMORY_BUDGET * 1024 * 1024, new File(DIRECTORY.isEmpty() ? "." : DIRECTORY));
     }
+    
+    /**
+     * Joins the resources to be indexed with the local dump files, the
+     * documents are assembled one at a time in subject order.
+     * 
+     * @param surfaceForms - the resources to be indexed
+     * @return the documents
+     * @throws IOException 
+     */
+    private static Iterator<IndexDocumentLight> createDumpDocuments(final SurfaceFormStore surfaceForms) throws IOException {
+        
+        // the surface form keys are used as uris by this generator
+        File resourcesFile = File.createTempFile("resources-", ".tsv", new File(DIRECTORY.isEmpty() ? "." : DIRECTORY));
+        resourcesFile.deleteOnExit();
+        BufferedFileWriter resourcesWriter = FileUtil.openWriter(resourcesFile.getAbsolutePath(), "UTF-8", WRITER_WRITE_MODE.OVERRIDE);
+        SurfaceFormStore.Cursor cursor = surfaceForms.cursor();
+        while ( cursor.next() ) resourcesWriter.write(cursor.getKey());
+        resourcesWriter.close();
+        
+        DumpDocumentAssembler assembler = new DumpDocumentAssembler(createExternalSorter());
+        assembler.read(DumpDocumentAssembler.Attribute.LABEL, new File(FILTERED_LABELS_FILE).exists() ? FILTERED_LABELS_FILE : DBPEDIA_LABELS_FILE);
+        assembler.read(DumpDocumentAssembler.Attribute.TYPE, INSTANCE_TYPES_FILE);
+        assembler.read(DumpDocumentAssembler.Attribute.SHORT_ABSTRACT, SHORT_ABSTRACTS_FILE);
+        assembler.read(DumpDocumentAssembler.Attribute.LONG_ABSTRACT, LONG_ABSTRACTS_FILE);
+        
+        return assembler.assemble(resourcesFile.getAbsolutePath(), new DumpDocumentAssembler.DocumentFactory<IndexDocumentLight>() {
 
+            @Override
+            public IndexDocumentLight create(DumpDocumentAssembler.ResourceAttributes resource) throws IOException {
+                
+                return DumpDocumentAssembler.createIndexDocumentLight(resource, surfaceForms.getSurfaceForms(resource.getKey()));
+            }
+        });
+    }
+    
 	/**
-     * Adds a set of index documents in batch mode to the index
+     * Adds a set of index documents to the index, one after another through
+     * the {@link IndexDocumentTemplate} of the calling thread.
      * Uris and image urls as well as type Uris are not analyzed.
      * Termvectors are not stored for anything. Everything else is
-     * analyzed using a standard analyzer. 
+     * analyzed using a standard analyzer, the label is folded to ascii
+     * and the surface forms are indexed as one folded term (see {@link IndexAnalyzers}).
+     * Which fields are indexed and stored depends on the {@link #SCHEMA_PROFILE}.
      * 
      * @param indexDocuments - the documents to be indexed
      * @throws CorruptIndexException - index corrupted
      * @throws IOException - error
      */
-    private void addIndexDocuments(Set<IndexDocumentLight> indexDocuments) throws CorruptIndexException, IOException {
+    private void addIndexDocuments(List<IndexDocumentLight> indexDocuments) throws CorruptIndexException, IOException {
 
-        Set<Document> luceneDocuments = new HashSet<Document>();
-        FieldType stringType = new FieldType(StringField.TYPE_STORED);
-        stringType.setStoreTermVectors(false);
-        FieldType textType = new FieldType(TextField.TYPE_STORED);
-        textType.setStoreTermVectors(false);
+        IndexDocumentTemplate.Light template = documentTemplates.get();
         for ( IndexDocumentLight indexDocument : indexDocuments ) {
-            
-            Document luceneDocument = new Document();
-            luceneDocument.add(new Field("uri", indexDocument.getUri(), stringType));
-            luceneDocument.add(new Field("label", indexDocument.getLabel(), textType));
-            luceneDocument.add(new Field("short-abstract", indexDocument.getShortAbstract(), textType));
-            luceneDocument.add(new Field("long-abstract", indexDocument.getLongAbstract(), textType));
-            for ( String type : indexDocument.getTypes() )
-                luceneDocument.add(new Field("types", type, stringType));
-            for ( String surfaceForm : indexDocument.getSurfaceForms() )
-                luceneDocument.add(new Field("surfaceForms", surfaceForm, stringType));
-                    
-            luceneDocuments.add(luceneDocument);
+
+            List<IndexableField> fields = template.fill(indexDocument);
+            if ( update == null ) writer.addDocument(indexDocument.getUri(), fields);
+            // only resources which were added or changed since the last build are written
+            else if ( update.isChanged(indexDocument.getUri(), template.getContentHash()) ) writer.updateDocument(indexDocument.getUri(), fields);
         }
-        writer.addDocuments(luceneDocuments);
     }
     
     /**
-     * Queries a configured sparql endpoint for all information a document needs
+     * Queries the attribute source (sparql endpoint or local model) for all information a document needs
      *  - rank
      *  - label
      *  - uri
@@ -216,65 +357,48 @@ public class DBpediaLuceneIndexGeneratorLight {
      * 
      * @param uri the uri of the reosurce
      * @param surfaceForms the surface forms of this resource
-     * @param language2dbpediaLinks 
-     * @return a document ready to be indexed
+     * @return a document ready to be indexed or null if the resource has no label
      * @throws Exception 
      */
     private IndexDocumentLight queryAttributesForUri(String uri, Set<String> surfaceForms) throws Exception  {
-    	String query =
-		        String.format(
-		        "SELECT ?label ?short_abstract ?long_abstract ?types " +
-		        "FROM <%s> " +
-		        "WHERE { " +
-		        "   OPTIONAL { <%s> <http://www.w3.org/2000/01/rdf-schema#label> ?label . } " +
-		        "   OPTIONAL { <%s> <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> ?types . } " +
-		        "   OPTIONAL { <%s> <http://www.w3.org/2000/01/rdf-schema#comment> ?short_abstract . } " +
-		        "   OPTIONAL { <%s> <http://dbpedia.org/ontology/abstract> ?long_abstract . } " +
-		        "}", GRAPH, uri, uri, uri, uri);
-        // execute the query
-		IndexDocumentLight document;
-		try {
-			document = new IndexDocumentLight();
-			QueryEngineHTTP qexec = new QueryEngineHTTP(SPARQL_ENDPOINT, query);
-			ResultSet result = qexec.execSelect();
-			
-			while (result.hasNext()) {
-			    
-			    QuerySolution solution = result.next();
-			    
-			    // those values do get repeated, we need them to set only one time
-			    if ( document.getUri().isEmpty() ) {
-			        
-			        document.setUri(URLDecoder.decode(uri, "UTF-8"));
-			        document.setLabel(solution.get("label").asLiteral().getLexicalForm());
-			        document.setShortAbstract(solution.get("short_abstract") != null ? solution.get("short_abstract").asLiteral().getLexicalForm() : "");
-			        document.setLongAbstract(solution.get("long_abstract") != null ? solution.get("long_abstract").asLiteral().getLexicalForm() : "");
-			        
-			    }
-			    // there might be different types
-			    if (solution.get("types") != null) document.getTypes().add(solution.get("types").toString());
-			}
-			document.setSurfaceForms(surfaceForms == null ? new HashSet<String>() : surfaceForms);
-			return document;
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.out.println(query);
-			throw e;
-		}
+        
+        DumpDocumentAssembler.ResourceAttributes resource = attributeQuery.execute(attributeSource, Collections.singleton(uri)).get(uri);
+        if ( resource == null || resource.getLabel() == null ) return null;
+        
+        return DumpDocumentAssembler.createIndexDocumentLight(resource, surfaceForms);
+    }
+    
+    /**
+     * Batched version of {@link #queryAttributesForUri(String, Set)}. All resources
+     * are fetched with a single VALUES query, the rows are then split back into
+     * one document per resource. Resources without a label are skipped.
+     * 
+     * @param urisToSurfaceForms the uris of the resources and their surface forms
+     * @return the documents ready to be indexed
+     * @throws Exception 
+     */
+    private List<IndexDocumentLight> queryAttributesForUris(Map<String,Set<String>> urisToSurfaceForms) throws Exception {
+        
+        List<IndexDocumentLight> documents = new ArrayList<IndexDocumentLight>(urisToSurfaceForms.size());
+        for ( DumpDocumentAssembler.ResourceAttributes resource : attributeQuery.execute(attributeSource, urisToSurfaceForms.keySet()).values() )
+            if ( resource.getLabel() != null && urisToSurfaceForms.containsKey(resource.getUri()) )
+                documents.add(DumpDocumentAssembler.createIndexDocumentLight(resource, urisToSurfaceForms.get(resource.getUri())));
+        
+        return documents;
     }
     
     /**
-     * Create a new filesystem lucene index
+     * Create a new filesystem lucene index, split into {@link #SHARDS} shards
      * 
      * @param absoluteFilePath - the path where to create/append the index
-     * @param indexWriterConfig - the index write configuration
+     * @param configFactory - creates the index write configuration of every shard
      * @return
      */
-    private IndexWriter createIndex(String absoluteFilePath, IndexWriterConfig indexWriterConfig) {
+    private ShardedIndexWriter createIndex(String absoluteFilePath, ShardedIndexWriter.ConfigFactory configFactory) {
 
         try {
             
-            return new IndexWriter(FSDirectory.open(new File(absoluteFilePath)), indexWriterConfig);
+            return new ShardedIndexWriter(absoluteFilePath, SHARDS, RESUME || UPDATE_INDEX, configFactory);
         }
         catch (CorruptIndexException e) {
             
@@ -1,30 +1,31 @@
 package de.aksw;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.text.Normalizer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringEscapeUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.semanticweb.yars.nx.Node;
-import org.semanticweb.yars.nx.parser.NxParser;
 
 import de.danielgerber.file.BufferedFileWriter;
 import de.danielgerber.file.FileUtil;
 import de.danielgerber.file.BufferedFileWriter.WRITER_WRITE_MODE;
-import de.danielgerber.rdf.NtripleUtil;
 
 /**
  * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
@@ -35,41 +36,199 @@ public class DBpediaSpotlightSurfaceFormGenerator {
     
     private static final int MAXIMUM_SURFACE_FORM_LENGHT    = 50;
 
-    private static List<String> LOWERCASE_STOPWORDS         = null;
+    /**
+     * Ranges of labels smaller than this are cleaned without forking further.
+     */
+    private static final int MIN_CLEANING_RANGE_SIZE        = 4096;
+    
+    /**
+     * The surface forms file has full uris like the one of DBpedia Spotlight,
+     * the store is keyed by the part after this namespace.
+     */
+    private static final String DBPEDIA_RESOURCE_NAMESPACE  = "http://dbpedia.org/resource/";
+    
+    private static final Pattern PARENTHESES_SUFFIX         = Pattern.compile(" \\(.+?\\)$");
+
+    private static Set<String> LOWERCASE_STOPWORDS          = null;
     private static final List<String> STOPWORDS             = Arrays.asList("but", "i", "a", "about", "an", "and", "are", "as", "at", "be", "by", "com", "for", "from", "how", "in", "is", "it", "of", "on", "or", "that", "the", "this", "to", "what", "when", "where", "who", "will", "with", "the", "www", "before", ",", "after", ";", "like", "and", "such");
     
+    private final ExternalSorter sorter;
+    
     /**
+     * @param sorter - used to build the bad uri filter if it is missing or outdated
+     */
+    public DBpediaSpotlightSurfaceFormGenerator(ExternalSorter sorter) {
+        
+        this.sorter = sorter;
+    }
+    
+    /**
+     * Parses the disambiguations and the redirects (in this order) in a single
+     * pass and writes the subject and object of every triple, unescaped and
+     * tab separated, to a temporary file. The file feeds both the bad uri
+     * filter and the surface forms of the redirects, so the dumps are
+     * decompressed and parsed only once and none of their triples is held in
+     * memory. Uris contain no tabs or line breaks.
      * 
+     * @return the file, in the order of the dumps
+     * @throws IOException
+     */
+    private static File writeSubjectsAndObjects() throws IOException {
+        
+        // every range is written to a part of its own, the parts are concatenated in file order
+        File directory = new File(DBpediaLuceneIndexGenerator.BAD_URIS_FILE).getAbsoluteFile().getParentFile();
+        List<File> parts = new ArrayList<File>();
+        for ( String file : Arrays.asList(DBpediaLuceneIndexGenerator.DBPEDIA_DISAMBIGUATIONS_FILE, DBpediaLuceneIndexGenerator.DBPEDIA_REDIRECTS_FILE) ) {
+            
+            ParallelNTriplesReader reader = new ParallelNTriplesReader(file);
+            final BufferedFileWriter[] writers = new BufferedFileWriter[reader.getRangeCount()];
+            for ( int range = 0; range < writers.length; range++ ) {
+                
+                File part = File.createTempFile("subjects-objects-", ".tsv", directory);
+                part.deleteOnExit();
+                parts.add(part);
+                writers[range] = FileUtil.openWriter(part.getPath(), "UTF-8", WRITER_WRITE_MODE.OVERRIDE);
+            }
+            try {
+                
+                reader.read(new ParallelNTriplesReader.TripleHandler() {
+                    
+                    @Override
+                    public void handle(ParallelNTriplesReader.Triple triple) {
+                        
+                        writers[triple.getRange()].write(triple.getSubject() + "\t" + triple.getObject());
+                    }
+                });
+            }
+            finally {
+                
+                for ( BufferedFileWriter writer : writers ) writer.close();
+            }
+            logger.info("Finished reading: " + file);
+        }
+        
+        File subjectsAndObjects = File.createTempFile("subjects-objects-", ".tsv", directory);
+        subjectsAndObjects.deleteOnExit();
+        concatenate(parts.toArray(new File[parts.size()]), subjectsAndObjects.getPath());
+        return subjectsAndObjects;
+    }
+    
+    /**
+     * Maps the bad uri filter if it is newer than the redirects and
+     * disambiguations, otherwise builds it from their subjects sorted on disk.
+     * 
+     * @param subjectsAndObjects - the parsed disambiguations and redirects, see {@link #writeSubjectsAndObjects()}
+     * @return the subjects of the disambiguations and redirects
+     * @throws IOException 
+     */
+    private BadUriFilter createOrReadBadUriFilter(File subjectsAndObjects) throws IOException {
+        
+        String filterFile = DBpediaLuceneIndexGenerator.BAD_URIS_FILE;
+        if ( DumpFiles.isOutdated(filterFile, Arrays.asList(DBpediaLuceneIndexGenerator.DBPEDIA_REDIRECTS_FILE, DBpediaLuceneIndexGenerator.DBPEDIA_DISAMBIGUATIONS_FILE)) )
+            BadUriFilter.build(filterFile, Collections.singletonList(subjectsAndObjects.getPath()), sorter);
+        return BadUriFilter.load(filterFile);
+    }
+    
+    /**
+     * 
+     * @param badUris - the subjects of the disambiguations and redirects
      * @return
-     * @throws UnsupportedEncodingException 
      */
-    private Set<String> createConceptUris() throws UnsupportedEncodingException {
+    private Set<String> createConceptUris(final BadUriFilter badUris) throws IOException {
         
-        Set<String> conceptUris = new HashSet<String>();
-        Set<String> badUris = new HashSet<String>();
-        badUris.addAll(NtripleUtil.getSubjectsFromNTriple(DBpediaLuceneIndexGenerator.DBPEDIA_REDIRECTS_FILE, ""));
-        logger.info("Finished reading redirect file for bad uri detection!");
-        badUris.addAll(NtripleUtil.getSubjectsFromNTriple(DBpediaLuceneIndexGenerator.DBPEDIA_DISAMBIGUATIONS_FILE, ""));
-        logger.info("Finished reading disambiguations file for bad uri detection!");
+        final Set<String> conceptUris = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
         
         // every uri which looks like a good uri and is not in the disambiguations or redirect files is a concept uri
-        NxParser n3Parser = NtripleUtil.openNxParser(DBpediaLuceneIndexGenerator.FILTERED_LABELS_FILE);
-        while (n3Parser.hasNext()) {
+        new ParallelNTriplesReader(DBpediaLuceneIndexGenerator.FILTERED_LABELS_FILE).read(new ParallelNTriplesReader.TripleHandler() {
+            
+            @Override
+            public void handle(ParallelNTriplesReader.Triple triple) {
+                
+                if ( isConceptUri(triple.getSubject(), badUris) ) conceptUris.add(triple.getSubject());
+            }
+        });
+        logger.info("Concept Uris construction complete! Total of: " + conceptUris.size() + " concept URIs found!");
+        return conceptUris;
+    }
+    
+    private static boolean isConceptUri(String subjectUri, BadUriFilter badUris) {
+        
+        String subjectUriWihtoutPrefix = subjectUri.substring(subjectUri.lastIndexOf("/") + 1);
+        return isGoodUri(subjectUriWihtoutPrefix) && !badUris.contains(subjectUri);
+    }
+    
+    /**
+     * Writes every label triple whose subject is neither a redirect nor a
+     * disambiguation page to the filtered labels file and collects the
+     * concept uris of the same pass, so the labels are parsed only once.
+     * 
+     * @param badUris - the subjects of the disambiguations and redirects
+     * @return the concept uris
+     */
+    private Set<String> writeFilteredLabelsAndCreateConceptUris(final BadUriFilter badUris) throws IOException {
+        
+        final Set<String> conceptUris = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+        
+        // every range is written to a part of its own, the parts are concatenated in file order
+        ParallelNTriplesReader reader = new ParallelNTriplesReader(DBpediaLuceneIndexGenerator.DBPEDIA_LABELS_FILE);
+        File directory = new File(DBpediaLuceneIndexGenerator.FILTERED_LABELS_FILE).getAbsoluteFile().getParentFile();
+        File[] parts = new File[reader.getRangeCount()];
+        final BufferedFileWriter[] writers = new BufferedFileWriter[parts.length];
+        for ( int range = 0; range < parts.length; range++ ) {
             
-            Node[] node = n3Parser.next();
-            String subjectUri = node[0].toString();
+            parts[range] = File.createTempFile("filtered-labels-", ".ttl", directory);
+            parts[range].deleteOnExit();
+            writers[range] = FileUtil.openWriter(parts[range].getPath(), "UTF-8", WRITER_WRITE_MODE.OVERRIDE);
+        }
+        
+        logger.info("Writing filtered labels file: " + DBpediaLuceneIndexGenerator.FILTERED_LABELS_FILE);
+        try {
             
-            String subjectUriWihtoutPrefix = subjectUri.substring(subjectUri.lastIndexOf("/") + 1);
+            reader.read(new ParallelNTriplesReader.TripleHandler() {
+                
+                @Override
+                public void handle(ParallelNTriplesReader.Triple triple) {
+                    
+                    String subjectUri = triple.getSubject();
+                    if ( badUris.contains(subjectUri) ) return;
+                    
+                    writers[triple.getRange()].write(triple.getLine());
+                    if ( isConceptUri(subjectUri, badUris) ) conceptUris.add(subjectUri);
+                }
+            });
+        }
+        finally {
             
-            if ( isGoodUri(subjectUriWihtoutPrefix) && !badUris.contains(subjectUri) ) conceptUris.add(subjectUri);
+            for ( BufferedFileWriter writer : writers ) writer.close();
         }
+        concatenate(parts, DBpediaLuceneIndexGenerator.FILTERED_LABELS_FILE);
+        
         logger.info("Concept Uris construction complete! Total of: " + conceptUris.size() + " concept URIs found!");
         return conceptUris;
     }
     
+    /**
+     * Writes the parts one after the other to the target and deletes them.
+     */
+    private static void concatenate(File[] parts, String target) throws IOException {
+        
+        try (FileChannel out = new FileOutputStream(target).getChannel()) {
+            
+            for ( File part : parts ) {
+                
+                try (FileChannel in = new FileInputStream(part).getChannel()) {
+                    
+                    long position = 0;
+                    while ( position < in.size() ) position += in.transferTo(position, in.size() - position, out);
+                }
+                part.delete();
+            }
+        }
+    }
+    
     private void initStopwords() {
         
-        List<String> lowerCaseStopWords = new ArrayList<String>();
+        Set<String> lowerCaseStopWords = new HashSet<String>();
         for ( String stopword : STOPWORDS ) {
             
             lowerCaseStopWords.add(stopword.toLowerCase());
@@ -78,83 +237,208 @@ public class DBpediaSpotlightSurfaceFormGenerator {
         logger.info("There were " + LOWERCASE_STOPWORDS.size() + " lowercase stopwords found.");
     }
     
-    public Map<String,Set<String>> createOrReadSurfaceForms() throws UnsupportedEncodingException {
+    /**
+     * Maps the binary surface form store if it is up to date, otherwise reads
+     * the surface forms file (or generates it if it does not exist) and writes
+     * the store next to it for the next run. Both ways key the store with
+     * {@link #toKey(String)}. A store written by an older build which kept the
+     * full uris as keys is rebuilt instead of mapped.
+     * 
+     * @return the surface forms of every resource
+     * @throws IOException
+     */
+    public SurfaceFormStore createOrReadSurfaceForms() throws IOException {
+        
+        File storeFile = new File(DBpediaLuceneIndexGenerator.SURFACE_FORMS_STORE_FILE);
+        File surfaceFormsFile = new File(DBpediaLuceneIndexGenerator.SURFACE_FORMS_FILE);
+        // an edited or regenerated tsv file wins over an older store
+        if ( storeFile.exists() && (!surfaceFormsFile.exists() || storeFile.lastModified() >= surfaceFormsFile.lastModified()) ) {
+            
+            SurfaceFormStore store = SurfaceFormStore.load(storeFile.getPath());
+            if ( hasNormalizedKeys(store) ) return store;
+            logger.info("Rebuilding the surface form store, it is keyed by full uris: " + storeFile);
+        }
+        
+        SurfaceFormStore store = surfaceFormsFile.exists() ? this.initializeSurfaceFormsFromFile() : this.createSurfaceForms();
+        store.save(storeFile.getPath());
+        return store;
+    }
+    
+    /**
+     * The preprocessing of the filter mode, reading every input file exactly
+     * once: the disambiguations and redirects are parsed into one file for
+     * both the bad uri filter and the surface forms they add, the labels are
+     * parsed for both the filtered labels file and the concept uris. Writes
+     * the filtered labels, the surface forms file and the binary surface form
+     * store.
+     * 
+     * @return the surface forms of every resource
+     * @throws IOException
+     */
+    public SurfaceFormStore createFilteredLabelsAndSurfaceForms() throws IOException {
         
-        if ( new File(DBpediaLuceneIndexGenerator.SURFACE_FORMS_FILE).exists() ) return this.initializeSurfaceFormsFromFile();
+        initStopwords();
+        File subjectsAndObjects = writeSubjectsAndObjects();
+        try {
+            
+            Set<String> conceptUris = writeFilteredLabelsAndCreateConceptUris(createOrReadBadUriFilter(subjectsAndObjects));
+            
+            SurfaceFormStore store = createSurfaceForms(conceptUris, subjectsAndObjects);
+            store.save(DBpediaLuceneIndexGenerator.SURFACE_FORMS_STORE_FILE);
+            return store;
+        }
+        finally {
+            
+            subjectsAndObjects.delete();
+        }
+    }
+    
+    private SurfaceFormStore createSurfaceForms() throws IOException {
         
         initStopwords();
-        Set<String> conceptUris = createConceptUris();
-        Map<String,Set<String>> surfaceForms = new HashMap<String,Set<String>>();
+        File subjectsAndObjects = writeSubjectsAndObjects();
+        try {
+            
+            Set<String> conceptUris = createConceptUris(createOrReadBadUriFilter(subjectsAndObjects));
+            
+            return createSurfaceForms(conceptUris, subjectsAndObjects);
+        }
+        finally {
+            
+            subjectsAndObjects.delete();
+        }
+    }
+    
+    /**
+     * @param conceptUris - the resources to generate surface forms for
+     * @param subjectsAndObjects - the parsed disambiguations and redirects, see {@link #writeSubjectsAndObjects()}
+     * @return the surface forms, which are also written to the surface forms file
+     * @throws IOException 
+     */
+    private SurfaceFormStore createSurfaceForms(Set<String> conceptUris, File subjectsAndObjects) throws IOException {
+        
+        SurfaceFormStore.Builder surfaceForms = new SurfaceFormStore.Builder();
         
         // first add all uris of the concept uris
-        for ( String uri : conceptUris ) 
-            addSurfaceForm(surfaceForms, uri, uri.substring(uri.lastIndexOf("/") + 1));
-                
+        String[] keys = conceptUris.toArray(new String[conceptUris.size()]);
+        String[] labels = new String[keys.length];
+        for ( int i = 0; i < keys.length; i++ ) {
+            
+            labels[i] = keys[i].substring(keys[i].lastIndexOf("/") + 1);
+            keys[i] = toKey(keys[i]);
+        }
+        addSurfaceForms(surfaceForms, keys, labels);
 
         logger.info("Finished adding all conceptUris: " + surfaceForms.size());
         
-        List<String[]> subjectToObject = NtripleUtil.getSubjectAndObjectsFromNTriple(DBpediaLuceneIndexGenerator.DBPEDIA_DISAMBIGUATIONS_FILE, "");
-        subjectToObject.addAll(NtripleUtil.getSubjectAndObjectsFromNTriple(DBpediaLuceneIndexGenerator.DBPEDIA_REDIRECTS_FILE, ""));
-        
-        for ( String[] subjectAndObject : subjectToObject ) {
-            
-            String object = subjectAndObject[1];
-            String subject = subjectAndObject[0];
+        List<String> objects = new ArrayList<String>();
+        List<String> subjectLabels = new ArrayList<String>();
+        // the label of every disambiguation or redirect page is a surface form of the concept it points to
+        try (FastTSVReader reader = new FastTSVReader(subjectsAndObjects)) {
             
-            if ( conceptUris.contains(object) && !object.contains("%") ) 
-                addSurfaceForm(surfaceForms, object, subject.substring(subject.lastIndexOf("/") + 1));
+            while ( reader.next() ) {
+                
+                if ( reader.getFieldCount() < 2 ) continue;
+                String object = reader.getString(1);
+                if ( conceptUris.contains(object) && !object.contains("%") ) {
+                    
+                    String subject = reader.getString(0);
+                    objects.add(toKey(object));
+                    subjectLabels.add(subject.substring(subject.lastIndexOf("/") + 1));
+                }
+            }
         }
+        addSurfaceForms(surfaceForms, objects.toArray(new String[objects.size()]), subjectLabels.toArray(new String[subjectLabels.size()]));
+        SurfaceFormStore store = surfaceForms.build();
         logger.info("Finished generation of surface forms.");
         
-        // write the file
+        // write the file, with the full uris again
         BufferedFileWriter writer = FileUtil.openWriter(DBpediaLuceneIndexGenerator.SURFACE_FORMS_FILE, "UTF-8", WRITER_WRITE_MODE.OVERRIDE);
-        for (Map.Entry<String, Set<String>> entry : surfaceForms.entrySet()) 
-            writer.write(entry.getKey() + "\t" + StringUtils.join(addNonAccentVersion(entry.getValue()), "\t"));
+        StringBuilder line = new StringBuilder();
+        SurfaceFormStore.Cursor cursor = store.cursor();
+        while ( cursor.next() ) {
+            
+            line.setLength(0);
+            if ( !cursor.getKey().startsWith("http://") ) line.append(DBPEDIA_RESOURCE_NAMESPACE);
+            writer.write(cursor.appendTo(line).toString());
+        }
         
         writer.close();
         logger.info("Finished writing of surface forms to disk.");
         
-        return surfaceForms;
+        return store;
     }
     
-    private static Set<String> addNonAccentVersion(Set<String> surfaceForms) {
-    	
-    	// remove all the accents in the surface forms and add that new label
-        Set<String> normalizedLabels = new HashSet<String>();
-        for ( String surfaceForm : surfaceForms) {
-        	
-    	    String normalized = Normalizer.normalize(surfaceForm, Normalizer.Form.NFD);
-    	    normalized = normalized.replaceAll("\\p{InCombiningDiacriticalMarks}+", "");
-    	    if ( !normalized.equals(surfaceForm) ) normalizedLabels.add(normalized);
+    /**
+     * Cleans the labels on all cores and then adds every good surface form.
+     * Accents are kept, they are folded by the analyzer of the index (see
+     * {@link IndexAnalyzers}). The cleaned labels are added in the order of
+     * the input, so the result is exactly the same as if the labels were
+     * cleaned one after the other.
+     * 
+     * @param surfaceForms - the surface forms collected so far
+     * @param keys - the resource of every label
+     * @param labels - the raw labels
+     */
+    private static void addSurfaceForms(SurfaceFormStore.Builder surfaceForms, String[] keys, String[] labels) {
+        
+        String[] cleaned = new String[labels.length];
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            
+            pool.invoke(new CleaningTask(labels, cleaned, 0, labels.length));
+        }
+        finally {
+            
+            pool.shutdown();
         }
-        surfaceForms.addAll(normalizedLabels);
         
-		return surfaceForms;
-	}
+        for ( int i = 0; i < labels.length; i++ )
+            if ( cleaned[i] != null ) surfaceForms.add(keys[i], cleaned[i]);
+    }
     
-	private static void addSurfaceForm(Map<String, Set<String>> surfaceForms, String key, String value) {
-
-        // clean and URL decode, whitespace removal
-        String newSurfaceForm =  createCleanSurfaceForm(value);
-        if ( newSurfaceForm != null ) {
+    /**
+     * Cleans a range of labels, a rejected label leaves a null behind.
+     */
+    private static class CleaningTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        private final String[] labels;
+        private final String[] cleaned;
+        private final int from;
+        private final int to;
+        
+        CleaningTask(String[] labels, String[] cleaned, int from, int to) {
+            
+            this.labels = labels;
+            this.cleaned = cleaned;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
             
-            if ( surfaceForms.containsKey(key) ) surfaceForms.get(key).add(newSurfaceForm);
-            else {
+            if ( to - from > MIN_CLEANING_RANGE_SIZE ) {
                 
-                Set<String> sfList = new HashSet<String>();
-                sfList.add(newSurfaceForm);
-                surfaceForms.put(key, sfList);
+                int middle = (from + to) >>> 1;
+                invokeAll(new CleaningTask(labels, cleaned, from, middle), new CleaningTask(labels, cleaned, middle, to));
+                return;
             }
+            
+            // clean and URL decode, whitespace removal
+            for ( int i = from; i < to; i++ ) cleaned[i] = createCleanSurfaceForm(labels[i]);
         }
     }
-
+    
     private static String createCleanSurfaceForm(String label) {
 
         try {
             
             String newLabel = URLDecoder.decode(label, "UTF-8");
-            newLabel = newLabel.replaceAll("_", " ").replaceAll(" +", " ").trim();
-            newLabel = newLabel.replaceAll(" \\(.+?\\)$", "");
+            newLabel = collapseSpaces(newLabel.replace('_', ' ')).trim();
+            // the pattern can only match if there is an opening bracket after a space
+            if ( newLabel.indexOf(" (") >= 0 ) newLabel = PARENTHESES_SUFFIX.matcher(newLabel).replaceAll("");
             
             return isGoodSurfaceForm(newLabel) ? newLabel : null;
         }
@@ -172,6 +456,36 @@ public class DBpediaSpotlightSurfaceFormGenerator {
             throw new RuntimeException(error, e);
         }
     }
+    
+    /**
+     * Same as replaceAll(" +", " ").
+     */
+    private static String collapseSpaces(String value) {
+        
+        if ( value.indexOf("  ") < 0 ) return value;
+        
+        StringBuilder collapsed = new StringBuilder(value.length());
+        for ( int i = 0; i < value.length(); i++ ) {
+            
+            char c = value.charAt(i);
+            if ( c != ' ' || i == 0 || value.charAt(i - 1) != ' ' ) collapsed.append(c);
+        }
+        return collapsed.toString();
+    }
+    
+    /**
+     * Same as matches("^[\\W\\d]+$"): not empty and no ascii letter or underscore.
+     */
+    private static boolean hasNoWordLetter(String value) {
+        
+        if ( value.isEmpty() ) return false;
+        for ( int i = 0; i < value.length(); i++ ) {
+            
+            char c = value.charAt(i);
+            if ( (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' ) return false;
+        }
+        return true;
+    }
 
     /**
      * 
@@ -180,9 +494,9 @@ public class DBpediaSpotlightSurfaceFormGenerator {
      */
     private static boolean isGoodUri(String uri) {
 
-        if ( uri.contains("Liste_") || uri.contains("(Begriffsklärung)") || uri.contains("List_of_") || uri.contains("(Disambiguation)") || uri.contains("/") || uri.contains("%23") || uri.matches("^[\\W\\d]+$") ) {
+        if ( uri.contains("Liste_") || uri.contains("(Begriffsklärung)") || uri.contains("List_of_") || uri.contains("(Disambiguation)") || uri.contains("/") || uri.contains("%23") || hasNoWordLetter(uri) ) {
             
-            logger.log(Level.FINEST, "Uri: <" + uri + "> is not a good uri! / or %23 or regex");
+            if ( logger.isLoggable(Level.FINEST) ) logger.log(Level.FINEST, "Uri: <" + uri + "> is not a good uri! / or %23 or regex");
             return false;
         }
         return true;
@@ -191,54 +505,87 @@ public class DBpediaSpotlightSurfaceFormGenerator {
     private static boolean isGoodSurfaceForm(String surfaceForm) {
         
         if ( surfaceForm.length() > MAXIMUM_SURFACE_FORM_LENGHT 
-                || surfaceForm.matches("^[\\W\\d]+$")) {
+                || hasNoWordLetter(surfaceForm)) {
             
-            logger.log(Level.FINEST, "Surfaceform: " + surfaceForm +  " is not a good surface form because its too long or regex match.");
+            if ( logger.isLoggable(Level.FINEST) ) logger.log(Level.FINEST, "Surfaceform: " + surfaceForm +  " is not a good surface form because its too long or regex match.");
             return false;
         }
         
-        int i = 0;
-        for ( String token : surfaceForm.toLowerCase().split(" ") ) {
-            
-            // current token is not a stopword
-            if ( !LOWERCASE_STOPWORDS.contains(token) ) i++;
-        }
-        // at least one non stop word found
-        if ( i > 0 ) return true;
+        // at least one non stop word found, the tokens are the ones of split(" ")
+        if ( hasNonStopword(surfaceForm.toLowerCase()) ) return true;
         else {
             
-            logger.log(Level.FINEST, "Surfaceform: " + surfaceForm +  " is not a good surface form because it contains only stop words.");
+            if ( logger.isLoggable(Level.FINEST) ) logger.log(Level.FINEST, "Surfaceform: " + surfaceForm +  " is not a good surface form because it contains only stop words.");
             return false;
         }
     }
     
-    private Map<String,Set<String>> initializeSurfaceFormsFromFile() {
+    /**
+     * Scans the tokens between single spaces like split(" "), which keeps
+     * leading and inner empty tokens (they are no stopwords) but drops the
+     * trailing ones, and returns the whole string if it is empty.
+     */
+    private static boolean hasNonStopword(String lowerCaseSurfaceForm) {
+        
+        if ( lowerCaseSurfaceForm.isEmpty() ) return true;
+        
+        boolean emptyToken = false;
+        int start = 0;
+        while ( start <= lowerCaseSurfaceForm.length() ) {
+            
+            int end = lowerCaseSurfaceForm.indexOf(' ', start);
+            if ( end < 0 ) end = lowerCaseSurfaceForm.length();
+            
+            if ( end == start ) emptyToken = true;
+            // an empty token only counts if a non empty one follows
+            else if ( emptyToken || !LOWERCASE_STOPWORDS.contains(lowerCaseSurfaceForm.substring(start, end)) ) return true;
+            start = end + 1;
+        }
+        return false;
+    }
+    
+    /**
+     * The keys are sorted and either all of them have the namespace or none,
+     * so the first one tells.
+     */
+    private static boolean hasNormalizedKeys(SurfaceFormStore store) {
+        
+        return store.size() == 0 || toKey(store.getKey(0)).equals(store.getKey(0));
+    }
+    
+    /**
+     * @param uri - the uri of a resource
+     * @return the key of the resource in the surface form store, the uri without the namespace of the english dbpedia
+     */
+    static String toKey(String uri) {
+        
+        return uri.replace("http://en.", "http://").replace(DBPEDIA_RESOURCE_NAMESPACE, "");
+    }
+    
+    private SurfaceFormStore initializeSurfaceFormsFromFile() {
         logger.info("Intializing surface forms from file...");
-        Map<String,Set<String>> urisToLabels = new HashMap<String,Set<String>>(); 
+        SurfaceFormStore.Builder urisToLabels = new SurfaceFormStore.Builder(); 
         
-        // initialize the surface forms from dbpedia spotlight 
-		try(TSVReader tsvReader = new TSVReader(new File(DBpediaLuceneIndexGenerator.SURFACE_FORMS_FILE));) {
-			String[] tokens;
+        // initialize the surface forms from dbpedia spotlight, the surface forms are copied straight from the reader's buffer
+		try(FastTSVReader tsvReader = new FastTSVReader(new File(DBpediaLuceneIndexGenerator.SURFACE_FORMS_FILE));) {
 			String uri;
-			Set<String> filteredSurfaceForms;
-			while(tsvReader.hasNextTokens()){
-				tokens = tsvReader.nextTokens();
-				uri = tokens[0];
-				filteredSurfaceForms = new HashSet<String>();
-				String surfaceForm;
-				for (int i = 1; i < tokens.length; i++) {
-					surfaceForm = tokens[i];
-					if ( surfaceForm.length() <= MAXIMUM_SURFACE_FORM_LENGHT ) filteredSurfaceForms.add(surfaceForm);
+			while(tsvReader.next()){
+				uri = toKey(tsvReader.getString(0));
+				urisToLabels.add(uri);
+				CharSequence surfaceForm;
+				for (int i = 1; i < tsvReader.getFieldCount(); i++) {
+					surfaceForm = tsvReader.getField(i);
+					if ( surfaceForm.length() > 0 && surfaceForm.length() <= MAXIMUM_SURFACE_FORM_LENGHT ) urisToLabels.add(uri, surfaceForm);
 		        }
-				urisToLabels.put(uri.replace("http://en.", "http://").replace("http://dbpedia.org/resource/", ""), filteredSurfaceForms);
 			}
 		}
 		catch(IOException e)
 		{
 			e.printStackTrace();
 		}
-		logger.info("Finished intializing surface forms! Found " + urisToLabels.size() + " dbpedia spotlight surfaceforms in file");
+		SurfaceFormStore surfaceForms = urisToLabels.build();
+		logger.info("Finished intializing surface forms! Found " + surfaceForms.size() + " dbpedia spotlight surfaceforms in file");
 		//for(String uri:urisToLabels.keySet()) ... "http://dbpedia.org/resource/"
-		return urisToLabels;
+		return surfaceForms;
     }
 }
@@ -0,0 +1,327 @@
+package de.aksw;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.semanticweb.yars.nx.Literal;
+import org.semanticweb.yars.nx.Node;
+import org.semanticweb.yars.nx.parser.NxParser;
+import org.semanticweb.yars.nx.parser.ParseException;
+
+/**
+ * Creates index documents directly from the local DBpedia n-triple dumps,
+ * without importing them into a triple store and querying them back out.
+ *
+ * The list of resources to index and every dump file are sorted by subject
+ * with an {@link ExternalSorter} and then merge joined, so only the triples of
+ * one resource are in memory at any time, however large the language edition is.
+ * Single valued attributes keep the first value found, just like the SPARQL
+ * based generators.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class DumpDocumentAssembler {
+
+	private static final Logger logger = Logger.getLogger("DumpDocumentAssembler");
+
+	/**
+	 * The attributes which can be read from the dumps and the predicate they are read from.
+	 */
+	public enum Attribute {
+
+		LABEL("http://www.w3.org/2000/01/rdf-schema#label"),
+		IMAGE("http://dbpedia.org/ontology/thumbnail"),
+		TYPE("http://www.w3.org/1999/02/22-rdf-syntax-ns#type"),
+		SHORT_ABSTRACT("http://www.w3.org/2000/01/rdf-schema#comment"),
+		LONG_ABSTRACT("http://dbpedia.org/ontology/abstract");
+
+		private final String predicate;
+
+		private Attribute(String predicate) {
+
+			this.predicate = predicate;
+		}
+
+		public String getPredicate() {
+
+			return predicate;
+		}
+	}
+
+	/**
+	 * Creates the document for one resource, returns null if the resource should be skipped.
+	 */
+	public interface DocumentFactory<D> {
+
+		D create(ResourceAttributes resource) throws IOException;
+	}
+
+	private final ExternalSorter sorter;
+	private final Map<Attribute,String> dumpFiles = new LinkedHashMap<Attribute,String>();
+
+	/**
+	 * @param sorter - used to sort the resources and the dump files by subject
+	 */
+	public DumpDocumentAssembler(ExternalSorter sorter) {
+
+		this.sorter = sorter;
+	}
+
+	/**
+	 * Registers the dump file the attribute is read from.
+	 *
+	 * @param attribute - the attribute to read
+	 * @param dumpFile - the n-triple file containing the attribute
+	 */
+	public void read(Attribute attribute, String dumpFile) {
+
+		if ( !DumpFiles.exists(dumpFile) ) {
+
+			logger.warning("Dump file: " + dumpFile + " does not exist, no " + attribute + " values will be indexed!");
+			return;
+		}
+		dumpFiles.put(attribute, dumpFile);
+	}
+
+	/**
+	 * Sorts all inputs and returns the documents in subject order. Resources
+	 * without a label are skipped.
+	 *
+	 * @param resourcesFile - tab separated lines of the resource uri (as in the dumps) and the key the factory gets handed
+	 * @param factory - creates the documents
+	 * @return the documents, the iterator throws a RuntimeException if reading the sorted files fails
+	 * @throws IOException
+	 */
+	public <D> Iterator<D> assemble(String resourcesFile, final DocumentFactory<D> factory) throws IOException {
+
+		List<File> sortedFiles = new ArrayList<File>();
+		List<ExternalSorter.KeyExtractor> keyExtractors = new ArrayList<ExternalSorter.KeyExtractor>();
+		final List<Attribute> attributes = new ArrayList<Attribute>(dumpFiles.keySet());
+
+		sortedFiles.add(sorter.sort(resourcesFile, ExternalSorter.TSV_FIRST_COLUMN));
+		keyExtractors.add(ExternalSorter.TSV_FIRST_COLUMN);
+		for ( Attribute attribute : attributes ) {
+
+			logger.info("Sorting " + attribute + " values from: " + dumpFiles.get(attribute));
+			sortedFiles.add(sorter.sort(dumpFiles.get(attribute), ExternalSorter.NTRIPLE_SUBJECT));
+			keyExtractors.add(ExternalSorter.NTRIPLE_SUBJECT);
+		}
+		final SortedMergeJoin join = new SortedMergeJoin(sortedFiles, keyExtractors);
+
+		return new Iterator<D>() {
+
+			private D next = null;
+
+			@Override
+			public boolean hasNext() {
+
+				try {
+
+					while ( next == null && join.next() ) {
+
+						// inner join on the resources to index, all attributes are optional
+						List<String> resourceLines = join.getLines(0);
+						if ( resourceLines.isEmpty() ) continue;
+
+						String line = resourceLines.get(0);
+						int tab = line.indexOf('\t');
+						ResourceAttributes resource = new ResourceAttributes(join.getKey(), tab < 0 ? join.getKey() : line.substring(tab + 1));
+
+						for ( int i = 0; i < attributes.size(); i++ )
+							for ( String tripleLine : join.getLines(i + 1) ) resource.set(attributes.get(i), tripleLine);
+
+						if ( resource.label != null ) next = factory.create(resource);
+					}
+					if ( next == null ) join.close();
+					return next != null;
+				}
+				catch (IOException e) {
+
+					e.printStackTrace();
+					throw new RuntimeException("Could not read sorted dump files", e);
+				}
+			}
+
+			@Override
+			public D next() {
+
+				if ( !hasNext() ) throw new NoSuchElementException();
+				D document = next;
+				next = null;
+				return document;
+			}
+
+			@Override
+			public void remove() {
+
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @param resource - the attributes of the resource
+	 * @param surfaceForms - the surface forms of the resource
+	 * @param language2dbpediaLinks - the inter language links
+	 * @param inboundLinkCounter - the source of the disambiguation score, may be null
+	 * @param pageRank - the source of the page rank, may be null
+	 * @return the document
+	 * @throws UnsupportedEncodingException
+	 */
+	public static IndexDocument createIndexDocument(ResourceAttributes resource, Set<String> surfaceForms, Map<String,String> language2dbpediaLinks,
+			InboundLinkCounter inboundLinkCounter, PageRank pageRank) throws UnsupportedEncodingException {
+
+		String uri = resource.getUri();
+		IndexDocument document = new IndexDocument();
+		document.setUri(URLDecoder.decode(uri, "UTF-8"));
+		document.setLabel(resource.getLabel());
+		document.setImageUri(resource.getImageUrl());
+		document.setShortAbstract(resource.getShortAbstract());
+		document.setCanonicalDBpediaUri(language2dbpediaLinks.containsKey(uri) ? language2dbpediaLinks.get(uri) : "");
+		if ( inboundLinkCounter != null ) document.setDisambiguationScore(inboundLinkCounter.getAprioriScore(uri));
+		if ( pageRank != null ) document.setPageRank(pageRank.getPageRank(uri));
+		document.getTypes().addAll(resource.getTypes());
+		document.setSurfaceForms(surfaceForms == null ? new HashSet<String>() : surfaceForms);
+
+		return document;
+	}
+
+	/**
+	 * @param resource - the attributes of the resource
+	 * @param surfaceForms - the surface forms of the resource
+	 * @return the document
+	 * @throws UnsupportedEncodingException
+	 */
+	public static IndexDocumentLight createIndexDocumentLight(ResourceAttributes resource, Set<String> surfaceForms) throws UnsupportedEncodingException {
+
+		IndexDocumentLight document = new IndexDocumentLight();
+		document.setUri(URLDecoder.decode(resource.getUri(), "UTF-8"));
+		document.setLabel(resource.getLabel());
+		document.setShortAbstract(resource.getShortAbstract());
+		document.setLongAbstract(resource.getLongAbstract());
+		document.getTypes().addAll(resource.getTypes());
+		document.setSurfaceForms(surfaceForms == null ? new HashSet<String>() : surfaceForms);
+
+		return document;
+	}
+
+	/**
+	 * The values found for one resource.
+	 */
+	public static class ResourceAttributes {
+
+		private final String uri;
+		private final String key;
+		private String label;
+		private String imageUrl;
+		private String shortAbstract;
+		private String longAbstract;
+		private int rank = 0;
+		private final Set<String> types = new HashSet<String>(4);
+
+		ResourceAttributes(String uri, String key) {
+
+			this.uri = uri;
+			this.key = key;
+		}
+
+		private void set(Attribute attribute, String tripleLine) {
+
+			Node[] node;
+			try {
+
+				node = NxParser.parseNodes(tripleLine);
+			}
+			catch (ParseException e) {
+
+				logger.warning("Could not parse triple: " + tripleLine);
+				return;
+			}
+			if ( node.length < 3 || !attribute.getPredicate().equals(node[1].toString()) ) return;
+			add(attribute, node[2] instanceof Literal ? ((Literal) node[2]).getUnescapedData() : node[2].toString());
+		}
+
+		/**
+		 * Single valued attributes keep the first value, types are collected.
+		 *
+		 * @param attribute - the attribute
+		 * @param value - the lexical form of a literal or the uri of a resource
+		 */
+		void add(Attribute attribute, String value) {
+
+			switch ( attribute ) {
+
+				case LABEL:				if ( label == null ) label = value; break;
+				case IMAGE:				if ( imageUrl == null ) imageUrl = value; break;
+				case SHORT_ABSTRACT:	if ( shortAbstract == null ) shortAbstract = value; break;
+				case LONG_ABSTRACT:		if ( longAbstract == null ) longAbstract = value; break;
+				case TYPE:				types.add(value); break;
+				default: throw new IllegalArgumentException("Unknown attribute: " + attribute);
+			}
+		}
+
+		/**
+		 * @return the uri of the resource as found in the dumps
+		 */
+		public String getUri() {
+
+			return uri;
+		}
+
+		/**
+		 * @return the second column of the resources file
+		 */
+		public String getKey() {
+
+			return key;
+		}
+
+		public String getLabel() {
+
+			return label;
+		}
+
+		public String getImageUrl() {
+
+			return imageUrl != null ? imageUrl : "";
+		}
+
+		public String getShortAbstract() {
+
+			return shortAbstract != null ? shortAbstract : "";
+		}
+
+		public String getLongAbstract() {
+
+			return longAbstract != null ? longAbstract : "";
+		}
+
+		public Set<String> getTypes() {
+
+			return types;
+		}
+
+		/**
+		 * @return the rank reported by the triple store, 0 if it was not asked for
+		 */
+		public int getRank() {
+
+			return rank;
+		}
+
+		void setRank(int rank) {
+
+			this.rank = rank;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package de.aksw;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.semanticweb.yars.nx.parser.NxParser;
+
+/**
+ * Opens the dump files whether they were unpacked or not, so the .bz2 files
+ * downloaded from DBpedia can be read directly.
+ *
+ * A dump is referred to by its uncompressed name (e.g. labels_en.ttl). If that
+ * file does not exist, labels_en.ttl.bz2 and then labels_en.ttl.gz are tried.
+ * Bzip2 files are decompressed on all cores by a {@link ParallelBZip2InputStream},
+ * gzip files by a single {@link GzipCompressorInputStream}.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class DumpFiles {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @param dumpFile - the uncompressed name of the dump
+	 * @return the file which is read for the dump, the uncompressed name if none of them exists
+	 */
+	public static File resolve(String dumpFile) {
+
+		File file = new File(dumpFile);
+		if ( file.exists() ) return file;
+		for ( String suffix : new String[]{ ".bz2", ".gz" } ) {
+
+			File compressed = new File(dumpFile + suffix);
+			if ( compressed.exists() ) return compressed;
+		}
+		return file;
+	}
+
+	/**
+	 * @param dumpFile - the uncompressed name of the dump
+	 * @return true if the dump exists unpacked or compressed
+	 */
+	public static boolean exists(String dumpFile) {
+
+		return resolve(dumpFile).exists();
+	}
+
+	/**
+	 * @param derivedFile - a file computed from the dumps
+	 * @param dumpFiles - the uncompressed names of the dumps, missing ones are ignored
+	 * @return true if the file does not exist or is older than one of the dumps, e.g. of a newly downloaded release
+	 */
+	public static boolean isOutdated(String derivedFile, List<String> dumpFiles) {
+
+		File file = new File(derivedFile);
+		if ( !file.exists() ) return true;
+		for ( String dumpFile : dumpFiles )
+			if ( file.lastModified() < resolve(dumpFile).lastModified() ) return true;
+
+		return false;
+	}
+
+	/**
+	 * @param dumpFile - the uncompressed name of the dump
+	 * @return the uncompressed content of the dump
+	 * @throws IOException
+	 */
+	public static InputStream open(String dumpFile) throws IOException {
+
+		File file = resolve(dumpFile);
+		InputStream in = new FileInputStream(file);
+		try {
+
+			if ( file.getName().endsWith(".bz2") ) return new ParallelBZip2InputStream(new BufferedInputStream(in, BUFFER_SIZE));
+			if ( file.getName().endsWith(".gz") ) return new BufferedInputStream(new GzipCompressorInputStream(new BufferedInputStream(in, BUFFER_SIZE), true), BUFFER_SIZE);
+			return in;
+		}
+		catch (IOException e) {
+
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param dumpFile - the uncompressed name of the dump
+	 * @return a UTF-8 reader of the uncompressed content
+	 * @throws IOException
+	 */
+	public static BufferedReader openReader(String dumpFile) throws IOException {
+
+		return new BufferedReader(new InputStreamReader(open(dumpFile), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	/**
+	 * Same as {@link de.danielgerber.rdf.NtripleUtil#openNxParser(String)}, but for compressed dumps as well.
+	 *
+	 * @param dumpFile - the uncompressed name of the dump
+	 * @return a parser over the uncompressed content
+	 */
+	public static NxParser openNxParser(String dumpFile) {
+
+		try {
+
+			return new NxParser(open(dumpFile), false);
+		}
+		catch (IOException e) {
+
+			throw new RuntimeException("Could not parse file " + dumpFile, e);
+		}
+	}
+}
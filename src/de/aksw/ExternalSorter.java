@@ -0,0 +1,285 @@
+package de.aksw;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+/**
+ * Sorts line based files (n-triples, tsv) by a key with a fixed memory budget.
+ *
+ * The input is read in runs which fit into the budget, every run is sorted in
+ * memory and spilled to a temporary file, the runs are then k-way merged into
+ * the output. Lines with the same key keep no particular order among each other
+ * but are always sorted by their full text, so the output is deterministic.
+ *
+ * Files sorted with the same key extractor can be joined with {@link SortedMergeJoin}.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class ExternalSorter {
+
+	private static final Logger logger = Logger.getLogger("ExternalSorter");
+
+	/**
+	 * Maximum number of runs merged at once, more runs are merged in several passes.
+	 */
+	private static final int MAX_FAN_IN = 128;
+
+	/**
+	 * Rough per line overhead of the String, its char array and the list entry.
+	 */
+	private static final int LINE_OVERHEAD_IN_BYTES = 96;
+
+	/**
+	 * Extracts the sort key of a line.
+	 */
+	public interface KeyExtractor {
+
+		/**
+		 * @return the key or null if the line should be dropped (comments, empty lines)
+		 */
+		String getKey(String line);
+	}
+
+	/**
+	 * The subject of an n-triple line, without the angle brackets.
+	 */
+	public static final KeyExtractor NTRIPLE_SUBJECT = new KeyExtractor() {
+
+		@Override
+		public String getKey(String line) {
+
+			if ( line.isEmpty() || line.charAt(0) == '#' ) return null;
+			int end = line.indexOf(' ');
+			if ( end < 0 ) return null;
+			return line.charAt(0) == '<' && line.charAt(end - 1) == '>' ? line.substring(1, end - 1) : line.substring(0, end);
+		}
+	};
+
+	/**
+	 * The first column of a tab separated line.
+	 */
+	public static final KeyExtractor TSV_FIRST_COLUMN = new KeyExtractor() {
+
+		@Override
+		public String getKey(String line) {
+
+			if ( line.isEmpty() ) return null;
+			int end = line.indexOf('\t');
+			return end < 0 ? line : line.substring(0, end);
+		}
+	};
+
+	private final long memoryBudgetInBytes;
+	private final File temporaryDirectory;
+
+	/**
+	 * @param memoryBudgetInBytes - the approximate heap used for one run
+	 * @param temporaryDirectory - where the runs are spilled to, null for the default temp directory
+	 */
+	public ExternalSorter(long memoryBudgetInBytes, File temporaryDirectory) {
+
+		if ( memoryBudgetInBytes < 1024 * 1024 ) throw new IllegalArgumentException("The memory budget needs to be at least 1MB!");
+		this.memoryBudgetInBytes = memoryBudgetInBytes;
+		this.temporaryDirectory = temporaryDirectory;
+	}
+
+	/**
+	 * Sorts the input into a temporary file which is deleted on exit.
+	 *
+	 * @param inputFile - the file to sort
+	 * @param keyExtractor - the sort key
+	 * @return the sorted file
+	 * @throws IOException
+	 */
+	public File sort(String inputFile, KeyExtractor keyExtractor) throws IOException {
+
+		File output = createTemporaryFile("sorted");
+		sort(inputFile, output, keyExtractor);
+		return output;
+	}
+
+	/**
+	 * Sorts the input into the output file.
+	 *
+	 * @param inputFile - the file to sort
+	 * @param outputFile - the sorted file, will be overwritten
+	 * @param keyExtractor - the sort key
+	 * @throws IOException
+	 */
+	public void sort(String inputFile, File outputFile, KeyExtractor keyExtractor) throws IOException {
+
+		long start = System.currentTimeMillis();
+		List<File> runs = createSortedRuns(inputFile, keyExtractor);
+		logger.info("Created " + runs.size() + " sorted runs for: " + inputFile + " in " + (System.currentTimeMillis() - start) + "ms");
+
+		while ( runs.size() > MAX_FAN_IN ) {
+
+			List<File> mergedRuns = new ArrayList<File>();
+			for ( int i = 0; i < runs.size(); i += MAX_FAN_IN ) {
+
+				File mergedRun = createTemporaryFile("run");
+				merge(runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size())), mergedRun, keyExtractor);
+				mergedRuns.add(mergedRun);
+			}
+			runs = mergedRuns;
+		}
+		merge(runs, outputFile, keyExtractor);
+		logger.info("Finished sorting: " + inputFile + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private List<File> createSortedRuns(String inputFile, KeyExtractor keyExtractor) throws IOException {
+
+		List<File> runs = new ArrayList<File>();
+		List<KeyedLine> run = new ArrayList<KeyedLine>();
+		long runSize = 0;
+
+		try (BufferedReader reader = DumpFiles.openReader(inputFile)) {
+
+			String line;
+			while ( (line = reader.readLine()) != null ) {
+
+				String key = keyExtractor.getKey(line);
+				if ( key == null ) continue;
+
+				run.add(new KeyedLine(key, line));
+				runSize += LINE_OVERHEAD_IN_BYTES + 2L * (line.length() + key.length());
+				if ( runSize >= memoryBudgetInBytes ) {
+
+					runs.add(spill(run));
+					run.clear();
+					runSize = 0;
+				}
+			}
+		}
+		// also write empty runs, so that empty inputs produce empty outputs
+		if ( !run.isEmpty() || runs.isEmpty() ) runs.add(spill(run));
+
+		return runs;
+	}
+
+	private File spill(List<KeyedLine> run) throws IOException {
+
+		Collections.sort(run, KEYED_LINE_ORDER);
+		File runFile = createTemporaryFile("run");
+		try (Writer writer = openWriter(runFile)) {
+
+			for ( KeyedLine keyedLine : run ) writer.write(keyedLine.line + "\n");
+		}
+		return runFile;
+	}
+
+	private void merge(List<File> runs, File outputFile, KeyExtractor keyExtractor) throws IOException {
+
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()), RUN_READER_ORDER);
+		try (Writer writer = openWriter(outputFile)) {
+
+			for ( File run : runs ) {
+
+				RunReader reader = new RunReader(run, keyExtractor);
+				if ( reader.advance() ) queue.add(reader);
+				else reader.close();
+			}
+
+			while ( !queue.isEmpty() ) {
+
+				RunReader reader = queue.poll();
+				writer.write(reader.current.line + "\n");
+				if ( reader.advance() ) queue.add(reader);
+				else reader.close();
+			}
+		}
+		finally {
+
+			for ( RunReader reader : queue ) reader.close();
+			for ( File run : runs ) run.delete();
+		}
+	}
+
+	private File createTemporaryFile(String prefix) throws IOException {
+
+		File file = File.createTempFile(prefix + "-", ".txt", temporaryDirectory);
+		file.deleteOnExit();
+		return file;
+	}
+
+	static BufferedReader openReader(File file) throws IOException {
+
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	private static Writer openWriter(File file) throws IOException {
+
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	private static final Comparator<KeyedLine> KEYED_LINE_ORDER = new Comparator<KeyedLine>() {
+
+		@Override
+		public int compare(KeyedLine first, KeyedLine second) {
+
+			int result = first.key.compareTo(second.key);
+			return result != 0 ? result : first.line.compareTo(second.line);
+		}
+	};
+
+	private static final Comparator<RunReader> RUN_READER_ORDER = new Comparator<RunReader>() {
+
+		@Override
+		public int compare(RunReader first, RunReader second) {
+
+			return KEYED_LINE_ORDER.compare(first.current, second.current);
+		}
+	};
+
+	private static class KeyedLine {
+
+		private final String key;
+		private final String line;
+
+		KeyedLine(String key, String line) {
+
+			this.key = key;
+			this.line = line;
+		}
+	}
+
+	private static class RunReader implements Closeable {
+
+		private final BufferedReader reader;
+		private final KeyExtractor keyExtractor;
+		private KeyedLine current;
+
+		RunReader(File run, KeyExtractor keyExtractor) throws IOException {
+
+			this.reader = openReader(run);
+			this.keyExtractor = keyExtractor;
+		}
+
+		boolean advance() throws IOException {
+
+			String line = reader.readLine();
+			current = line == null ? null : new KeyedLine(keyExtractor.getKey(line), line);
+			return current != null;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			reader.close();
+		}
+	}
+}
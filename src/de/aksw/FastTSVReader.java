@@ -0,0 +1,281 @@
+package de.aksw;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Reader for tab separated UTF-8 files which works on the raw bytes instead
+ * of a {@link java.util.Scanner} and a regex split like {@link TSVReader}.
+ *
+ * Lines are split at tabs only (so multi word values stay in one piece),
+ * empty lines are skipped and a trailing carriage return is dropped. The
+ * fields of the current line are decoded into one reused char array and
+ * handed out as {@link CharSequence} views which are only valid until the
+ * next call to {@link #next()}, a String is created only if asked for. No
+ * objects are allocated per line once the buffers have grown to the longest line.
+ *
+ * Usage:
+ * <pre>
+ * while ( reader.next() )
+ *     for ( int i = 0; i &lt; reader.getFieldCount(); i++ ) reader.getField(i) ...
+ * </pre>
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class FastTSVReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final ReadableByteChannel channel;
+	private byte[] bytes = new byte[BUFFER_SIZE];
+	// the unread bytes are bytes[position, limit)
+	private int position = 0;
+	private int limit = 0;
+	private boolean endOfInput = false;
+
+	private char[] chars = new char[256];
+	private int[] fieldEnds = new int[16];
+	private Field[] fields = new Field[0];
+	private int fieldCount = 0;
+
+	public FastTSVReader(File file) throws IOException {
+
+		this(new FileInputStream(file));
+	}
+
+	public FastTSVReader(InputStream stream) {
+
+		this.channel = Channels.newChannel(stream);
+	}
+
+	/**
+	 * Moves to the next non empty line.
+	 *
+	 * @return false if there are no more lines
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+
+		while ( true ) {
+
+			int lineEnd = findLineEnd();
+			if ( lineEnd < 0 ) {
+
+				fieldCount = 0;
+				return false;
+			}
+
+			int start = position;
+			int end = lineEnd;
+			position = lineEnd < limit ? lineEnd + 1 : limit;
+			if ( end > start && bytes[end - 1] == '\r' ) end--;
+			if ( end == start ) continue;
+
+			split(start, end);
+			return true;
+		}
+	}
+
+	/**
+	 * @return the index of the next line break or the end of the input, -1 if there is nothing left
+	 */
+	private int findLineEnd() throws IOException {
+
+		int scanned = position;
+		while ( true ) {
+
+			for ( int i = scanned; i < limit; i++ )
+				if ( bytes[i] == '\n' ) return i;
+			scanned = limit;
+
+			if ( endOfInput ) return position < limit ? limit : -1;
+			scanned -= position;
+			fill();
+			scanned += position;
+		}
+	}
+
+	/**
+	 * Moves the unread bytes to the front, grows the buffer if one line fills it, and reads more.
+	 */
+	private void fill() throws IOException {
+
+		if ( position > 0 ) {
+
+			System.arraycopy(bytes, position, bytes, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		if ( limit == bytes.length ) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+
+		int read = channel.read(ByteBuffer.wrap(bytes, limit, bytes.length - limit));
+		if ( read < 0 ) endOfInput = true;
+		else limit += read;
+	}
+
+	/**
+	 * Decodes the line field by field, a tab byte never occurs inside a multi byte UTF-8 character.
+	 */
+	private void split(int start, int end) {
+
+		if ( chars.length < end - start ) chars = new char[Math.max(end - start, chars.length * 2)];
+
+		fieldCount = 0;
+		int length = 0;
+		int i = start;
+		while ( true ) {
+
+			int fieldEnd = i;
+			while ( fieldEnd < end && bytes[fieldEnd] != '\t' ) fieldEnd++;
+			length = decode(i, fieldEnd, length);
+
+			if ( fieldCount == fieldEnds.length ) fieldEnds = Arrays.copyOf(fieldEnds, fieldEnds.length * 2);
+			fieldEnds[fieldCount++] = length;
+
+			if ( fieldEnd == end ) break;
+			i = fieldEnd + 1;
+		}
+
+		if ( fields.length < fieldCount ) {
+
+			int old = fields.length;
+			fields = Arrays.copyOf(fields, fieldEnds.length);
+			for ( int field = old; field < fields.length; field++ ) fields[field] = new Field(field);
+		}
+	}
+
+	/**
+	 * UTF-8 to UTF-16, malformed input becomes U+FFFD like in {@link String#String(byte[], java.nio.charset.Charset)}.
+	 *
+	 * @return the new number of chars
+	 */
+	private int decode(int from, int to, int length) {
+
+		int i = from;
+		while ( i < to ) {
+
+			int b = bytes[i];
+			if ( b >= 0 ) {
+
+				chars[length++] = (char) b;
+				i++;
+				continue;
+			}
+
+			int sequenceLength;
+			int codePoint;
+			if ( (b & 0xE0) == 0xC0 ) { sequenceLength = 2; codePoint = b & 0x1F; }
+			else if ( (b & 0xF0) == 0xE0 ) { sequenceLength = 3; codePoint = b & 0x0F; }
+			else if ( (b & 0xF8) == 0xF0 ) { sequenceLength = 4; codePoint = b & 0x07; }
+			else { sequenceLength = 0; codePoint = 0; }
+
+			int j = 1;
+			while ( j < sequenceLength && i + j < to && (bytes[i + j] & 0xC0) == 0x80 ) {
+
+				codePoint = (codePoint << 6) | (bytes[i + j] & 0x3F);
+				j++;
+			}
+
+			if ( sequenceLength == 0 || j < sequenceLength || isOverlong(codePoint, sequenceLength) || codePoint > Character.MAX_CODE_POINT
+					|| (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) ) {
+
+				chars[length++] = '\uFFFD';
+				i += Math.max(1, j);
+			}
+			else {
+
+				length += Character.toChars(codePoint, chars, length);
+				i += sequenceLength;
+			}
+		}
+		return length;
+	}
+
+	private static boolean isOverlong(int codePoint, int sequenceLength) {
+
+		return (sequenceLength == 2 && codePoint < 0x80) || (sequenceLength == 3 && codePoint < 0x800) || (sequenceLength == 4 && codePoint < 0x10000);
+	}
+
+	/**
+	 * @return the number of fields of the current line, an empty field counts as well
+	 */
+	public int getFieldCount() {
+
+		return fieldCount;
+	}
+
+	/**
+	 * @param index - between 0 and {@link #getFieldCount()} - 1
+	 * @return a view of the field, only valid until the next call to {@link #next()}
+	 */
+	public CharSequence getField(int index) {
+
+		if ( index < 0 || index >= fieldCount ) throw new IndexOutOfBoundsException("No field: " + index);
+		return fields[index];
+	}
+
+	/**
+	 * @param index - between 0 and {@link #getFieldCount()} - 1
+	 * @return the field as a new String
+	 */
+	public String getString(int index) {
+
+		return getField(index).toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		channel.close();
+	}
+
+	/**
+	 * A field of the current line.
+	 */
+	private class Field implements CharSequence {
+
+		private final int index;
+
+		private Field(int index) {
+
+			this.index = index;
+		}
+
+		private int start() {
+
+			return index == 0 ? 0 : fieldEnds[index - 1];
+		}
+
+		@Override
+		public int length() {
+
+			return fieldEnds[index] - start();
+		}
+
+		@Override
+		public char charAt(int i) {
+
+			if ( i < 0 || i >= length() ) throw new IndexOutOfBoundsException("No char: " + i);
+			return chars[start() + i];
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+
+			if ( from < 0 || to > length() || from > to ) throw new IndexOutOfBoundsException("No sub sequence: " + from + "-" + to);
+			return new String(chars, start() + from, to - from);
+		}
+
+		@Override
+		public String toString() {
+
+			return new String(chars, start(), length());
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package de.aksw;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import de.danielgerber.file.BufferedFileWriter;
+import de.danielgerber.file.BufferedFileWriter.WRITER_WRITE_MODE;
+import de.danielgerber.file.FileUtil;
+
+/**
+ * Guards the requests to the SPARQL endpoint, replacing the fixed retry
+ * loops and sleeps of the generators.
+ *
+ *  - the number of requests in flight is adapted with AIMD: +1 per round of
+ *    successful requests, halved on a failure or if the latency climbs far
+ *    above the best latency seen so far
+ *  - failed requests are retried with exponential backoff and full jitter
+ *  - if most recent requests fail (or several in a row) a circuit breaker
+ *    opens and holds back all requests for a growing cool down period, then
+ *    lets a single probe through
+ *  - the uris of requests which failed every try are recorded, so they can
+ *    be reported and fetched again later
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class FetchController {
+
+	private static final Logger logger = Logger.getLogger("FetchController");
+
+	private static final long BASE_BACKOFF_IN_MS = 100;
+	private static final long MAX_BACKOFF_IN_MS = 30 * 1000;
+	private static final long MIN_OPEN_CIRCUIT_IN_MS = 1000;
+	private static final long MAX_OPEN_CIRCUIT_IN_MS = 2 * 60 * 1000;
+	private static final int CONSECUTIVE_FAILURES_TO_OPEN = 5;
+	private static final double ERROR_RATE_TO_OPEN = 0.5;
+	private static final int MIN_SAMPLES_FOR_ERROR_RATE = 20;
+	// weight of the newest observation in the moving averages
+	private static final double SMOOTHING = 0.1;
+	// a latency this many times above the best one counts as congestion
+	private static final double CONGESTION_FACTOR = 4;
+
+	/**
+	 * Thrown if a request failed on every try, the uris are already recorded.
+	 */
+	public static class FetchFailedException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		public FetchFailedException(String message, Throwable cause) {
+
+			super(message, cause);
+		}
+	}
+
+	private final int maxConcurrency;
+	private final int maxTries;
+	private final Random random = new Random();
+
+	// guarded by this
+	private double limit;
+	private int inFlight = 0;
+	private double averageLatency = 0;
+	private double minimumLatency = Double.MAX_VALUE;
+	private double errorRate = 0;
+	private int samples = 0;
+	private int consecutiveFailures = 0;
+	private long lastDecrease = 0;
+	private long circuitOpenUntil = 0;
+	private long openCircuitDuration = MIN_OPEN_CIRCUIT_IN_MS;
+	private boolean probing = false;
+	private final List<String> givenUpUris = new ArrayList<String>();
+
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicInteger circuitTrips = new AtomicInteger();
+
+	/**
+	 * @param maxConcurrency - upper bound for the requests in flight, usually the number of fetch workers
+	 * @param maxTries - number of tries before a request is given up
+	 */
+	public FetchController(int maxConcurrency, int maxTries) {
+
+		if ( maxConcurrency < 1 || maxTries < 1 ) throw new IllegalArgumentException("Concurrency and tries need to be positive!");
+		this.maxConcurrency = maxConcurrency;
+		this.maxTries = maxTries;
+		this.limit = maxConcurrency;
+	}
+
+	/**
+	 * Executes the request, retrying it until it succeeds or all tries failed.
+	 * The request should consume the whole response, so that failures while
+	 * reading it are retried as well.
+	 *
+	 * @param uris - the resources the request is about, recorded if it is given up
+	 * @param request - the request
+	 * @return the result of the request
+	 * @throws FetchFailedException - if every try failed
+	 * @throws InterruptedException
+	 */
+	public <T> T execute(Collection<String> uris, Callable<T> request) throws FetchFailedException, InterruptedException {
+
+		Exception lastFailure = null;
+		for ( int tries = 0; tries < maxTries; tries++ ) {
+
+			if ( tries > 0 ) Thread.sleep(getBackoff(tries));
+
+			boolean probe = acquire();
+			long start = System.currentTimeMillis();
+			try {
+
+				requests.incrementAndGet();
+				T result = request.call();
+				onSuccess(probe, System.currentTimeMillis() - start);
+				return result;
+			}
+			catch (InterruptedException e) {
+
+				release(probe);
+				throw e;
+			}
+			catch (Exception e) {
+
+				lastFailure = e;
+				failures.incrementAndGet();
+				onFailure(probe);
+				logger.warning("Request failed (try " + (tries + 1) + "/" + maxTries + "): " + e.getMessage());
+			}
+		}
+
+		synchronized (this) {
+
+			givenUpUris.addAll(uris);
+		}
+		throw new FetchFailedException("Gave up on " + uris.size() + " uris after " + maxTries + " tries", lastFailure);
+	}
+
+	/**
+	 * Exponential backoff with full jitter: a random delay between 0 and base * 2^tries.
+	 */
+	private long getBackoff(int tries) {
+
+		long maximum = Math.min(MAX_BACKOFF_IN_MS, BASE_BACKOFF_IN_MS << Math.min(tries, 20));
+		synchronized (random) {
+
+			return (long) (random.nextDouble() * maximum);
+		}
+	}
+
+	/**
+	 * Blocks until the circuit is closed (or this request is the probe) and there is room below the limit.
+	 *
+	 * @return true if the request is the probe of a half open circuit
+	 */
+	private synchronized boolean acquire() throws InterruptedException {
+
+		while ( true ) {
+
+			long now = System.currentTimeMillis();
+			if ( now < circuitOpenUntil ) wait(circuitOpenUntil - now);
+			else if ( circuitOpenUntil > 0 ) {
+
+				// half open, only one request gets through until it succeeded
+				if ( probing ) wait();
+				else {
+
+					probing = true;
+					inFlight++;
+					return true;
+				}
+			}
+			else if ( inFlight < (int) limit ) {
+
+				inFlight++;
+				return false;
+			}
+			else wait();
+		}
+	}
+
+	private synchronized void release(boolean probe) {
+
+		inFlight--;
+		if ( probe ) probing = false;
+		notifyAll();
+	}
+
+	private synchronized void onSuccess(boolean probe, long latency) {
+
+		samples++;
+		errorRate = (1 - SMOOTHING) * errorRate;
+		consecutiveFailures = 0;
+		averageLatency = averageLatency == 0 ? latency : (1 - SMOOTHING) * averageLatency + SMOOTHING * latency;
+		minimumLatency = Math.min(minimumLatency, averageLatency);
+
+		if ( probe ) {
+
+			logger.info("Endpoint recovered, closing circuit");
+			circuitOpenUntil = 0;
+			openCircuitDuration = MIN_OPEN_CIRCUIT_IN_MS;
+			errorRate = 0;
+			samples = 0;
+			limit = 1;
+		}
+		// requests started before the circuit opened don't change the limit
+		else if ( circuitOpenUntil == 0 ) {
+
+			if ( averageLatency > CONGESTION_FACTOR * Math.max(1, minimumLatency) ) decrease();
+			// additive increase, roughly one more request per round trip of the whole window
+			else limit = Math.min(maxConcurrency, limit + 1 / limit);
+		}
+
+		release(probe);
+	}
+
+	private synchronized void onFailure(boolean probe) {
+
+		samples++;
+		errorRate = (1 - SMOOTHING) * errorRate + SMOOTHING;
+		consecutiveFailures++;
+
+		if ( probe ) {
+
+			// the endpoint is still down, wait twice as long
+			openCircuitDuration = Math.min(MAX_OPEN_CIRCUIT_IN_MS, openCircuitDuration * 2);
+			openCircuit();
+		}
+		else if ( circuitOpenUntil == 0 ) {
+
+			if ( consecutiveFailures >= CONSECUTIVE_FAILURES_TO_OPEN || (samples >= MIN_SAMPLES_FOR_ERROR_RATE && errorRate > ERROR_RATE_TO_OPEN) ) {
+
+				circuitTrips.incrementAndGet();
+				openCircuit();
+			}
+			else decrease();
+		}
+
+		release(probe);
+	}
+
+	/**
+	 * Multiplicative decrease, at most once per average round trip so that
+	 * the failures of one window of requests only count once.
+	 */
+	private void decrease() {
+
+		long now = System.currentTimeMillis();
+		if ( now - lastDecrease < averageLatency ) return;
+		lastDecrease = now;
+		limit = Math.max(1, limit / 2);
+	}
+
+	private void openCircuit() {
+
+		circuitOpenUntil = System.currentTimeMillis() + openCircuitDuration;
+		limit = 1;
+		logger.warning(String.format("Endpoint unhealthy (error rate %.2f, %d failures in a row), holding back requests for %dms",
+				errorRate, consecutiveFailures, openCircuitDuration));
+	}
+
+	/**
+	 * @return the uris of all requests which were given up
+	 */
+	public synchronized List<String> getGivenUpUris() {
+
+		return new ArrayList<String>(givenUpUris);
+	}
+
+	/**
+	 * Prints the request statistics and writes the given up uris (one per
+	 * line) to the file if there are any.
+	 *
+	 * @param givenUpUrisFile - the file to write the uris to
+	 */
+	public synchronized void report(String givenUpUrisFile) {
+
+		System.out.println(String.format("Requests: %d, failed tries: %d, circuit breaker trips: %d, final concurrency: %d, average latency: %.0fms",
+				requests.get(), failures.get(), circuitTrips.get(), (int) limit, averageLatency));
+		System.out.println("Gave up on " + givenUpUris.size() + " uris" + (givenUpUris.isEmpty() ? "" : ", see: " + givenUpUrisFile));
+
+		if ( givenUpUris.isEmpty() ) return;
+		BufferedFileWriter writer = FileUtil.openWriter(givenUpUrisFile, "UTF-8", WRITER_WRITE_MODE.OVERRIDE);
+		for ( String uri : givenUpUris ) writer.write(uri);
+		writer.close();
+	}
+}
@@ -0,0 +1,164 @@
+package de.aksw;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.semanticweb.yars.nx.Node;
+import org.semanticweb.yars.nx.Resource;
+import org.semanticweb.yars.nx.parser.NxParser;
+
+/**
+ * Computes the number of inbound links (in-degree) of every DBpedia resource
+ * with one sequential scan over the local dump files. This replaces the
+ * per-uri COUNT queries of {@link DBpediaLuceneIndexGenerator#getAprioriScore1(String, String)}.
+ *
+ * The counts are kept in an int array indexed by the id of the uri in a
+ * {@link UriDictionary} and can be written to and read from a binary file.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class InboundLinkCounter {
+
+	private static final Logger logger = Logger.getLogger("InboundLinkCounter");
+
+	private final UriDictionary dictionary;
+	private int[] counts;
+
+	public InboundLinkCounter() {
+
+		this(new UriDictionary(1 << 20), new int[1 << 20]);
+	}
+
+	private InboundLinkCounter(UriDictionary dictionary, int[] counts) {
+
+		this.dictionary = dictionary;
+		this.counts = counts;
+	}
+
+	/**
+	 * Reads the counts from the given file if it is newer than the dump files,
+	 * otherwise counts the links in the dump files and saves them to the file.
+	 *
+	 * @param countsFile - the binary file with the persisted counts
+	 * @param dumpFiles - the n-triple files with links between resources, missing files are skipped
+	 * @return the counter
+	 * @throws IOException
+	 */
+	public static InboundLinkCounter createOrRead(String countsFile, List<String> dumpFiles) throws IOException {
+
+		if ( !DumpFiles.isOutdated(countsFile, dumpFiles) ) return load(countsFile);
+
+		InboundLinkCounter counter = new InboundLinkCounter();
+		for ( String dumpFile : dumpFiles ) {
+
+			if ( DumpFiles.exists(dumpFile) ) counter.countLinks(dumpFile);
+			else logger.warning("Link file: " + dumpFile + " does not exist, skipping it!");
+		}
+		counter.save(countsFile);
+		return counter;
+	}
+
+	/**
+	 * Adds one inbound link to the object of every triple in the file
+	 * which points to a resource.
+	 *
+	 * @param dumpFile - the n-triple file
+	 */
+	public void countLinks(String dumpFile) {
+
+		logger.info("Counting inbound links in: " + dumpFile);
+		long triples = 0;
+		NxParser n3Parser = DumpFiles.openNxParser(dumpFile);
+		while (n3Parser.hasNext()) {
+
+			Node object = n3Parser.next()[2];
+			if ( object instanceof Resource ) {
+
+				String objectUri = object.toString();
+				if ( objectUri.contains("/resource/") ) increment(dictionary.add(objectUri));
+			}
+			if ( ++triples % 10000000 == 0 ) logger.info("Processed " + triples + " triples, " + dictionary.size() + " resources so far.");
+		}
+		logger.info("Finished counting inbound links in: " + dumpFile + ". Total of: " + dictionary.size() + " resources with inbound links.");
+	}
+
+	private void increment(int id) {
+
+		if ( id >= counts.length ) counts = Arrays.copyOf(counts, Math.max(id + 1, counts.length * 2));
+		counts[id]++;
+	}
+
+	/**
+	 * @param uri - the uri of the resource
+	 * @return the number of links pointing to the resource
+	 */
+	public int getCount(String uri) {
+
+		int id = dictionary.getId(uri);
+		return id < 0 ? 0 : counts[id];
+	}
+
+	/**
+	 * @param uri - the uri of the resource
+	 * @return log(inbound links + 1), the same value as {@link DBpediaLuceneIndexGenerator#getAprioriScore1(String, String)}
+	 */
+	public double getAprioriScore(String uri) {
+
+		return Math.log(getCount(uri) + 1);
+	}
+
+	/**
+	 * @return the number of resources with at least one inbound link
+	 */
+	public int size() {
+
+		return dictionary.size();
+	}
+
+	/**
+	 * Writes the counts as number of entries followed by (uri, count) pairs in id order.
+	 *
+	 * @param countsFile - the file to write
+	 * @throws IOException
+	 */
+	public void save(String countsFile) throws IOException {
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(countsFile), 1 << 16))) {
+
+			out.writeInt(dictionary.size());
+			for ( int id = 0; id < dictionary.size(); id++ ) {
+
+				out.writeUTF(dictionary.getUri(id));
+				out.writeInt(counts[id]);
+			}
+		}
+		logger.info("Finished writing " + dictionary.size() + " inbound link counts to: " + countsFile);
+	}
+
+	/**
+	 * @param countsFile - a file written by {@link #save(String)}
+	 * @return the counter
+	 * @throws IOException
+	 */
+	public static InboundLinkCounter load(String countsFile) throws IOException {
+
+		logger.info("Reading inbound link counts from: " + countsFile);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(countsFile), 1 << 16))) {
+
+			int size = in.readInt();
+			UriDictionary dictionary = new UriDictionary(size);
+			int[] counts = new int[Math.max(1, size)];
+			for ( int i = 0; i < size; i++ ) counts[dictionary.add(in.readUTF())] = in.readInt();
+
+			logger.info("Finished reading " + size + " inbound link counts.");
+			return new InboundLinkCounter(dictionary, counts);
+		}
+	}
+}
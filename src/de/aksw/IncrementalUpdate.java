@@ -0,0 +1,233 @@
+package de.aksw;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Updates the index of an earlier build to a new dump release instead of
+ * building it from scratch, only the documents of resources which were added,
+ * changed or removed are written.
+ *
+ * The documents of the new release are compared with the last commit of the
+ * index by the content hash every document carries (see
+ * {@link IndexDocumentTemplate#CONTENT_HASH_FIELD}): unchanged documents are
+ * skipped, changed ones replace the old ones by their uri term and new ones
+ * are added. Once all documents went through {@link #isChanged(String, long)},
+ * {@link #deleteRemoved()} deletes every resource of the old index which was
+ * not part of the new release, e.g. because it lost its label. The result is
+ * the same index a full build would have written.
+ *
+ * A resource which could not be fetched (the endpoint failed or the fetch
+ * controller gave up on it) is no sign that it was removed, it is passed to
+ * {@link #keep(String)} and its old documents stay as they are. An outage of
+ * the endpoint during an update leaves these resources outdated, not deleted.
+ *
+ * An interrupted update is not resumed but simply started again, the documents
+ * written so far are unchanged then.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class IncrementalUpdate implements Closeable {
+
+	private static final Logger logger = Logger.getLogger("IncrementalUpdate");
+
+	private static final String URI_FIELD = "uri";
+
+	private final ShardedIndexWriter writer;
+	private final IndexReader reader;
+	// the documents of the old index which are part of the new release
+	private final FixedBitSet seen;
+
+	private final AtomicInteger added = new AtomicInteger();
+	private final AtomicInteger changed = new AtomicInteger();
+	private final AtomicInteger unchanged = new AtomicInteger();
+	private final AtomicInteger kept = new AtomicInteger();
+	private int deleted = 0;
+
+	private final ThreadLocal<Lookup> lookups = new ThreadLocal<Lookup>() {
+
+		@Override
+		protected Lookup initialValue() {
+
+			try {
+
+				return new Lookup(reader.leaves());
+			}
+			catch (IOException e) {
+
+				throw new RuntimeException("Could not read the index", e);
+			}
+		}
+	};
+
+	/**
+	 * @param writer - the writer of the index which gets updated, opened in append mode
+	 * @throws IOException
+	 */
+	public IncrementalUpdate(ShardedIndexWriter writer) throws IOException {
+
+		this.writer = writer;
+
+		List<IndexReader> readers = new ArrayList<IndexReader>();
+		for ( Directory directory : writer.getDirectories() )
+			if ( DirectoryReader.indexExists(directory) ) readers.add(DirectoryReader.open(directory));
+
+		this.reader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), true);
+		this.seen = new FixedBitSet(Math.max(1, reader.maxDoc()));
+		logger.info("Updating index with " + reader.numDocs() + " documents");
+	}
+
+	/**
+	 * Checks a document of the new release against the old index, can be called from several threads.
+	 *
+	 * @param uri - the uri of the resource
+	 * @param contentHash - the content hash of its new document
+	 * @return true if the document needs to be written with {@link ShardedIndexWriter#updateDocument(String, Iterable)}
+	 * @throws IOException
+	 */
+	public boolean isChanged(String uri, long contentHash) throws IOException {
+
+		Lookup lookup = lookups.get();
+		BytesRef term = new BytesRef(uri);
+		int documents = 0;
+		boolean equal = true;
+		for ( int i = 0; i < lookup.terms.length; i++ ) {
+
+			if ( lookup.terms[i] == null || !lookup.terms[i].seekExact(term) ) continue;
+
+			AtomicReaderContext context = reader.leaves().get(i);
+			DocsEnum docs = lookup.docs[i] = lookup.terms[i].docs(context.reader().getLiveDocs(), lookup.docs[i], DocsEnum.FLAG_NONE);
+			for ( int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc() ) {
+
+				documents++;
+				equal &= lookup.contentHashes[i] != null && lookup.contentHashes[i].get(doc) == contentHash;
+				synchronized (seen) {
+
+					seen.set(context.docBase + doc);
+				}
+			}
+		}
+
+		// an index appended to with -o false may contain a resource more than once
+		if ( documents == 1 && equal ) {
+
+			unchanged.incrementAndGet();
+			return false;
+		}
+		if ( documents == 0 ) added.incrementAndGet();
+		else changed.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Keeps the documents of a resource of the new release which could not be
+	 * fetched, they are neither changed nor deleted. Can be called from several threads.
+	 *
+	 * @param uri - the uri of the resource
+	 * @throws IOException
+	 */
+	public void keep(String uri) throws IOException {
+
+		Lookup lookup = lookups.get();
+		BytesRef term = new BytesRef(uri);
+		for ( int i = 0; i < lookup.terms.length; i++ ) {
+
+			if ( lookup.terms[i] == null || !lookup.terms[i].seekExact(term) ) continue;
+
+			AtomicReaderContext context = reader.leaves().get(i);
+			DocsEnum docs = lookup.docs[i] = lookup.terms[i].docs(context.reader().getLiveDocs(), lookup.docs[i], DocsEnum.FLAG_NONE);
+			for ( int doc = docs.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docs.nextDoc() ) {
+
+				kept.incrementAndGet();
+				synchronized (seen) {
+
+					seen.set(context.docBase + doc);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the resources of the old index which were neither checked with
+	 * {@link #isChanged(String, long)} nor kept with {@link #keep(String)}, may only be called once all documents
+	 * of the new release have been checked.
+	 *
+	 * @throws IOException
+	 */
+	public void deleteRemoved() throws IOException {
+
+		Set<String> fields = Collections.singleton(URI_FIELD);
+		for ( AtomicReaderContext context : reader.leaves() ) {
+
+			AtomicReader leaf = context.reader();
+			Bits liveDocs = leaf.getLiveDocs();
+			for ( int doc = 0; doc < leaf.maxDoc(); doc++ ) {
+
+				if ( (liveDocs != null && !liveDocs.get(doc)) || seen.get(context.docBase + doc) ) continue;
+
+				writer.deleteDocuments(leaf.document(doc, fields).get(URI_FIELD));
+				deleted++;
+			}
+		}
+	}
+
+	/**
+	 * Prints the number of added, changed, unchanged and deleted resources.
+	 */
+	public void report() {
+
+		System.out.println("Incremental update: " + added.get() + " added, " + changed.get() + " changed, " +
+				unchanged.get() + " unchanged, " + deleted + " deleted, " + kept.get() + " kept since they could not be fetched");
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		reader.close();
+	}
+
+	/**
+	 * The uri terms and content hashes of every segment for one thread,
+	 * reused for all lookups since neither of them is thread safe.
+	 */
+	private static class Lookup {
+
+		private final TermsEnum[] terms;
+		private final DocsEnum[] docs;
+		private final NumericDocValues[] contentHashes;
+
+		Lookup(List<AtomicReaderContext> leaves) throws IOException {
+
+			this.terms = new TermsEnum[leaves.size()];
+			this.docs = new DocsEnum[leaves.size()];
+			this.contentHashes = new NumericDocValues[leaves.size()];
+			for ( int i = 0; i < leaves.size(); i++ ) {
+
+				AtomicReader leaf = leaves.get(i).reader();
+				Terms uris = leaf.terms(URI_FIELD);
+				if ( uris != null ) terms[i] = uris.iterator(null);
+				contentHashes[i] = leaf.getNumericDocValues(IndexDocumentTemplate.CONTENT_HASH_FIELD);
+			}
+		}
+	}
+}
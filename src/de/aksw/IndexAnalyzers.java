@@ -0,0 +1,132 @@
+package de.aksw;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.KeywordTokenizer;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.StopFilter;
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilter;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.util.Version;
+
+/**
+ * The analyzers of the resource indexes. The label and the surface forms are
+ * folded to ASCII (é becomes e, ß becomes ss, ...), so every surface form is
+ * indexed and stored once and still matches with and without accents. The
+ * generators used to add a second, de-accented copy of every surface form instead.
+ *
+ * The same analyzer has to be used at query time, e.g. handed to the query
+ * parser, so the query terms are folded the same way. Term queries against the
+ * untokenized surface forms of the light index need {@link #fold(String)}.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class IndexAnalyzers {
+
+	public static final String LABEL_FIELD = "label";
+	public static final String SURFACE_FORMS_FIELD = "surfaceForms";
+
+	/**
+	 * Like {@link StringField#TYPE_STORED} (one term per value, no norms), but
+	 * the value is passed through the analyzer so the {@link KeywordTokenizer}
+	 * token can be folded.
+	 */
+	public static final FieldType FOLDED_KEYWORD_TYPE = new FieldType(StringField.TYPE_STORED);
+	static {
+
+		FOLDED_KEYWORD_TYPE.setTokenized(true);
+		FOLDED_KEYWORD_TYPE.setStoreTermVectors(false);
+		FOLDED_KEYWORD_TYPE.freeze();
+	}
+
+	/**
+	 * The analyzer of the full index: label and surface forms are analyzed
+	 * like by the {@link StandardAnalyzer} and folded, everything else is
+	 * analyzed by the {@link StandardAnalyzer}.
+	 *
+	 * @param version - the lucene version
+	 * @return the analyzer for indexing and querying
+	 */
+	public static Analyzer createAnalyzer(Version version) {
+
+		Analyzer folding = new FoldingStandardAnalyzer(version);
+		Map<String,Analyzer> fieldAnalyzers = new HashMap<String,Analyzer>();
+		fieldAnalyzers.put(LABEL_FIELD, folding);
+		fieldAnalyzers.put(SURFACE_FORMS_FIELD, folding);
+		return new PerFieldAnalyzerWrapper(new StandardAnalyzer(version), fieldAnalyzers);
+	}
+
+	/**
+	 * The analyzer of the light index: the label is analyzed like by the
+	 * {@link StandardAnalyzer} and folded, the surface forms are kept as one
+	 * token (see {@link #FOLDED_KEYWORD_TYPE}) which is folded only.
+	 *
+	 * @param version - the lucene version
+	 * @return the analyzer for indexing and querying
+	 */
+	public static Analyzer createLightAnalyzer(Version version) {
+
+		Map<String,Analyzer> fieldAnalyzers = new HashMap<String,Analyzer>();
+		fieldAnalyzers.put(LABEL_FIELD, new FoldingStandardAnalyzer(version));
+		fieldAnalyzers.put(SURFACE_FORMS_FIELD, new FoldingKeywordAnalyzer());
+		return new PerFieldAnalyzerWrapper(new StandardAnalyzer(version), fieldAnalyzers);
+	}
+
+	/**
+	 * @param value - a surface form
+	 * @return the term the value is indexed as in a field of {@link #FOLDED_KEYWORD_TYPE}
+	 */
+	public static String fold(String value) {
+
+		char[] input = value.toCharArray();
+		// a char folds to at most four chars
+		char[] output = new char[4 * input.length];
+		int length = ASCIIFoldingFilter.foldToASCII(input, 0, output, 0, input.length);
+		return new String(output, 0, length);
+	}
+
+	/**
+	 * The chain of the {@link StandardAnalyzer} with an {@link ASCIIFoldingFilter} at the end.
+	 */
+	private static class FoldingStandardAnalyzer extends Analyzer {
+
+		private final Version version;
+
+		FoldingStandardAnalyzer(Version version) {
+
+			this.version = version;
+		}
+
+		@Override
+		protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+
+			StandardTokenizer source = new StandardTokenizer(version, reader);
+			TokenStream result = new StandardFilter(version, source);
+			result = new LowerCaseFilter(version, result);
+			result = new StopFilter(version, result, StandardAnalyzer.STOP_WORDS_SET);
+			result = new ASCIIFoldingFilter(result);
+			return new TokenStreamComponents(source, result);
+		}
+	}
+
+	/**
+	 * The whole value as one token, folded.
+	 */
+	private static class FoldingKeywordAnalyzer extends Analyzer {
+
+		@Override
+		protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+
+			KeywordTokenizer source = new KeywordTokenizer(reader);
+			return new TokenStreamComponents(source, new ASCIIFoldingFilter(source));
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package de.aksw;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+
+/**
+ * Measures the indexing building blocks on synthetic data, kept apart from
+ * the classes it measures. The first argument selects the benchmark, the
+ * others are handed to it:
+ *
+ *  - template [documents] [rounds]: indexing with a new lucene document per
+ *    resource vs. with an {@link IndexDocumentTemplate}
+ *  - schema [documents|index directory] [rounds]: time and size of an index
+ *    with every {@link SchemaProfile}
+ *  - tsv file [rounds]: reading a surface forms file with {@link TSVReader}
+ *    vs. with {@link FastTSVReader}
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class IndexBenchmark {
+
+	public static void main(String[] args) throws IOException {
+
+		String benchmark = args.length > 0 ? args[0] : "";
+		String[] benchmarkArgs = args.length > 0 ? Arrays.copyOfRange(args, 1, args.length) : args;
+
+		if ( benchmark.equals("template") ) benchmarkTemplate(benchmarkArgs);
+		else if ( benchmark.equals("schema") ) benchmarkSchemaProfiles(benchmarkArgs);
+		else if ( benchmark.equals("tsv") && benchmarkArgs.length > 0 ) benchmarkTSVReaders(benchmarkArgs);
+		else {
+
+			System.out.println("Usage: IndexBenchmark template [documents] [rounds]");
+			System.out.println("       IndexBenchmark schema [documents|index directory] [rounds]");
+			System.out.println("       IndexBenchmark tsv <file.tsv> [rounds]");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compares indexing synthetic documents with a new lucene document per
+	 * resource (handed to the writer in batches, as the generators used to do)
+	 * with indexing them through a template, in documents per second and bytes
+	 * allocated per document by the indexing thread.
+	 *
+	 * @param args - optionally the number of documents (default 200000) and of rounds (default 3)
+	 * @throws IOException
+	 */
+	private static void benchmarkTemplate(String[] args) throws IOException {
+
+		int size = args.length > 0 ? Integer.valueOf(args[0]) : 200000;
+		int rounds = args.length > 1 ? Integer.valueOf(args[1]) : 3;
+		List<IndexDocument> documents = createSyntheticDocuments(size);
+
+		for ( int round = 1; round <= rounds; round++ ) {
+
+			try (IndexWriter writer = createWriter()) {
+
+				long bytes = allocatedBytes();
+				long start = System.nanoTime();
+				for ( int from = 0; from < size; from += 10000 ) {
+
+					Set<Document> batch = new HashSet<Document>();
+					FieldType stringType = new FieldType(StringField.TYPE_STORED);
+					stringType.setStoreTermVectors(false);
+					FieldType textType = new FieldType(TextField.TYPE_STORED);
+					textType.setStoreTermVectors(false);
+					for ( IndexDocument document : documents.subList(from, Math.min(size, from + 10000)) ) {
+
+						Document luceneDocument = new Document();
+						luceneDocument.add(new Field("uri", document.getUri(), stringType));
+						luceneDocument.add(new Field("dbpediaUri", document.getCanonicalDBpediaUri(), stringType));
+						luceneDocument.add(new Field(IndexAnalyzers.LABEL_FIELD, document.getLabel(), textType));
+						luceneDocument.add(new Field("comment", document.getShortAbstract(), textType));
+						luceneDocument.add(new Field("imageURL", document.getImageUri(), stringType));
+						luceneDocument.add(new IntField("pagerank", document.getPageRank(), Field.Store.YES));
+						luceneDocument.add(new DoubleField("disambiguationScore", document.getDisambiguationScore(), Field.Store.YES));
+						for ( String type : document.getTypes() ) luceneDocument.add(new Field("types", type, stringType));
+						for ( String surfaceForm : document.getSurfaceForms() ) luceneDocument.add(new Field(IndexAnalyzers.SURFACE_FORMS_FIELD, surfaceForm, textType));
+						batch.add(luceneDocument);
+					}
+					writer.addDocuments(batch);
+				}
+				report("new documents", round, size, System.nanoTime() - start, allocatedBytes() - bytes);
+			}
+
+			try (IndexWriter writer = createWriter()) {
+
+				long bytes = allocatedBytes();
+				long start = System.nanoTime();
+				IndexDocumentTemplate<IndexDocument> template = new IndexDocumentTemplate.Full();
+				for ( IndexDocument document : documents ) writer.addDocument(template.fill(document));
+				report("template", round, size, System.nanoTime() - start, allocatedBytes() - bytes);
+			}
+		}
+	}
+
+	/**
+	 * Indexes the same documents with every profile and prints the indexing
+	 * time and the size of each index.
+	 *
+	 * @param args - the number of synthetic documents (default 200000) or the
+	 * directory of a full index whose stored documents are indexed, optionally
+	 * followed by the number of rounds (default 2)
+	 * @throws IOException
+	 */
+	private static void benchmarkSchemaProfiles(String[] args) throws IOException {
+
+		List<IndexDocument> documents = args.length > 0 && new File(args[0]).isDirectory()
+				? readDocuments(args[0])
+				: createSyntheticDocuments(args.length > 0 ? Integer.valueOf(args[0]) : 200000);
+		int rounds = args.length > 1 ? Integer.valueOf(args[1]) : 2;
+
+		File directory = File.createTempFile("schema-profile", "");
+		directory.delete();
+		long fullSize = 0;
+		for ( int round = 1; round <= rounds; round++ ) {
+
+			for ( SchemaProfile profile : SchemaProfile.values() ) {
+
+				IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_48, IndexAnalyzers.createAnalyzer(Version.LUCENE_48));
+				config.setOpenMode(OpenMode.CREATE);
+				config.setRAMBufferSizeMB(128);
+
+				long start = System.nanoTime();
+				try (Directory index = FSDirectory.open(directory); IndexWriter writer = new IndexWriter(index, config)) {
+
+					IndexDocumentTemplate.Full template = new IndexDocumentTemplate.Full(profile);
+					for ( IndexDocument document : documents ) writer.addDocument(template.fill(document));
+					writer.forceMerge(1);
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+
+				long size = 0;
+				for ( File file : directory.listFiles() ) size += file.length();
+				if ( profile == SchemaProfile.FULL ) fullSize = size;
+				System.out.println(String.format("%-7s round %d: %d documents in %.2fs (%.0f documents/s), %.1f MB (%.0f%% of full)",
+						profile.name().toLowerCase(), round, documents.size(), seconds, documents.size() / seconds,
+						size / (1024d * 1024), 100d * size / fullSize));
+			}
+		}
+		for ( File file : directory.listFiles() ) file.delete();
+		directory.delete();
+	}
+
+	private static List<IndexDocument> readDocuments(String indexDirectory) throws IOException {
+
+		try (IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexDirectory)))) {
+
+			List<IndexDocument> documents = new ArrayList<IndexDocument>(reader.numDocs());
+			Bits liveDocs = MultiFields.getLiveDocs(reader);
+			for ( int doc = 0; doc < reader.maxDoc(); doc++ )
+				if ( liveDocs == null || liveDocs.get(doc) ) documents.add(PopularitySortedIndex.toIndexDocument(reader.document(doc)));
+
+			return documents;
+		}
+	}
+
+	/**
+	 * Compares the throughput of the {@link FastTSVReader} with {@link TSVReader}.
+	 *
+	 * @param args - the tsv file to read and optionally the number of rounds (default 3)
+	 * @throws IOException
+	 */
+	private static void benchmarkTSVReaders(String[] args) throws IOException {
+
+		File file = new File(args[0]);
+		int rounds = args.length > 1 ? Integer.valueOf(args[1]) : 3;
+		double megabytes = file.length() / (1024d * 1024d);
+
+		for ( int round = 1; round <= rounds; round++ ) {
+
+			long start = System.nanoTime();
+			long lines = 0, fields = 0, chars = 0;
+			try (TSVReader reader = new TSVReader(file)) {
+
+				String[] tokens;
+				while ( (tokens = reader.nextTokens()) != null ) {
+
+					lines++;
+					fields += tokens.length;
+					for ( String token : tokens ) chars += token.length();
+				}
+			}
+			reportReader("TSVReader", round, lines, fields, chars, megabytes, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			lines = 0; fields = 0; chars = 0;
+			try (FastTSVReader reader = new FastTSVReader(file)) {
+
+				while ( reader.next() ) {
+
+					lines++;
+					fields += reader.getFieldCount();
+					for ( int i = 0; i < reader.getFieldCount(); i++ ) chars += reader.getField(i).length();
+				}
+			}
+			reportReader("FastTSVReader", round, lines, fields, chars, megabytes, System.nanoTime() - start);
+		}
+	}
+
+	private static List<IndexDocument> createSyntheticDocuments(int size) {
+
+		List<IndexDocument> documents = new ArrayList<IndexDocument>(size);
+		for ( int i = 0; i < size; i++ ) {
+
+			IndexDocument document = new IndexDocument();
+			document.setUri("http://dbpedia.org/resource/Resource_" + i);
+			document.setCanonicalDBpediaUri(i % 3 == 0 ? "http://dbpedia.org/resource/Canonical_" + i : "");
+			document.setLabel("Resource number " + i + " of Café " + (i % 97));
+			document.setShortAbstract("Resource " + i + " is one of the synthetic resources used to measure the indexing throughput, it links to " + (i % 1013) + ".");
+			document.setImageUri(i % 2 == 0 ? "http://commons.wikimedia.org/image_" + i + ".jpg" : "");
+			document.setPageRank(i % 5000);
+			document.setDisambiguationScore(Math.log(1 + i % 200));
+			for ( int j = 0; j < 1 + i % 5; j++ ) document.getTypes().add("http://dbpedia.org/ontology/Type" + (i + j) % 300);
+			for ( int j = 0; j < 1 + i % 4; j++ ) document.getSurfaceForms().add("Resource " + i + " form " + j);
+			documents.add(document);
+		}
+		return documents;
+	}
+
+	private static IndexWriter createWriter() throws IOException {
+
+		IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_48, IndexAnalyzers.createAnalyzer(Version.LUCENE_48));
+		config.setRAMBufferSizeMB(128);
+		return new IndexWriter(new RAMDirectory(), config);
+	}
+
+	/**
+	 * @return the bytes allocated by the current thread so far, -1 if the JVM does not tell
+	 */
+	private static long allocatedBytes() {
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if ( !(threads instanceof com.sun.management.ThreadMXBean) ) return -1;
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void report(String variant, int round, int documents, long nanos, long bytes) {
+
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-14s round %d: %d documents in %.2fs (%.0f documents/s, %s bytes/document, %.1f MB/s allocated)",
+				variant, round, documents, seconds, documents / seconds,
+				bytes < 0 ? "?" : String.valueOf(bytes / documents), bytes < 0 ? 0d : bytes / seconds / (1024 * 1024)));
+	}
+
+	private static void reportReader(String reader, int round, long lines, long fields, long chars, double megabytes, long nanos) {
+
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-14s round %d: %d lines, %d fields, %d chars in %.2fs (%.1f MB/s, %.0f lines/s)",
+				reader, round, lines, fields, chars, seconds, megabytes / seconds, lines / seconds));
+	}
+}
@@ -0,0 +1,184 @@
+package de.aksw;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Periodically commits the index together with the position of the
+ * {@link IndexingPipeline} in the commit user data, so that a crashed or
+ * killed run can be resumed instead of started from scratch.
+ *
+ * Resuming skips all input items before the last checkpoint and every uri
+ * which is already in the last commit (documents after the checkpoint may
+ * have been indexed out of order). This only works if the generator feeds
+ * the pipeline in the same order on every run over the same data.
+ *
+ * A sharded index is committed shard by shard, a resumed run continues from
+ * the smallest position found in the shards.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class IndexCheckpoint implements IndexingPipeline.CheckpointListener {
+
+	public static final String CHECKPOINT_KEY = "checkpoint";
+	public static final String TIMESTAMP_KEY = "timestamp";
+
+	/**
+	 * How long the shutdown hook waits for the pipeline to drain and commit.
+	 */
+	private static final long SHUTDOWN_TIMEOUT_IN_MS = 60 * 1000;
+
+	private final ShardedIndexWriter writer;
+	private final IndexReader reader;
+	private final long resumePosition;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private boolean closed = false;
+
+	/**
+	 * @param writer - the writer of the index which gets built
+	 * @param resume - continue from the last commit of the index, if there is one
+	 * @throws IOException
+	 */
+	public IndexCheckpoint(ShardedIndexWriter writer, boolean resume) throws IOException {
+
+		this.writer = writer;
+
+		List<IndexReader> readers = new ArrayList<IndexReader>();
+		long position = Long.MAX_VALUE;
+		if ( resume ) {
+
+			for ( Directory directory : writer.getDirectories() ) {
+
+				// a shard without a commit has to start from the beginning
+				if ( !DirectoryReader.indexExists(directory) ) {
+
+					position = 0;
+					continue;
+				}
+				DirectoryReader reader = DirectoryReader.open(directory);
+				String checkpoint = reader.getIndexCommit().getUserData().get(CHECKPOINT_KEY);
+				position = Math.min(position, checkpoint == null ? 0 : Long.valueOf(checkpoint));
+				readers.add(reader);
+			}
+		}
+
+		if ( !readers.isEmpty() ) {
+
+			this.reader = new MultiReader(readers.toArray(new IndexReader[readers.size()]), true);
+			this.resumePosition = position;
+			System.out.println("Resuming index with " + reader.numDocs() + " documents from checkpoint: " + resumePosition);
+		}
+		else {
+
+			this.reader = null;
+			this.resumePosition = 0;
+		}
+	}
+
+	/**
+	 * @return the position stored with the last commit, 0 if not resuming
+	 */
+	public long getResumePosition() {
+
+		return resumePosition;
+	}
+
+	/**
+	 * @param uri - the (decoded) uri of the resource
+	 * @return true if the last commit already contains a document for the uri
+	 * @throws IOException
+	 */
+	public boolean isIndexed(String uri) throws IOException {
+
+		return reader != null && reader.docFreq(new Term("uri", uri)) > 0;
+	}
+
+	/**
+	 * Commits everything added so far and records the position with the commit.
+	 */
+	@Override
+	public synchronized void checkpoint(long position) throws IOException {
+
+		long start = System.currentTimeMillis();
+		Map<String,String> commitData = new HashMap<String,String>();
+		commitData.put(CHECKPOINT_KEY, String.valueOf(position));
+		commitData.put(TIMESTAMP_KEY, String.valueOf(start));
+		writer.commit(commitData);
+
+		System.out.println("Checkpoint: " + position + " committed in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Stops the pipeline on SIGTERM (or any other regular JVM shutdown) and
+	 * waits until the generator called {@link #finished()} after its final
+	 * checkpoint. If that takes too long the progress so far is committed directly,
+	 * unless the writer is already closed: merging the shards or sorting the
+	 * index can not be committed halfway, so the hook waits for them to end.
+	 *
+	 * @param pipeline - the running pipeline
+	 */
+	public void installShutdownHook(final IndexingPipeline<?> pipeline) {
+
+		Runtime.getRuntime().addShutdownHook(new Thread("index-checkpoint") {
+
+			@Override
+			public void run() {
+
+				if ( finished.getCount() == 0 ) return;
+
+				System.out.println("Shutting down, waiting for the pending documents to be indexed");
+				pipeline.stop();
+				try {
+
+					if ( finished.await(SHUTDOWN_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS) ) return;
+					synchronized (IndexCheckpoint.this) {
+
+						if ( !closed ) {
+
+							checkpoint(pipeline.getCheckpoint());
+							return;
+						}
+					}
+					System.out.println("Shutting down, waiting for the index to be merged and sorted");
+					finished.await();
+				}
+				catch (Exception e) {
+
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes (and thereby commits) the writer after the final checkpoint, the
+	 * shutdown hook does not commit anymore afterwards.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void closeWriter() throws IOException {
+
+		closed = true;
+		if ( reader != null ) reader.close();
+		writer.close();
+	}
+
+	/**
+	 * Needs to be called once the index is complete, i.e. after the writer is
+	 * closed and the shards are merged or the index is sorted, even if that failed.
+	 */
+	public void finished() {
+
+		finished.countDown();
+	}
+}
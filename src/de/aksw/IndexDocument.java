@@ -18,8 +18,8 @@ public class IndexDocument {
     private String imageUri = "";
     private Set<String> types = new HashSet<String>();
     private Set<String> surfaceForms = new HashSet<String>();
-    private Integer pagerank = 0;
-    private Double disambiguationScore = 0d;
+    private int pagerank = 0;
+    private double disambiguationScore = 0d;
     private String shortAbstract = "";
 	private String dbpediaUri = "";
     
@@ -142,11 +142,11 @@ public class IndexDocument {
         this.shortAbstract = shortAbstract;
     }
     
-    public Double getDisambiguationScore() {
+    public double getDisambiguationScore() {
 		return disambiguationScore;
 	}
     
-    public void setDisambiguationScore(Double disambiguationScore) {
+    public void setDisambiguationScore(double disambiguationScore) {
 		this.disambiguationScore = disambiguationScore;
 	}
 
@@ -0,0 +1,338 @@
+package de.aksw;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.lucene.document.DoubleDocValuesField;
+import org.apache.lucene.document.DoubleField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexableField;
+
+/**
+ * A lucene document which is filled again for every resource instead of
+ * allocating a new document, new fields and new field types each time. The
+ * fields keep their token streams as well, so the analysis of the untokenized
+ * fields is reused too.
+ *
+ * A template is not thread safe, every index worker uses its own one (see
+ * {@link #createThreadLocal(Class, SchemaProfile)}). The filled fields are only valid until
+ * the next call to {@link #fill(Object)}, which is fine for
+ * {@link IndexWriter#addDocument(Iterable)} since it is done with the fields once it returns.
+ *
+ * Every document gets a hash of its content as doc values column, so an
+ * {@link IncrementalUpdate} can tell which resources changed since the last build.
+ *
+ * Which fields are written, and how, depends on the {@link SchemaProfile}: the
+ * field types given to {@link #createField(String, FieldType)} and
+ * {@link #createFieldPool(String, FieldType)} are the ones of the full profile.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public abstract class IndexDocumentTemplate<D> {
+
+	public static final String CONTENT_HASH_FIELD = "contentHash";
+
+	static final FieldType STRING_TYPE = new FieldType(StringField.TYPE_STORED);
+	static final FieldType TEXT_TYPE = new FieldType(TextField.TYPE_STORED);
+	static {
+
+		STRING_TYPE.setStoreTermVectors(false);
+		STRING_TYPE.freeze();
+		TEXT_TYPE.setStoreTermVectors(false);
+		TEXT_TYPE.freeze();
+	}
+
+	private final SchemaProfile profile;
+	private final List<IndexableField> fields = new ArrayList<IndexableField>();
+	private final List<FieldPool> pools = new ArrayList<FieldPool>();
+	private final NumericDocValuesField contentHash = new NumericDocValuesField(CONTENT_HASH_FIELD, 0);
+
+	/**
+	 * @param profile - decides which fields are written and how
+	 */
+	protected IndexDocumentTemplate(SchemaProfile profile) {
+
+		this.profile = profile;
+	}
+
+	/**
+	 * @param document - the document to index
+	 * @return the fields of the document, valid until the next call
+	 */
+	public List<IndexableField> fill(D document) {
+
+		fields.clear();
+		for ( FieldPool pool : pools ) pool.used = 0;
+		populate(document);
+		contentHash.setLongValue(computeContentHash());
+		fields.add(contentHash);
+		return fields;
+	}
+
+	/**
+	 * @return the content hash of the document filled last
+	 */
+	public long getContentHash() {
+
+		return contentHash.numericValue().longValue();
+	}
+
+	/**
+	 * A 64 bit hash of every field name and value. The hashes of the fields are
+	 * summed up, so the order of the values of a multi valued field (which come
+	 * from hash sets) does not matter. The profile is part of the hash, an
+	 * update with another profile rewrites every document.
+	 */
+	private long computeContentHash() {
+
+		long hash = mix(hash(profile.name(), 0xcbf29ce484222325L));
+		for ( IndexableField field : fields ) {
+
+			long fieldHash = hash(field.name(), 0xcbf29ce484222325L);
+			String value = field.stringValue();
+			if ( value != null ) fieldHash = hash(value, fieldHash ^ 0xff);
+			else {
+
+				Number number = field.numericValue();
+				if ( number instanceof Double || number instanceof Float ) fieldHash ^= Double.doubleToLongBits(number.doubleValue());
+				else if ( number != null ) fieldHash ^= number.longValue();
+			}
+			hash += mix(fieldHash);
+		}
+		return hash;
+	}
+
+	/**
+	 * FNV-1a over the chars of the value.
+	 */
+	private static long hash(String value, long hash) {
+
+		for ( int i = 0; i < value.length(); i++ ) hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+		return hash;
+	}
+
+	/**
+	 * The finalizer of murmur3, spreads every input bit over the whole hash.
+	 */
+	private static long mix(long hash) {
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		return hash ^ (hash >>> 33);
+	}
+
+	/**
+	 * Sets the values of the single valued fields and adds them as well as the multi valued ones.
+	 */
+	protected abstract void populate(D document);
+
+	/**
+	 * @return the field, null if the profile does not write it
+	 */
+	protected Field createField(String name, FieldType type) {
+
+		FieldType profileType = profile.getFieldType(name, type);
+		return profileType == null ? null : new Field(name, "", profileType);
+	}
+
+	/**
+	 * @return the numeric field, null if the profile does not write it
+	 */
+	protected IntField createIntField(String name) {
+
+		FieldType profileType = profile.getFieldType(name, IntField.TYPE_STORED);
+		return profileType == null ? null : new IntField(name, 0, profileType);
+	}
+
+	/**
+	 * @return the numeric field, null if the profile does not write it
+	 */
+	protected DoubleField createDoubleField(String name) {
+
+		FieldType profileType = profile.getFieldType(name, DoubleField.TYPE_STORED);
+		return profileType == null ? null : new DoubleField(name, 0d, profileType);
+	}
+
+	protected FieldPool createFieldPool(String name, FieldType type) {
+
+		FieldPool pool = new FieldPool(name, profile.getFieldType(name, type));
+		pools.add(pool);
+		return pool;
+	}
+
+	/**
+	 * Fields the profile does not write are skipped, as are the ones below.
+	 */
+	protected void add(Field field, String value) {
+
+		if ( field == null ) return;
+		field.setStringValue(value);
+		fields.add(field);
+	}
+
+	protected void add(IndexableField field) {
+
+		if ( field != null ) fields.add(field);
+	}
+
+	protected void add(FieldPool pool, Collection<String> values) {
+
+		if ( pool.type == null ) return;
+		for ( String value : values ) {
+
+			if ( pool.used == pool.fields.size() ) pool.fields.add(new Field(pool.name, "", pool.type));
+			add(pool.fields.get(pool.used++), value);
+		}
+	}
+
+	/**
+	 * @param templateClass - the template with a constructor taking the profile
+	 * @param profile - the schema profile of the index
+	 * @return a template per thread
+	 */
+	public static <T extends IndexDocumentTemplate<?>> ThreadLocal<T> createThreadLocal(final Class<T> templateClass, final SchemaProfile profile) {
+
+		return new ThreadLocal<T>() {
+
+			@Override
+			protected T initialValue() {
+
+				try {
+
+					return templateClass.getConstructor(SchemaProfile.class).newInstance(profile);
+				}
+				catch (ReflectiveOperationException e) {
+
+					throw new RuntimeException("Could not create document template " + templateClass.getName(), e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * The fields of a multi valued attribute, grown to the largest number of values seen so far.
+	 */
+	protected static class FieldPool {
+
+		private final String name;
+		private final FieldType type;
+		private final List<Field> fields = new ArrayList<Field>();
+		private int used = 0;
+
+		private FieldPool(String name, FieldType type) {
+
+			this.name = name;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * The document of {@link DBpediaLuceneIndexGenerator}.
+	 */
+	public static class Full extends IndexDocumentTemplate<IndexDocument> {
+
+		private final Field uri;
+		private final Field dbpediaUri;
+		private final Field label;
+		private final Field comment;
+		private final Field imageUrl;
+		private final IntField pagerank;
+		private final DoubleField disambiguationScore;
+		// the same values as columns, see PopularityColumns
+		private final NumericDocValuesField pagerankColumn = new NumericDocValuesField(PopularityColumns.PAGE_RANK_FIELD, 0);
+		private final DoubleDocValuesField disambiguationScoreColumn = new DoubleDocValuesField(PopularityColumns.DISAMBIGUATION_SCORE_FIELD, 0d);
+		private final NumericDocValuesField popularityColumn = new NumericDocValuesField(PopularityColumns.POPULARITY_FIELD, 0);
+		private final FieldPool types;
+		private final FieldPool surfaceForms;
+
+		public Full() {
+
+			this(SchemaProfile.FULL);
+		}
+
+		public Full(SchemaProfile profile) {
+
+			super(profile);
+			uri = createField("uri", STRING_TYPE);
+			dbpediaUri = createField("dbpediaUri", STRING_TYPE);
+			label = createField(IndexAnalyzers.LABEL_FIELD, TEXT_TYPE);
+			comment = createField("comment", TEXT_TYPE);
+			imageUrl = createField("imageURL", STRING_TYPE);
+			pagerank = createIntField(PopularityColumns.PAGE_RANK_FIELD);
+			disambiguationScore = createDoubleField(PopularityColumns.DISAMBIGUATION_SCORE_FIELD);
+			types = createFieldPool("types", STRING_TYPE);
+			surfaceForms = createFieldPool(IndexAnalyzers.SURFACE_FORMS_FIELD, TEXT_TYPE);
+		}
+
+		@Override
+		protected void populate(IndexDocument document) {
+
+			add(uri, document.getUri());
+			add(dbpediaUri, document.getCanonicalDBpediaUri());
+			add(label, document.getLabel());
+			add(comment, document.getShortAbstract());
+			add(imageUrl, document.getImageUri());
+			if ( pagerank != null ) pagerank.setIntValue(document.getPageRank());
+			add(pagerank);
+			if ( disambiguationScore != null ) disambiguationScore.setDoubleValue(document.getDisambiguationScore());
+			add(disambiguationScore);
+			pagerankColumn.setLongValue(document.getPageRank());
+			add(pagerankColumn);
+			disambiguationScoreColumn.setDoubleValue(document.getDisambiguationScore());
+			add(disambiguationScoreColumn);
+			popularityColumn.setLongValue(PopularityColumns.getPopularityBucket(document.getPageRank()));
+			add(popularityColumn);
+			add(types, document.getTypes());
+			add(surfaceForms, document.getSurfaceForms());
+		}
+	}
+
+	/**
+	 * The document of {@link DBpediaLuceneIndexGeneratorLight}.
+	 */
+	public static class Light extends IndexDocumentTemplate<IndexDocumentLight> {
+
+		private final Field uri;
+		private final Field label;
+		private final Field shortAbstract;
+		private final Field longAbstract;
+		private final FieldPool types;
+		private final FieldPool surfaceForms;
+
+		public Light() {
+
+			this(SchemaProfile.FULL);
+		}
+
+		public Light(SchemaProfile profile) {
+
+			super(profile);
+			uri = createField("uri", STRING_TYPE);
+			label = createField(IndexAnalyzers.LABEL_FIELD, TEXT_TYPE);
+			shortAbstract = createField("short-abstract", TEXT_TYPE);
+			longAbstract = createField("long-abstract", TEXT_TYPE);
+			types = createFieldPool("types", STRING_TYPE);
+			surfaceForms = createFieldPool(IndexAnalyzers.SURFACE_FORMS_FIELD, IndexAnalyzers.FOLDED_KEYWORD_TYPE);
+		}
+
+		@Override
+		protected void populate(IndexDocumentLight document) {
+
+			add(uri, document.getUri());
+			add(label, document.getLabel());
+			add(shortAbstract, document.getShortAbstract());
+			add(longAbstract, document.getLongAbstract());
+			add(types, document.getTypes());
+			add(surfaceForms, document.getSurfaceForms());
+		}
+	}
+}
@@ -0,0 +1,505 @@
+package de.aksw;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Staged fetch-and-index engine used by the index generators.
+ *
+ *  - a bounded pool of fetch workers turns ranges of input items (usually the ids of a
+ *    {@link SurfaceFormStore}) into documents
+ *  - a bounded hand-off queue blocks the fetchers if indexing falls behind
+ *  - several index workers batch the documents and hand them to the (thread safe) index writer
+ *
+ * Fetch workers run on virtual threads if the JVM supports them, since
+ * they spend almost all of their time waiting for the SPARQL endpoint.
+ *
+ * Every input item has a position. The pipeline keeps track of the position
+ * up to which all items have been indexed (or skipped) and reports it to a
+ * {@link CheckpointListener} every few documents, a later run can continue
+ * from there with {@link #setResumePosition(long)} if the input order is stable.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class IndexingPipeline<D> {
+
+	/**
+	 * Creates the documents for a range of input items. Items which should
+	 * be skipped are left out of the result, null skips the whole range.
+	 */
+	public interface DocumentFetcher<D> {
+
+		List<D> fetch(int from, int to) throws Exception;
+	}
+
+	/**
+	 * Writes a batch of documents to the index, needs to be callable from several threads.
+	 */
+	public interface DocumentIndexer<D> {
+
+		void addIndexDocuments(List<D> documents) throws IOException;
+	}
+
+	/**
+	 * Gets called every few indexed documents with the number of input items
+	 * which are completely done, needs to persist everything indexed so far.
+	 */
+	public interface CheckpointListener {
+
+		void checkpoint(long position) throws IOException;
+	}
+
+	private static final Object END_OF_QUEUE = new Object();
+
+	private final int fetchWorkers;
+	private final int indexWorkers;
+	private final int queueSize;
+	private final int batchSize;
+	private final int fetchBatchSize;
+
+	private final AtomicInteger processed = new AtomicInteger();
+	private final AtomicInteger indexed = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+	private volatile boolean stopped = false;
+	private long resumePosition = 0;
+	private int checkpointInterval = 0;
+	private CheckpointListener checkpointListener = null;
+	private final Object checkpointLock = new Object();
+	private final Object inputLock = new Object();
+
+	// position of the next input item and the first positions of the items not yet done
+	private final AtomicLong nextPosition = new AtomicLong();
+	private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<Long>();
+
+	/**
+	 * @param fetchWorkers - number of concurrent fetches
+	 * @param indexWorkers - number of threads feeding the index writer
+	 * @param queueSize - maximum number of fetched documents waiting to be indexed
+	 * @param batchSize - number of documents handed to the index writer at once
+	 */
+	public IndexingPipeline(int fetchWorkers, int indexWorkers, int queueSize, int batchSize) {
+
+		this(fetchWorkers, indexWorkers, queueSize, batchSize, 1);
+	}
+
+	/**
+	 * @param fetchWorkers - number of concurrent fetches
+	 * @param indexWorkers - number of threads feeding the index writer
+	 * @param queueSize - maximum number of fetched documents waiting to be indexed
+	 * @param batchSize - number of documents handed to the index writer at once
+	 * @param fetchBatchSize - number of resources handed to the fetcher at once
+	 */
+	public IndexingPipeline(int fetchWorkers, int indexWorkers, int queueSize, int batchSize, int fetchBatchSize) {
+
+		if ( fetchWorkers < 1 || indexWorkers < 1 || queueSize < 1 || batchSize < 1 || fetchBatchSize < 1 )
+			throw new IllegalArgumentException("Worker counts, queue size and batch sizes need to be positive!");
+
+		this.fetchWorkers = fetchWorkers;
+		this.indexWorkers = indexWorkers;
+		this.queueSize = queueSize;
+		this.batchSize = batchSize;
+		this.fetchBatchSize = fetchBatchSize;
+	}
+
+	/**
+	 * Skips the given number of input items, usually a position reported by
+	 * an earlier run to its {@link CheckpointListener}.
+	 *
+	 * @param resumePosition - the number of input items to skip
+	 */
+	public void setResumePosition(long resumePosition) {
+
+		this.resumePosition = resumePosition;
+	}
+
+	/**
+	 * @param interval - number of indexed documents between two checkpoints
+	 * @param listener - persists the index and the position
+	 */
+	public void setCheckpoints(int interval, CheckpointListener listener) {
+
+		if ( interval < 1 ) throw new IllegalArgumentException("The checkpoint interval needs to be positive!");
+		this.checkpointInterval = interval;
+		this.checkpointListener = listener;
+	}
+
+	/**
+	 * Stops taking new input items, everything already taken is still indexed
+	 * and run() returns normally. Can be called from any thread.
+	 */
+	public void stop() {
+
+		stopped = true;
+	}
+
+	/**
+	 * @return true if {@link #stop()} was called, the input may not have been processed completely
+	 */
+	public boolean isStopped() {
+
+		return stopped;
+	}
+
+	/**
+	 * @return the number of input items (including the skipped ones) before the first one which is not done yet
+	 */
+	public long getCheckpoint() {
+
+		// read the next position first, fetchers register a position as pending before they move it
+		long next = nextPosition.get();
+		Long firstPending = pending.ceiling(Long.MIN_VALUE);
+		return firstPending == null ? next : Math.min(firstPending, next);
+	}
+
+	/**
+	 * Fetches and indexes the input items 0 to total - 1. Returns once every
+	 * document has been handed to the indexer, committing the index is left to
+	 * the caller. The position of an item is its number, so the numbering has
+	 * to be the same in every run to resume.
+	 *
+	 * @param total - number of input items, the fetch workers take ranges of them
+	 * @param fetcher - creates the documents
+	 * @param indexer - writes the documents
+	 * @throws IOException - if the indexer failed
+	 * @throws InterruptedException - if interrupted while waiting for the workers
+	 */
+	public void run(final int total, final DocumentFetcher<D> fetcher, final DocumentIndexer<D> indexer) throws IOException, InterruptedException {
+
+		System.out.println("Fetch-Workers: " + fetchWorkers + (isVirtualThreadSupported() ? " (virtual threads)" : ""));
+		System.out.println("Index-Workers: " + indexWorkers);
+		System.out.println("Queue-Size: " + queueSize);
+		System.out.println("Fetch-Batch-Size: " + fetchBatchSize);
+		long position = Math.min(resumePosition, total);
+		if ( position > 0 ) System.out.println("Resuming after " + position + " already processed items");
+		nextPosition.set(position);
+		processed.set((int) position);
+
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(queueSize);
+		final long start = System.currentTimeMillis();
+		ExecutorService indexPool = startIndexWorkers(queue, indexer);
+
+		ExecutorService fetchPool = Executors.newFixedThreadPool(fetchWorkers, createFetchThreadFactory());
+		for ( int i = 0; i < fetchWorkers; i++ ) {
+
+			fetchPool.execute(new Runnable() {
+
+				@Override
+				public void run() {
+
+					fetchDocuments(total, start, queue, fetcher);
+				}
+			});
+		}
+
+		fetchPool.shutdown();
+		fetchPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		finish(queue, indexPool, start);
+	}
+
+	/**
+	 * Indexes documents which are already assembled, the calling thread
+	 * feeds the hand-off queue and there is no fetch stage.
+	 *
+	 * @param documents - the documents to index
+	 * @param total - number of documents, only used for progress output
+	 * @param indexer - writes the documents
+	 * @throws IOException - if the indexer failed
+	 * @throws InterruptedException - if interrupted while waiting for the workers
+	 */
+	public void run(Iterator<D> documents, int total, DocumentIndexer<D> indexer) throws IOException, InterruptedException {
+
+		System.out.println("Index-Workers: " + indexWorkers);
+		System.out.println("Queue-Size: " + queueSize);
+		skipToResumePosition(documents);
+
+		BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(queueSize);
+		long start = System.currentTimeMillis();
+		ExecutorService indexPool = startIndexWorkers(queue, indexer);
+
+		try {
+
+			while ( !stopped && failure.get() == null && documents.hasNext() ) {
+
+				InputBatch inputBatch = startInputBatch(1);
+				inputBatch.remaining.incrementAndGet();
+				queue.put(new QueuedDocument(documents.next(), inputBatch));
+				completeInputBatch(inputBatch);
+				int counter = processed.incrementAndGet();
+				if ( counter % batchSize == 0 )
+					System.out.println("Done: " + counter + "/" + total + " " + MessageFormat.format("{0,number,#.##%}", (double) counter / (double) total) + " in " + (System.currentTimeMillis() - start) + "ms" );
+			}
+		}
+		finally {
+
+			finish(queue, indexPool, start);
+		}
+	}
+
+	private void skipToResumePosition(Iterator<?> items) {
+
+		long position = 0;
+		while ( position < resumePosition && items.hasNext() ) {
+
+			items.next();
+			position++;
+		}
+		if ( position > 0 ) System.out.println("Resuming after " + position + " already processed items");
+		nextPosition.set(position);
+		processed.set((int) position);
+	}
+
+	/**
+	 * Registers the next items as pending. Only one thread at a time may start
+	 * batches, the batch is done once all its documents are indexed and
+	 * {@link #completeInputBatch(InputBatch)} was called once more by the producer.
+	 */
+	private InputBatch startInputBatch(int size) {
+
+		long position = nextPosition.get();
+		pending.add(position);
+		nextPosition.set(position + size);
+		return new InputBatch(position);
+	}
+
+	private void completeInputBatch(InputBatch inputBatch) {
+
+		if ( inputBatch.remaining.decrementAndGet() == 0 ) pending.remove(inputBatch.position);
+	}
+
+	private void checkpoint() throws IOException {
+
+		synchronized (checkpointLock) {
+
+			checkpointListener.checkpoint(getCheckpoint());
+		}
+	}
+
+	private ExecutorService startIndexWorkers(final BlockingQueue<Object> queue, final DocumentIndexer<D> indexer) {
+
+		ExecutorService indexPool = Executors.newFixedThreadPool(indexWorkers, new NamedThreadFactory("index-worker"));
+		for ( int i = 0; i < indexWorkers; i++ ) {
+
+			indexPool.execute(new Runnable() {
+
+				@Override
+				public void run() {
+
+					indexDocuments(queue, indexer);
+				}
+			});
+		}
+		return indexPool;
+	}
+
+	private void finish(BlockingQueue<Object> queue, ExecutorService indexPool, long start) throws IOException, InterruptedException {
+
+		// every index worker stops after taking one end marker
+		for ( int i = 0; i < indexWorkers; i++ ) queue.put(END_OF_QUEUE);
+		indexPool.shutdown();
+		indexPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		System.out.println("Indexed " + indexed.get() + " of " + processed.get() + " resources, skipped " + skipped.get() +
+				" in " + (System.currentTimeMillis() - start) + "ms");
+
+		Exception exception = failure.get();
+		if ( exception instanceof IOException ) throw (IOException) exception;
+		if ( exception != null ) throw new RuntimeException("Indexing failed", exception);
+	}
+
+	private void fetchDocuments(int total, long start, BlockingQueue<Object> queue, DocumentFetcher<D> fetcher) {
+
+		while ( failure.get() == null ) {
+
+			int from;
+			int size;
+			InputBatch inputBatch;
+			synchronized (inputLock) {
+
+				if ( stopped ) return;
+				from = (int) nextPosition.get();
+				size = Math.min(fetchBatchSize, total - from);
+				if ( size <= 0 ) return;
+				inputBatch = startInputBatch(size);
+			}
+
+			try {
+
+				List<D> documents = fetcher.fetch(from, from + size);
+				if ( documents == null ) documents = new ArrayList<D>();
+				inputBatch.remaining.addAndGet(documents.size());
+				for ( D document : documents ) queue.put(new QueuedDocument(document, inputBatch));
+				skipped.addAndGet(size - documents.size());
+			}
+			catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (Exception e) {
+
+				skipped.addAndGet(size);
+				e.printStackTrace();
+			}
+			finally {
+
+				completeInputBatch(inputBatch);
+			}
+
+			int counter = processed.addAndGet(size);
+			if ( counter / batchSize != (counter - size) / batchSize )
+				System.out.println("Done: " + counter + "/" + total + " " + MessageFormat.format("{0,number,#.##%}", (double) counter / (double) total) + " in " + (System.currentTimeMillis() - start) + "ms" );
+		}
+	}
+
+	private void indexDocuments(BlockingQueue<Object> queue, DocumentIndexer<D> indexer) {
+
+		List<QueuedDocument> batch = new ArrayList<QueuedDocument>(batchSize);
+		try {
+
+			while ( true ) {
+
+				Object document = queue.take();
+				if ( document == END_OF_QUEUE ) break;
+				// keep draining after a failure so that the fetchers never block forever
+				if ( failure.get() != null ) continue;
+
+				batch.add((QueuedDocument) document);
+				if ( batch.size() == batchSize ) {
+
+					indexBatch(batch, indexer);
+					batch = new ArrayList<QueuedDocument>(batchSize);
+				}
+			}
+			// write the last few items
+			if ( !batch.isEmpty() && failure.get() == null ) indexBatch(batch, indexer);
+		}
+		catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+
+			e.printStackTrace();
+			failure.compareAndSet(null, e);
+			// the other workers still need to see their end markers
+			while ( true ) {
+				try { if ( queue.take() == END_OF_QUEUE ) return; }
+				catch (InterruptedException ie) { Thread.currentThread().interrupt(); return; }
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void indexBatch(List<QueuedDocument> batch, DocumentIndexer<D> indexer) throws IOException {
+
+		List<D> documents = new ArrayList<D>(batch.size());
+		for ( QueuedDocument queuedDocument : batch ) documents.add((D) queuedDocument.document);
+		indexer.addIndexDocuments(documents);
+		for ( QueuedDocument queuedDocument : batch ) completeInputBatch(queuedDocument.inputBatch);
+
+		int counter = indexed.addAndGet(batch.size());
+		if ( checkpointListener != null && counter / checkpointInterval != (counter - batch.size()) / checkpointInterval ) checkpoint();
+	}
+
+	/**
+	 * @return true if the running JVM offers virtual threads (Java 21+)
+	 */
+	public static boolean isVirtualThreadSupported() {
+
+		try {
+
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+
+			return false;
+		}
+	}
+
+	/**
+	 * Uses Thread.ofVirtual().factory() if available, we still compile
+	 * against older JDKs so this has to go through reflection.
+	 */
+	private static ThreadFactory createFetchThreadFactory() {
+
+		if ( isVirtualThreadSupported() ) {
+
+			try {
+
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "fetch-worker-", 0L);
+				Method factory = builderClass.getMethod("factory");
+				return (ThreadFactory) factory.invoke(builder);
+			}
+			catch (Exception e) {
+
+				e.printStackTrace();
+			}
+		}
+		return new NamedThreadFactory("fetch-worker");
+	}
+
+	/**
+	 * Input items taken together, done once all documents created from them are indexed.
+	 */
+	private static class InputBatch {
+
+		private final long position;
+		// one extra for the producer, released once all documents are queued
+		private final AtomicInteger remaining = new AtomicInteger(1);
+
+		InputBatch(long position) {
+
+			this.position = position;
+		}
+	}
+
+	private static class QueuedDocument {
+
+		private final Object document;
+		private final InputBatch inputBatch;
+
+		QueuedDocument(Object document, InputBatch inputBatch) {
+
+			this.document = document;
+			this.inputBatch = inputBatch;
+		}
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+
+			Thread thread = new Thread(runnable, prefix + "-" + counter.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package de.aksw;
+import java.util.Collection;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.semanticweb.yars.nx.BNode;
+import org.semanticweb.yars.nx.Literal;
+import org.semanticweb.yars.nx.Node;
+import org.semanticweb.yars.nx.parser.NxParser;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * Answers the queries of the generators from the local dump files, loaded
+ * into an in-memory Jena model, so no triple store needs to be running.
+ *
+ * Everything is held on the heap, so this is meant for small language
+ * editions, tests and benchmarks. Only the triples of the resources which
+ * get indexed are loaded. The FROM clause of the queries is ignored and
+ * virtuoso's IRI_RANK is not available, the rank has to be computed offline.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class LocalModelSource implements AttributeSource {
+
+	private static final Logger logger = Logger.getLogger("LocalModelSource");
+
+	private final Model model = ModelFactory.createDefaultModel();
+	private final Set<String> subjects;
+
+	/**
+	 * @param subjects - the (escaped) uris of the resources whose triples are loaded, null to load all triples
+	 */
+	public LocalModelSource(Set<String> subjects) {
+
+		this.subjects = subjects;
+	}
+
+	/**
+	 * Adds the triples of the n-triple file to the model.
+	 *
+	 * @param dumpFile - the file to load, missing files are skipped
+	 */
+	public void load(String dumpFile) {
+
+		if ( !DumpFiles.exists(dumpFile) ) {
+
+			logger.warning("Dump file: " + dumpFile + " does not exist, skipping it!");
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		Graph graph = model.getGraph();
+		int triples = 0;
+		NxParser n3Parser = DumpFiles.openNxParser(dumpFile);
+		while (n3Parser.hasNext()) {
+
+			Node[] node = n3Parser.next();
+			if ( node[0] instanceof BNode || node[2] instanceof BNode ) continue;
+			if ( subjects != null && !subjects.contains(node[0].toString()) ) continue;
+
+			graph.add(Triple.create(NodeFactory.createURI(node[0].toString()), NodeFactory.createURI(node[1].toString()), toJenaNode(node[2])));
+			triples++;
+		}
+		logger.info("Loaded " + triples + " triples from: " + dumpFile + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private static com.hp.hpl.jena.graph.Node toJenaNode(Node node) {
+
+		if ( !(node instanceof Literal) ) return NodeFactory.createURI(node.toString());
+
+		Literal literal = (Literal) node;
+		if ( literal.getLanguageTag() != null ) return NodeFactory.createLiteral(literal.getUnescapedData(), literal.getLanguageTag(), false);
+		if ( literal.getDatatype() != null )
+			return NodeFactory.createLiteral(literal.getUnescapedData(), TypeMapper.getInstance().getSafeTypeByName(literal.getDatatype().toString()));
+		return NodeFactory.createLiteral(literal.getUnescapedData());
+	}
+
+	/**
+	 * @return the number of triples loaded
+	 */
+	public long size() {
+
+		return model.size();
+	}
+
+	@Override
+	public <T> T select(String query, Collection<String> uris, ResultReader<T> reader) {
+
+		QueryExecution qexec = QueryExecutionFactory.create(query, model);
+		try {
+
+			return reader.read(qexec.execSelect());
+		}
+		finally {
+
+			qexec.close();
+		}
+	}
+
+	@Override
+	public boolean isRankSupported() {
+
+		return false;
+	}
+}
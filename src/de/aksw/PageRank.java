@@ -0,0 +1,366 @@
+package de.aksw;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+import org.semanticweb.yars.nx.Node;
+import org.semanticweb.yars.nx.Resource;
+import org.semanticweb.yars.nx.parser.NxParser;
+
+/**
+ * PageRank over the links between DBpedia resources, computed in process
+ * instead of with Virtuoso's s_rank() and IRI_RANK.
+ *
+ * The link dumps are read once, uris are dictionary encoded to ints and the
+ * graph is stored as primitive compressed sparse row arrays of the inbound
+ * links of every resource. The power iteration runs in parallel on a fork join
+ * pool, every task pulls the rank of a range of resources from their in-links.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class PageRank {
+
+	private static final Logger logger = Logger.getLogger("PageRank");
+
+	public static final double DAMPING_FACTOR = 0.85;
+	public static final int MAX_ITERATIONS = 50;
+	public static final double EPSILON = 1e-7;
+
+	/**
+	 * The integer page rank of the average resource, see {@link #getPageRank(String)}.
+	 */
+	public static final int AVERAGE_PAGE_RANK = 1000;
+
+	/**
+	 * Ranges smaller than this are computed without forking further.
+	 */
+	private static final int MIN_RANGE_SIZE = 8192;
+
+	private final UriDictionary dictionary;
+	private final float[] scores;
+
+	private PageRank(UriDictionary dictionary, float[] scores) {
+
+		this.dictionary = dictionary;
+		this.scores = scores;
+	}
+
+	/**
+	 * Reads the scores from the given file if it is newer than the link files,
+	 * otherwise computes the page rank over the link files and saves the scores to the file.
+	 *
+	 * @param scoresFile - the binary file with the persisted scores
+	 * @param linkFiles - the n-triple files with links between resources, missing files are skipped
+	 * @return the page rank
+	 * @throws IOException
+	 */
+	public static PageRank createOrRead(String scoresFile, List<String> linkFiles) throws IOException {
+
+		if ( !DumpFiles.isOutdated(scoresFile, linkFiles) ) return load(scoresFile);
+
+		PageRank pageRank = compute(linkFiles, Runtime.getRuntime().availableProcessors());
+		pageRank.save(scoresFile);
+		return pageRank;
+	}
+
+	/**
+	 * @param linkFiles - the n-triple files with links between resources, missing files are skipped
+	 * @param parallelism - the number of threads used for the iteration
+	 * @return the page rank of every resource found in the link files
+	 */
+	public static PageRank compute(List<String> linkFiles, int parallelism) {
+
+		long start = System.currentTimeMillis();
+		UriDictionary dictionary = new UriDictionary(1 << 20);
+		IntList sources = new IntList();
+		IntList targets = new IntList();
+
+		for ( String linkFile : linkFiles ) {
+
+			if ( !DumpFiles.exists(linkFile) ) {
+
+				logger.warning("Link file: " + linkFile + " does not exist, skipping it!");
+				continue;
+			}
+			logger.info("Reading links from: " + linkFile);
+			NxParser n3Parser = DumpFiles.openNxParser(linkFile);
+			while (n3Parser.hasNext()) {
+
+				Node[] node = n3Parser.next();
+				if ( !(node[2] instanceof Resource) ) continue;
+
+				String subject = node[0].toString();
+				String object = node[2].toString();
+				if ( !subject.contains("/resource/") || !object.contains("/resource/") || subject.equals(object) ) continue;
+
+				sources.add(dictionary.add(subject));
+				targets.add(dictionary.add(object));
+			}
+		}
+		logger.info("Read " + sources.size() + " links between " + dictionary.size() + " resources in " + (System.currentTimeMillis() - start) + "ms");
+
+		Graph graph = new Graph(dictionary.size(), sources, targets);
+		sources = null;
+		targets = null;
+
+		double[] ranks = graph.iterate(parallelism);
+		float[] scores = new float[ranks.length];
+		for ( int i = 0; i < ranks.length; i++ ) scores[i] = (float) ranks[i];
+
+		logger.info("Finished page rank computation in " + (System.currentTimeMillis() - start) + "ms");
+		return new PageRank(dictionary, scores);
+	}
+
+	/**
+	 * @param uri - the uri of the resource
+	 * @return the page rank scaled so that the average resource has {@link #AVERAGE_PAGE_RANK}, 0 if the resource has no links
+	 */
+	public int getPageRank(String uri) {
+
+		int id = dictionary.getId(uri);
+		if ( id < 0 ) return 0;
+		return (int) Math.min(Integer.MAX_VALUE, Math.round((double) scores[id] * scores.length * AVERAGE_PAGE_RANK));
+	}
+
+	/**
+	 * @param uri - the uri of the resource
+	 * @return the probability of the resource, all scores sum up to 1
+	 */
+	public double getScore(String uri) {
+
+		int id = dictionary.getId(uri);
+		return id < 0 ? 0 : scores[id];
+	}
+
+	/**
+	 * @return the number of resources with a score
+	 */
+	public int size() {
+
+		return scores.length;
+	}
+
+	/**
+	 * Writes the scores as number of entries followed by (uri, score) pairs in id order.
+	 *
+	 * @param scoresFile - the file to write
+	 * @throws IOException
+	 */
+	public void save(String scoresFile) throws IOException {
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(scoresFile), 1 << 16))) {
+
+			out.writeInt(scores.length);
+			for ( int id = 0; id < scores.length; id++ ) {
+
+				out.writeUTF(dictionary.getUri(id));
+				out.writeFloat(scores[id]);
+			}
+		}
+		logger.info("Finished writing " + scores.length + " page rank scores to: " + scoresFile);
+	}
+
+	/**
+	 * @param scoresFile - a file written by {@link #save(String)}
+	 * @return the page rank
+	 * @throws IOException
+	 */
+	public static PageRank load(String scoresFile) throws IOException {
+
+		logger.info("Reading page rank scores from: " + scoresFile);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(scoresFile), 1 << 16))) {
+
+			int size = in.readInt();
+			UriDictionary dictionary = new UriDictionary(size);
+			float[] scores = new float[size];
+			for ( int i = 0; i < size; i++ ) scores[dictionary.add(in.readUTF())] = in.readFloat();
+
+			logger.info("Finished reading " + size + " page rank scores.");
+			return new PageRank(dictionary, scores);
+		}
+	}
+
+	/**
+	 * The link graph in compressed sparse row format: the in-links of
+	 * resource v are inSources[inOffsets[v] .. inOffsets[v + 1]).
+	 */
+	private static class Graph {
+
+		private final int size;
+		private final int[] inOffsets;
+		private final int[] inSources;
+		private final int[] outDegrees;
+
+		Graph(int size, IntList sources, IntList targets) {
+
+			this.size = size;
+			this.inOffsets = new int[size + 1];
+			this.inSources = new int[sources.size()];
+			this.outDegrees = new int[size];
+
+			for ( int i = 0; i < sources.size(); i++ ) {
+
+				inOffsets[targets.get(i) + 1]++;
+				outDegrees[sources.get(i)]++;
+			}
+			for ( int v = 0; v < size; v++ ) inOffsets[v + 1] += inOffsets[v];
+
+			int[] positions = Arrays.copyOf(inOffsets, size);
+			for ( int i = 0; i < sources.size(); i++ ) inSources[positions[targets.get(i)]++] = sources.get(i);
+		}
+
+		double[] iterate(int parallelism) {
+
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			double[] ranks = new double[size];
+			double[] contributions = new double[size];
+			Arrays.fill(ranks, 1d / size);
+
+			try {
+
+				for ( int iteration = 1; iteration <= MAX_ITERATIONS; iteration++ ) {
+
+					long start = System.currentTimeMillis();
+					// rank mass of resources without out-links is spread over all resources
+					double danglingMass = pool.invoke(new ContributionTask(ranks, contributions, 0, size));
+					double base = (1 - DAMPING_FACTOR) / size + DAMPING_FACTOR * danglingMass / size;
+					double delta = pool.invoke(new RankTask(ranks, contributions, base, 0, size));
+
+					logger.info("Page rank iteration " + iteration + ": delta " + delta + " in " + (System.currentTimeMillis() - start) + "ms");
+					if ( delta < EPSILON ) break;
+				}
+			}
+			finally {
+
+				pool.shutdown();
+			}
+			return ranks;
+		}
+
+		/**
+		 * Computes rank / out-degree for a range of resources, returns the rank of the dangling ones.
+		 */
+		private class ContributionTask extends RecursiveTask<Double> {
+
+			private static final long serialVersionUID = 1L;
+			private final double[] ranks;
+			private final double[] contributions;
+			private final int from;
+			private final int to;
+
+			ContributionTask(double[] ranks, double[] contributions, int from, int to) {
+
+				this.ranks = ranks;
+				this.contributions = contributions;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected Double compute() {
+
+				if ( to - from > MIN_RANGE_SIZE ) {
+
+					int middle = (from + to) >>> 1;
+					ContributionTask left = new ContributionTask(ranks, contributions, from, middle);
+					left.fork();
+					double right = new ContributionTask(ranks, contributions, middle, to).compute();
+					return left.join() + right;
+				}
+
+				double danglingMass = 0;
+				for ( int v = from; v < to; v++ ) {
+
+					if ( outDegrees[v] == 0 ) {
+
+						danglingMass += ranks[v];
+						contributions[v] = 0;
+					}
+					else contributions[v] = ranks[v] / outDegrees[v];
+				}
+				return danglingMass;
+			}
+		}
+
+		/**
+		 * Pulls the new rank of a range of resources from their in-links, returns the L1 change.
+		 */
+		private class RankTask extends RecursiveTask<Double> {
+
+			private static final long serialVersionUID = 1L;
+			private final double[] ranks;
+			private final double[] contributions;
+			private final double base;
+			private final int from;
+			private final int to;
+
+			RankTask(double[] ranks, double[] contributions, double base, int from, int to) {
+
+				this.ranks = ranks;
+				this.contributions = contributions;
+				this.base = base;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected Double compute() {
+
+				if ( to - from > MIN_RANGE_SIZE ) {
+
+					int middle = (from + to) >>> 1;
+					RankTask left = new RankTask(ranks, contributions, base, from, middle);
+					left.fork();
+					double right = new RankTask(ranks, contributions, base, middle, to).compute();
+					return left.join() + right;
+				}
+
+				double delta = 0;
+				for ( int v = from; v < to; v++ ) {
+
+					double sum = 0;
+					for ( int i = inOffsets[v]; i < inOffsets[v + 1]; i++ ) sum += contributions[inSources[i]];
+
+					double rank = base + DAMPING_FACTOR * sum;
+					delta += Math.abs(rank - ranks[v]);
+					ranks[v] = rank;
+				}
+				return delta;
+			}
+		}
+	}
+
+	/**
+	 * Growable list of primitive ints.
+	 */
+	private static class IntList {
+
+		private int[] values = new int[1 << 16];
+		private int size = 0;
+
+		void add(int value) {
+
+			if ( size == values.length ) values = Arrays.copyOf(values, values.length * 2);
+			values[size++] = value;
+		}
+
+		int get(int index) {
+
+			return values[index];
+		}
+
+		int size() {
+
+			return size;
+		}
+	}
+}
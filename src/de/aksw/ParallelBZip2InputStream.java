@@ -0,0 +1,372 @@
+package de.aksw;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Decompresses a bzip2 file on all cores and hands out the result as one
+ * ordered stream, so parsing a dump is not bound by a single decompressing core.
+ *
+ * A bzip2 stream is a sequence of independent blocks (of up to 900k before
+ * compression), each starting with the 48 bit magic 0x314159265359 at an
+ * arbitrary bit offset. The calling thread scans the compressed bytes for
+ * these magics and cuts out the blocks, every block is wrapped into a stream
+ * of its own (header, the block, end of stream marker and the block's CRC as
+ * stream CRC) and decompressed by {@link BZip2CompressorInputStream} on a
+ * pool thread. At most two blocks per thread are decompressed ahead.
+ *
+ * The magics may also occur by chance inside the compressed data. A block cut
+ * at such a place fails its CRC check and is decompressed again together with
+ * the following pieces. Concatenated streams (as written by pbzip2) are
+ * supported, the bits between the end of stream marker of one stream and the
+ * first block of the next are kept as a gap which is only decompressed as part
+ * of such a merge.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class ParallelBZip2InputStream extends InputStream {
+
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+	private static final long MAGIC_MASK = (1L << 48) - 1;
+	private static final byte[] HEADER = { 'B', 'Z', 'h', '9' };
+	private static final int MAXIMUM_MERGED_PIECES = 8;
+	private static final byte[] EMPTY = new byte[0];
+
+	private final InputStream compressed;
+	private final ExecutorService executor;
+	private final int maximumPending;
+	private final Deque<Block> pending = new ArrayDeque<Block>();
+
+	// the compressed bytes not yet cut into blocks, bufferStart is the absolute bit offset of buffer[0]
+	private byte[] buffer = new byte[1 << 20];
+	private int bufferLength = 0;
+	private long bufferStart = 0;
+	private long scanned = 0;
+	private long window = 0;
+	// absolute bit offset of the piece being scanned, -1 before the first magic
+	private long pieceStart = -1;
+	// the piece being scanned starts with an end of stream marker
+	private boolean gap = false;
+	private boolean endOfInput = false;
+
+	private byte[] decompressed = new byte[0];
+	private int position = 0;
+
+	/**
+	 * @param compressed - the bzip2 compressed data, read by the calling thread
+	 * @param threads - the number of decompressing threads
+	 * @throws IOException - if the data does not start with a bzip2 header
+	 */
+	public ParallelBZip2InputStream(InputStream compressed, int threads) throws IOException {
+
+		this.compressed = compressed;
+		this.maximumPending = 2 * threads;
+
+		byte[] header = new byte[3];
+		int read = 0;
+		while ( read < header.length ) {
+
+			int n = compressed.read(header, read, header.length - read);
+			if ( n < 0 ) break;
+			read += n;
+		}
+		if ( read < header.length || header[0] != 'B' || header[1] != 'Z' || header[2] != 'h' ) throw new IOException("Not a bzip2 stream!");
+		bufferStart = scanned = 3 * 8;
+
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+
+				Thread thread = new Thread(runnable, "bzip2-decompressor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @param compressed - the bzip2 compressed data, read by the calling thread
+	 * @throws IOException - if the data does not start with a bzip2 header
+	 */
+	public ParallelBZip2InputStream(InputStream compressed) throws IOException {
+
+		this(compressed, Runtime.getRuntime().availableProcessors());
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		if ( !fill() ) return -1;
+		return decompressed[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+
+		if ( length == 0 ) return 0;
+		if ( !fill() ) return -1;
+
+		int n = Math.min(length, decompressed.length - position);
+		System.arraycopy(decompressed, position, bytes, offset, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+
+		return decompressed.length - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		executor.shutdownNow();
+		compressed.close();
+	}
+
+	/**
+	 * Makes sure there are unread decompressed bytes.
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+
+		while ( position == decompressed.length ) {
+
+			while ( pending.size() < maximumPending && scanPiece() ) ;
+			if ( pending.isEmpty() ) return false;
+
+			decompressed = take(pending.removeFirst());
+			position = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for a block, if its decompression failed the block was cut at a
+	 * magic which is part of the compressed data, so it is glued to the following pieces.
+	 */
+	private byte[] take(Block block) throws IOException {
+
+		if ( block.gap ) return EMPTY;
+		try {
+
+			return block.decompressed.get();
+		}
+		catch (ExecutionException e) {
+
+			if ( !(e.getCause() instanceof IOException) ) throw new IOException(e.getCause());
+			while ( pending.size() < maximumPending && scanPiece() ) ;
+			if ( pending.isEmpty() || block.pieces >= MAXIMUM_MERGED_PIECES ) throw (IOException) e.getCause();
+
+			Block next = pending.removeFirst();
+			if ( next.decompressed != null ) next.decompressed.cancel(true);
+			block.append(next);
+			block.decompressed = executor.submit(block);
+			return take(block);
+		}
+		catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decompressing!", e);
+		}
+	}
+
+	/**
+	 * Scans the compressed bytes up to the next magic and queues the piece before it.
+	 *
+	 * @return false if there are no more pieces
+	 */
+	private boolean scanPiece() throws IOException {
+
+		while ( true ) {
+
+			// bits are scanned a byte at a time, a magic may end at any of its 8 bits
+			while ( scanned < bufferStart + (long) bufferLength * 8 ) {
+
+				int b = buffer[(int) ((scanned - bufferStart) >>> 3)] & 0xFF;
+				window = (window << 8) | b;
+				scanned += 8;
+
+				for ( int shift = 7; shift >= 0; shift-- ) {
+
+					long candidate = (window >>> shift) & MAGIC_MASK;
+					if ( candidate != BLOCK_MAGIC && candidate != END_OF_STREAM_MAGIC ) continue;
+
+					long magicStart = scanned - shift - 48;
+					if ( magicStart < bufferStart ) continue;
+
+					boolean cut = pieceStart >= 0 && magicStart > pieceStart;
+					if ( cut ) queue(magicStart);
+					pieceStart = magicStart;
+					gap = candidate == END_OF_STREAM_MAGIC;
+					if ( cut ) return true;
+				}
+			}
+
+			if ( endOfInput ) {
+
+				// a stream without end of stream marker is truncated, the decompressor reports it
+				if ( pieceStart >= 0 && !gap && scanned > pieceStart ) {
+
+					queue(scanned);
+					pieceStart = -1;
+					return true;
+				}
+				return false;
+			}
+			readCompressed();
+		}
+	}
+
+	/**
+	 * Cuts the bits from the start of the current piece to the given bit out of
+	 * the buffer and queues them, blocks are submitted for decompression.
+	 */
+	private void queue(long end) {
+
+		Block block = new Block(gap);
+		block.append(buffer, pieceStart - bufferStart, end - pieceStart);
+		if ( !gap ) block.decompressed = executor.submit(block);
+		pending.addLast(block);
+		discard(end);
+	}
+
+	/**
+	 * Drops the buffered bytes before the byte holding the given bit.
+	 */
+	private void discard(long bit) {
+
+		int bytes = (int) ((bit - bufferStart) >>> 3);
+		System.arraycopy(buffer, bytes, buffer, 0, bufferLength - bytes);
+		bufferLength -= bytes;
+		bufferStart += (long) bytes * 8;
+	}
+
+	private void readCompressed() throws IOException {
+
+		if ( bufferLength == buffer.length ) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		int n = compressed.read(buffer, bufferLength, buffer.length - bufferLength);
+		if ( n < 0 ) endOfInput = true;
+		else bufferLength += n;
+	}
+
+	/**
+	 * The bits of one block (or of several pieces if a magic occurred inside
+	 * a block), starting at bit 0 with the block magic, or of a gap between two streams.
+	 */
+	private static class Block implements Callable<byte[]> {
+
+		private final boolean gap;
+		private byte[] bits = new byte[1 << 16];
+		private long length = 0;
+		private int pieces = 1;
+		private Future<byte[]> decompressed;
+
+		private Block(boolean gap) {
+
+			this.gap = gap;
+		}
+
+		/**
+		 * Appends the bits [from, from + count) of the source.
+		 */
+		private void append(byte[] source, long from, long count) {
+
+			int needed = (int) ((length + count + 7) >>> 3) + 1;
+			if ( needed > bits.length ) bits = Arrays.copyOf(bits, Math.max(needed, bits.length * 2));
+
+			long copied = 0;
+			for ( ; copied + 8 <= count; copied += 8 ) writeByte(readByte(source, from + copied));
+			for ( ; copied < count; copied++ ) writeBit((source[(int) ((from + copied) >>> 3)] >>> (7 - (int) ((from + copied) & 7))) & 1);
+		}
+
+		private void append(Block next) {
+
+			append(next.bits, 0, next.length);
+			pieces += next.pieces;
+		}
+
+		private static int readByte(byte[] source, long from) {
+
+			int index = (int) (from >>> 3);
+			int shift = (int) (from & 7);
+			if ( shift == 0 ) return source[index] & 0xFF;
+			return ((source[index] << shift) | ((source[index + 1] & 0xFF) >>> (8 - shift))) & 0xFF;
+		}
+
+		private void writeByte(int b) {
+
+			int index = (int) (length >>> 3);
+			int shift = (int) (length & 7);
+			if ( shift == 0 ) bits[index] = (byte) b;
+			else {
+
+				bits[index] |= (byte) (b >>> shift);
+				bits[index + 1] = (byte) (b << (8 - shift));
+			}
+			length += 8;
+		}
+
+		private void writeBit(int bit) {
+
+			int index = (int) (length >>> 3);
+			int shift = (int) (length & 7);
+			if ( shift == 0 ) bits[index] = 0;
+			if ( bit != 0 ) bits[index] |= (byte) (0x80 >>> shift);
+			length++;
+		}
+
+		/**
+		 * @return the block as a complete bzip2 stream: header, block, end of stream marker and CRC
+		 */
+		private byte[] toStream() {
+
+			// the stream CRC of a single block stream is the CRC of the block, it follows the 48 bit magic
+			long crc = 0;
+			for ( int i = 0; i < 4; i++ ) crc = (crc << 8) | readByte(bits, 48 + i * 8);
+
+			Block stream = new Block(false);
+			stream.bits = new byte[HEADER.length + (int) ((length + 7) >>> 3) + 11];
+			stream.append(HEADER, 0, HEADER.length * 8);
+			stream.append(bits, 0, length);
+			long trailer = (END_OF_STREAM_MAGIC << 16) | (crc >>> 16);
+			for ( int i = 7; i >= 0; i-- ) stream.writeByte((int) (trailer >>> (i * 8)) & 0xFF);
+			stream.writeByte((int) (crc >>> 8) & 0xFF);
+			stream.writeByte((int) crc & 0xFF);
+			return Arrays.copyOf(stream.bits, (int) ((stream.length + 7) >>> 3));
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+
+			if ( length < 48 + 32 ) throw new IOException("Truncated bzip2 block!");
+			try (InputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(toStream()))) {
+
+				byte[] out = new byte[Math.max(1 << 16, (int) (length >>> 3) * 6)];
+				int size = 0;
+				int n;
+				while ( (n = in.read(out, size, out.length - size)) >= 0 ) {
+
+					size += n;
+					if ( size == out.length ) out = Arrays.copyOf(out, out.length * 2);
+				}
+				return Arrays.copyOf(out, size);
+			}
+		}
+	}
+}
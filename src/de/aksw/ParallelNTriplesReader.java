@@ -0,0 +1,501 @@
+package de.aksw;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Parses an n-triple file on all cores instead of with one sequential {@link org.semanticweb.yars.nx.parser.NxParser}.
+ *
+ * The file is split into byte ranges, every range starts after the first line
+ * break at or after its nominal start, so every line is parsed by exactly one
+ * worker. A worker reads its range with its own channel and splits every line
+ * into subject, predicate and object with a small scanner, values are unescaped
+ * like NxParser does (so uris and labels are equal to node.toString()). Malformed
+ * lines are counted and skipped.
+ *
+ * The triples are handed to a {@link TripleHandler} which is called from all
+ * workers at the same time. The triples of one range are handed out by a single
+ * thread in file order and carry the index of their range, ranges are numbered
+ * in file order, so a handler can keep one result per range and concatenate
+ * them to get the file order back.
+ *
+ * Compressed dumps can not be split, they are read as a single range by the
+ * calling thread (see {@link DumpFiles}).
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class ParallelNTriplesReader {
+
+	private static final Logger logger = Logger.getLogger("ParallelNTriplesReader");
+
+	/**
+	 * Files are not split into ranges smaller than this.
+	 */
+	private static final long MIN_RANGE_SIZE = 1 << 22;
+	private static final int RANGES_PER_THREAD = 4;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final String dumpFile;
+	private final File file;
+	private final int threads;
+	private final long[] rangeStarts;
+
+	/**
+	 * Receives the triples, called from several threads at once.
+	 */
+	public interface TripleHandler {
+
+		/**
+		 * @param triple - only valid during the call
+		 * @throws IOException
+		 */
+		void handle(Triple triple) throws IOException;
+	}
+
+	/**
+	 * @param dumpFile - the uncompressed name of the dump, see {@link DumpFiles}
+	 */
+	public ParallelNTriplesReader(String dumpFile) {
+
+		this(dumpFile, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param dumpFile - the uncompressed name of the dump, see {@link DumpFiles}
+	 * @param threads - the number of parsing threads
+	 */
+	public ParallelNTriplesReader(String dumpFile, int threads) {
+
+		this.dumpFile = dumpFile;
+		this.file = DumpFiles.resolve(dumpFile);
+		this.threads = threads;
+
+		// a compressed file is one range without end
+		if ( !file.getPath().equals(dumpFile) ) this.rangeStarts = new long[]{ 0, Long.MAX_VALUE };
+		else {
+
+			long length = file.length();
+			int ranges = (int) Math.max(1, Math.min((long) threads * RANGES_PER_THREAD, length / MIN_RANGE_SIZE));
+			this.rangeStarts = new long[ranges + 1];
+			for ( int range = 0; range < ranges; range++ ) rangeStarts[range] = length / ranges * range;
+			rangeStarts[ranges] = length;
+		}
+	}
+
+	/**
+	 * @return the number of ranges the file is split into, the range of every triple is between 0 and this - 1
+	 */
+	public int getRangeCount() {
+
+		return rangeStarts.length - 1;
+	}
+
+	/**
+	 * Parses all ranges and waits for them.
+	 *
+	 * @param handler - receives the triples from all threads
+	 * @return the number of triples
+	 * @throws IOException - if the file can not be read or the handler failed
+	 */
+	public long read(final TripleHandler handler) throws IOException {
+
+		long start = System.currentTimeMillis();
+		final AtomicLong malformed = new AtomicLong();
+		long triples = 0;
+
+		if ( getRangeCount() == 1 ) triples = new RangeParser(0, handler, malformed).call();
+		else {
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, getRangeCount()));
+			try {
+
+				List<Future<Long>> results = new ArrayList<Future<Long>>();
+				for ( int range = 0; range < getRangeCount(); range++ ) results.add(executor.submit(new RangeParser(range, handler, malformed)));
+				for ( Future<Long> result : results ) triples += result.get();
+			}
+			catch (ExecutionException e) {
+
+				if ( e.getCause() instanceof IOException ) throw (IOException) e.getCause();
+				if ( e.getCause() instanceof RuntimeException ) throw (RuntimeException) e.getCause();
+				throw new IOException(e.getCause());
+			}
+			catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while parsing: " + dumpFile, e);
+			}
+			finally {
+
+				executor.shutdownNow();
+			}
+		}
+
+		if ( malformed.get() > 0 ) logger.warning("Skipped " + malformed.get() + " malformed lines of: " + dumpFile);
+		logger.info("Parsed " + triples + " triples from: " + file + " in " + getRangeCount() + " ranges in " + (System.currentTimeMillis() - start) + "ms");
+		return triples;
+	}
+
+	/**
+	 * Reads the lines starting in one range and hands their triples to the handler.
+	 */
+	private class RangeParser implements Callable<Long> {
+
+		private final int range;
+		private final TripleHandler handler;
+		private final AtomicLong malformed;
+		private final Triple triple;
+
+		private byte[] bytes = new byte[BUFFER_SIZE];
+		private int position = 0;
+		private int limit = 0;
+
+		RangeParser(int range, TripleHandler handler, AtomicLong malformed) {
+
+			this.range = range;
+			this.handler = handler;
+			this.malformed = malformed;
+			this.triple = new Triple(range);
+		}
+
+		@Override
+		public Long call() throws IOException {
+
+			long end = rangeStarts[range + 1];
+			long triples = 0;
+
+			try (InputStream in = DumpFiles.open(dumpFile)) {
+
+				ReadableByteChannel channel = Channels.newChannel(in);
+				// the absolute position of bytes[position]
+				long offset = 0;
+				if ( rangeStarts[range] > 0 ) {
+
+					// the line break ending the last line of the previous range may be the first byte of this range
+					offset = rangeStarts[range] - 1;
+					channel = ((FileInputStream) in).getChannel().position(offset);
+					int lineEnd = findLineEnd(channel);
+					if ( lineEnd < 0 ) return 0L;
+					offset += skip(lineEnd);
+				}
+
+				// every line starting in the range belongs to it
+				while ( offset < end ) {
+
+					int lineEnd = findLineEnd(channel);
+					if ( lineEnd < 0 ) break;
+
+					String line = new String(bytes, position, lineEnd - position, StandardCharsets.UTF_8);
+					offset += skip(lineEnd);
+
+					if ( triple.parse(line) ) {
+
+						handler.handle(triple);
+						triples++;
+					}
+					else if ( !isBlankOrComment(line) ) malformed.incrementAndGet();
+				}
+			}
+			return triples;
+		}
+
+		/**
+		 * Moves behind the line break at the given index.
+		 *
+		 * @return the number of bytes skipped
+		 */
+		private int skip(int lineEnd) {
+
+			int skipped = Math.min(lineEnd + 1, limit) - position;
+			position += skipped;
+			return skipped;
+		}
+
+		/**
+		 * @return the index of the next line break, or the end of the input if
+		 *         the last line has none, -1 if there is nothing left
+		 */
+		private int findLineEnd(ReadableByteChannel channel) throws IOException {
+
+			int scanned = position;
+			while ( true ) {
+
+				for ( int i = scanned; i < limit; i++ )
+					if ( bytes[i] == '\n' ) return i;
+				scanned = limit - position;
+
+				if ( position > 0 ) {
+
+					System.arraycopy(bytes, position, bytes, 0, limit - position);
+					limit -= position;
+					position = 0;
+				}
+				if ( limit == bytes.length ) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+
+				int read = channel.read(ByteBuffer.wrap(bytes, limit, bytes.length - limit));
+				if ( read < 0 ) return position < limit ? limit : -1;
+				limit += read;
+			}
+		}
+	}
+
+	private static boolean isBlankOrComment(String line) {
+
+		for ( int i = 0; i < line.length(); i++ ) {
+
+			char c = line.charAt(i);
+			if ( c == '#' ) return true;
+			if ( c != ' ' && c != '\t' && c != '\r' ) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * One parsed line, reused for all lines of a range.
+	 */
+	public static class Triple {
+
+		private final int range;
+		private String line;
+		private String subject;
+		private String predicate;
+		private String object;
+		private String language;
+		private String datatype;
+		private boolean subjectBlankNode;
+		private boolean objectLiteral;
+		private boolean objectBlankNode;
+		// the position of the scanner in the line
+		private int position;
+
+		Triple(int range) {
+
+			this.range = range;
+		}
+
+		/**
+		 * @return the range of the file the triple was read from
+		 */
+		public int getRange() {
+
+			return range;
+		}
+
+		/**
+		 * @return the line as it is in the file (without line break)
+		 */
+		public String getLine() {
+
+			return line;
+		}
+
+		/**
+		 * @return the subject uri, or the blank node label
+		 */
+		public String getSubject() {
+
+			return subject;
+		}
+
+		public boolean isSubjectBlankNode() {
+
+			return subjectBlankNode;
+		}
+
+		/**
+		 * @return the predicate uri
+		 */
+		public String getPredicate() {
+
+			return predicate;
+		}
+
+		/**
+		 * @return the object uri, the blank node label or the unescaped value of the literal
+		 */
+		public String getObject() {
+
+			return object;
+		}
+
+		public boolean isObjectLiteral() {
+
+			return objectLiteral;
+		}
+
+		public boolean isObjectBlankNode() {
+
+			return objectBlankNode;
+		}
+
+		/**
+		 * @return the language tag of the literal object, null if there is none
+		 */
+		public String getLanguage() {
+
+			return language;
+		}
+
+		/**
+		 * @return the datatype uri of the literal object, null if there is none
+		 */
+		public String getDatatype() {
+
+			return datatype;
+		}
+
+		/**
+		 * @return false if the line is empty, a comment or malformed
+		 */
+		boolean parse(String line) {
+
+			this.line = line;
+			this.position = 0;
+			this.language = null;
+			this.datatype = null;
+
+			skipWhitespace();
+			if ( position == line.length() || line.charAt(position) == '#' ) return false;
+
+			subjectBlankNode = line.startsWith("_:", position);
+			subject = subjectBlankNode ? scanBlankNode() : scanUri();
+			if ( subject == null || !skipWhitespace() ) return false;
+
+			predicate = scanUri();
+			if ( predicate == null || !skipWhitespace() ) return false;
+
+			objectLiteral = false;
+			objectBlankNode = false;
+			if ( position == line.length() ) return false;
+			char c = line.charAt(position);
+			if ( c == '<' ) object = scanUri();
+			else if ( c == '_' && line.startsWith("_:", position) ) {
+
+				objectBlankNode = true;
+				object = scanBlankNode();
+			}
+			else if ( c == '"' ) {
+
+				objectLiteral = true;
+				object = scanLiteral();
+			}
+			else return false;
+			if ( object == null ) return false;
+
+			skipWhitespace();
+			return position < line.length() && line.charAt(position) == '.';
+		}
+
+		/**
+		 * @return false if the end of the line is reached
+		 */
+		private boolean skipWhitespace() {
+
+			while ( position < line.length() && (line.charAt(position) == ' ' || line.charAt(position) == '\t') ) position++;
+			return position < line.length();
+		}
+
+		private String scanUri() {
+
+			if ( line.charAt(position) != '<' ) return null;
+			int end = line.indexOf('>', position + 1);
+			if ( end < 0 ) return null;
+
+			String uri = unescape(position + 1, end);
+			position = end + 1;
+			return uri;
+		}
+
+		private String scanBlankNode() {
+
+			int start = position;
+			while ( position < line.length() && line.charAt(position) != ' ' && line.charAt(position) != '\t' ) position++;
+			return line.substring(start, position);
+		}
+
+		private String scanLiteral() {
+
+			int start = position + 1;
+			int end = start;
+			while ( end < line.length() && line.charAt(end) != '"' ) end += line.charAt(end) == '\\' ? 2 : 1;
+			if ( end >= line.length() ) return null;
+
+			String value = unescape(start, end);
+			position = end + 1;
+			if ( line.startsWith("@", position) ) {
+
+				int tagStart = ++position;
+				while ( position < line.length() && line.charAt(position) != ' ' && line.charAt(position) != '\t' && line.charAt(position) != '.' ) position++;
+				language = line.substring(tagStart, position);
+			}
+			else if ( line.startsWith("^^", position) ) {
+
+				position += 2;
+				if ( position == line.length() || (datatype = scanUri()) == null ) return null;
+			}
+			return value;
+		}
+
+		/**
+		 * Resolves the n-triple escapes (\t \n \r \" \\ \\uXXXX \\UXXXXXXXX) of a part of the line.
+		 */
+		private String unescape(int start, int end) {
+
+			int backslash = line.indexOf('\\', start);
+			if ( backslash < 0 || backslash >= end ) return line.substring(start, end);
+
+			StringBuilder value = new StringBuilder(end - start);
+			value.append(line, start, backslash);
+			for ( int i = backslash; i < end; i++ ) {
+
+				char c = line.charAt(i);
+				if ( c != '\\' || i + 1 == end ) {
+
+					value.append(c);
+					continue;
+				}
+
+				char escaped = line.charAt(++i);
+				switch ( escaped ) {
+
+					case 't': value.append('\t'); break;
+					case 'n': value.append('\n'); break;
+					case 'r': value.append('\r'); break;
+					case 'u':
+					case 'U':
+						int digits = escaped == 'u' ? 4 : 8;
+						if ( i + digits < end && isHex(i + 1, i + 1 + digits) ) {
+
+							value.appendCodePoint(Integer.parseInt(line.substring(i + 1, i + 1 + digits), 16));
+							i += digits;
+						}
+						else value.append('\\').append(escaped);
+						break;
+					default: value.append(escaped);
+				}
+			}
+			return value.toString();
+		}
+
+		private boolean isHex(int start, int end) {
+
+			for ( int i = start; i < end; i++ )
+				if ( Character.digit(line.charAt(i), 16) < 0 ) return false;
+			return true;
+		}
+	}
+}
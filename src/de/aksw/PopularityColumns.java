@@ -0,0 +1,224 @@
+package de.aksw;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.document.DoubleDocValuesField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * The popularity of the resources as column stride doc values of the index,
+ * so candidates can be ranked without loading the stored fields of every hit
+ * or un-inverting the indexed numeric fields through the FieldCache.
+ *
+ *  - pagerank: the page rank scaled by {@link PageRank#getPageRank(String)}
+ *  - disambiguationScore: log(inbound links + 1), a {@link DoubleDocValuesField}
+ *  - popularity: the bucket of the page rank, see {@link #getPopularityBucket(int)}
+ *
+ * The read path is {@link #searchTopCandidates(IndexSearcher, Query, int)}: the
+ * query only selects the candidates (e.g. a term query on the surface forms) and
+ * the k best of them by {@link #score(long, double)} are kept while collecting.
+ * Sorting with a SortField on one of the columns reads the doc values as well.
+ * On an index sorted by {@link PopularitySortedIndex} the first k hits are the
+ * k best, so the search stops after them instead of visiting every hit.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class PopularityColumns {
+
+	public static final String PAGE_RANK_FIELD = "pagerank";
+	public static final String DISAMBIGUATION_SCORE_FIELD = "disambiguationScore";
+	public static final String POPULARITY_FIELD = "popularity";
+
+	/**
+	 * @param pageRank - the scaled page rank
+	 * @return 0 for resources without links, then one bucket per doubling of the page rank (at most 31)
+	 */
+	public static int getPopularityBucket(int pageRank) {
+
+		return pageRank <= 0 ? 0 : 32 - Integer.numberOfLeadingZeros(pageRank);
+	}
+
+	/**
+	 * Both signals on a log scale: the disambiguation score is log(inbound links + 1),
+	 * the page rank adds log(1 + page rank / the page rank of the average resource).
+	 *
+	 * @param pageRank - the scaled page rank
+	 * @param disambiguationScore - the disambiguation score
+	 * @return the popularity score of a candidate
+	 */
+	public static double score(long pageRank, double disambiguationScore) {
+
+		return disambiguationScore + Math.log1p(pageRank / (double) PageRank.AVERAGE_PAGE_RANK);
+	}
+
+	/**
+	 * @param searcher - the searcher of the index (or of a MultiReader over its shards)
+	 * @param query - selects the candidates, its scores are ignored
+	 * @param k - the number of candidates
+	 * @return the k candidates with the highest {@link #score(long, double)}, best first,
+	 * the total hits of a sorted index only count the hits visited before the search stopped
+	 * @throws IOException
+	 */
+	public static TopDocs searchTopCandidates(IndexSearcher searcher, Query query, int k) throws IOException {
+
+		if ( PopularitySortedIndex.isSorted(searcher.getIndexReader()) ) {
+
+			FirstCandidatesCollector collector = new FirstCandidatesCollector(k);
+			searcher.search(query, collector);
+			return collector.getTopDocs();
+		}
+		TopCandidatesCollector collector = new TopCandidatesCollector(k);
+		searcher.search(query, collector);
+		return collector.getTopDocs();
+	}
+
+	/**
+	 * Keeps the k best hits in a heap with the worst of them on top, the
+	 * columns of a segment are read once the searcher moves to it.
+	 */
+	private static class TopCandidatesCollector extends Collector {
+
+		// the worst candidate first, of equal scores the one which comes later in the index
+		private static final Comparator<ScoreDoc> WORST_FIRST = new Comparator<ScoreDoc>() {
+
+			@Override
+			public int compare(ScoreDoc left, ScoreDoc right) {
+
+				int comparison = Float.compare(left.score, right.score);
+				return comparison != 0 ? comparison : Integer.compare(right.doc, left.doc);
+			}
+		};
+
+		private final int k;
+		private final PriorityQueue<ScoreDoc> candidates;
+		private int totalHits = 0;
+		private int docBase;
+		private NumericDocValues pageRanks;
+		private NumericDocValues disambiguationScores;
+
+		TopCandidatesCollector(int k) {
+
+			if ( k < 1 ) throw new IllegalArgumentException("The number of candidates needs to be positive!");
+			this.k = k;
+			this.candidates = new PriorityQueue<ScoreDoc>(k, WORST_FIRST);
+		}
+
+		@Override
+		public void setScorer(Scorer scorer) {
+		}
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+
+			AtomicReader reader = context.reader();
+			docBase = context.docBase;
+			pageRanks = getColumn(reader, PAGE_RANK_FIELD);
+			disambiguationScores = getColumn(reader, DISAMBIGUATION_SCORE_FIELD);
+		}
+
+		@Override
+		public void collect(int doc) {
+
+			totalHits++;
+			float score = (float) score(pageRanks.get(doc), Double.longBitsToDouble(disambiguationScores.get(doc)));
+			if ( candidates.size() == k ) {
+
+				ScoreDoc worst = candidates.peek();
+				// later documents lose ties, they come in order within a segment and segments in docBase order
+				if ( score <= worst.score ) return;
+				candidates.poll();
+			}
+			candidates.add(new ScoreDoc(docBase + doc, score));
+		}
+
+		@Override
+		public boolean acceptsDocsOutOfOrder() {
+
+			return false;
+		}
+
+		TopDocs getTopDocs() {
+
+			ScoreDoc[] scoreDocs = candidates.toArray(new ScoreDoc[candidates.size()]);
+			Arrays.sort(scoreDocs, Collections.reverseOrder(WORST_FIRST));
+			return new TopDocs(totalHits, scoreDocs, scoreDocs.length == 0 ? Float.NaN : scoreDocs[0].score);
+		}
+
+		/**
+		 * Segments without any document having the column read as 0.
+		 */
+		private static NumericDocValues getColumn(AtomicReader reader, String field) throws IOException {
+
+			NumericDocValues values = reader.getNumericDocValues(field);
+			return values != null ? values : DocValues.EMPTY_NUMERIC;
+		}
+	}
+
+	/**
+	 * Keeps the first k hits of an index sorted by popularity and stops the
+	 * search once it has them: the hits of a segment come in docid order and
+	 * the segments in docBase order, i.e. from the most popular candidate on.
+	 */
+	private static class FirstCandidatesCollector extends Collector {
+
+		private final ScoreDoc[] candidates;
+		private int size = 0;
+		private int docBase;
+		private NumericDocValues pageRanks;
+		private NumericDocValues disambiguationScores;
+
+		FirstCandidatesCollector(int k) {
+
+			if ( k < 1 ) throw new IllegalArgumentException("The number of candidates needs to be positive!");
+			this.candidates = new ScoreDoc[k];
+		}
+
+		@Override
+		public void setScorer(Scorer scorer) {
+		}
+
+		@Override
+		public void setNextReader(AtomicReaderContext context) throws IOException {
+
+			// skips the remaining segments as well
+			if ( size == candidates.length ) throw new CollectionTerminatedException();
+
+			AtomicReader reader = context.reader();
+			docBase = context.docBase;
+			pageRanks = TopCandidatesCollector.getColumn(reader, PAGE_RANK_FIELD);
+			disambiguationScores = TopCandidatesCollector.getColumn(reader, DISAMBIGUATION_SCORE_FIELD);
+		}
+
+		@Override
+		public void collect(int doc) {
+
+			float score = (float) score(pageRanks.get(doc), Double.longBitsToDouble(disambiguationScores.get(doc)));
+			candidates[size++] = new ScoreDoc(docBase + doc, score);
+			if ( size == candidates.length ) throw new CollectionTerminatedException();
+		}
+
+		@Override
+		public boolean acceptsDocsOutOfOrder() {
+
+			return false;
+		}
+
+		TopDocs getTopDocs() {
+
+			return new TopDocs(size, Arrays.copyOf(candidates, size), size == 0 ? Float.NaN : candidates[0].score);
+		}
+	}
+}
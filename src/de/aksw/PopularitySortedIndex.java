@@ -0,0 +1,187 @@
+package de.aksw;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Rewrites a finished index with its documents ordered by popularity, the
+ * most popular resource gets docid 0. The documents of a build come in the
+ * order of the dumps or of the surface form store, so without sorting the
+ * best candidates for a frequent surface form ("Paris", "John") are spread
+ * over all of its postings and every one of them has to be scored.
+ *
+ * The order is the one of {@link PopularityColumns#score(long, double)}, which
+ * for equal disambiguation scores is the page rank, descending. On a sorted
+ * index {@link PopularityColumns#searchTopCandidates} stops after the first k
+ * hits, which are the k best, and returns the same candidates it would find
+ * by scoring every hit.
+ *
+ * The documents are rebuilt from their stored fields and added by a single
+ * thread to a writer with a {@link LogDocMergePolicy}, which only merges
+ * adjacent segments, so the docids keep the order of the additions. The
+ * commit of the sorted index is marked with {@link #SORTED_BY_KEY}, any later
+ * commit (e.g. of an {@link IncrementalUpdate}, which appends the changed
+ * documents at the end) drops the mark until the index is sorted again.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class PopularitySortedIndex {
+
+	private static final Logger logger = Logger.getLogger("PopularitySortedIndex");
+
+	public static final String SORTED_BY_KEY = "sortedBy";
+	public static final String SORTED_BY_POPULARITY = "popularity";
+
+	private static final String SORTED_SUFFIX = ".sorted";
+	private static final String BACKUP_SUFFIX = ".unsorted";
+
+	/**
+	 * @param reader - the reader of an index (or of a MultiReader over its shards)
+	 * @return true if the reader is the one of a single index whose last commit was sorted by popularity
+	 * @throws IOException
+	 */
+	public static boolean isSorted(IndexReader reader) throws IOException {
+
+		if ( !(reader instanceof DirectoryReader) ) return false;
+		return SORTED_BY_POPULARITY.equals(((DirectoryReader) reader).getIndexCommit().getUserData().get(SORTED_BY_KEY));
+	}
+
+	/**
+	 * Sorts the (merged) index of the {@link DBpediaLuceneIndexGenerator} in
+	 * place. The sorted copy is written next to the index and replaces it
+	 * once it is complete, so the disk needs room for the index twice. The
+	 * directories are swapped by renaming, if anything fails before the
+	 * sorted copy is in place the original index is kept.
+	 *
+	 * @param indexDirectory - the directory of the index
+	 * @param configFactory - the configuration of the index, the open mode and merge policy are replaced
+	 * @throws IOException
+	 */
+	public static void sort(String indexDirectory, ShardedIndexWriter.ConfigFactory configFactory) throws IOException {
+
+		long start = System.currentTimeMillis();
+		File directory = new File(indexDirectory);
+		File sortedDirectory = new File(directory.getParentFile(), directory.getName() + SORTED_SUFFIX);
+		logger.info("Sorting the index by popularity: " + directory);
+
+		int documents = 0;
+		try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(directory))) {
+
+			IndexWriterConfig config = configFactory.create();
+			config.setOpenMode(OpenMode.CREATE);
+			config.setMergePolicy(new LogDocMergePolicy());
+
+			Map<String,String> commitData = new HashMap<String,String>(reader.getIndexCommit().getUserData());
+			commitData.put(SORTED_BY_KEY, SORTED_BY_POPULARITY);
+
+			IndexDocumentTemplate.Full template = new IndexDocumentTemplate.Full();
+			try (IndexWriter writer = new IndexWriter(FSDirectory.open(sortedDirectory), config)) {
+
+				for ( int doc : getPopularityOrder(reader) ) {
+
+					writer.addDocument(template.fill(toIndexDocument(reader.document(doc))));
+					documents++;
+				}
+				writer.setCommitData(commitData);
+			}
+		}
+
+		// swap the directories, the original index is only deleted once the sorted copy took its place
+		File backupDirectory = new File(directory.getParentFile(), directory.getName() + BACKUP_SUFFIX);
+		if ( backupDirectory.exists() ) throw new IOException("Could not back up the index, " + backupDirectory + " already exists");
+		if ( !directory.renameTo(backupDirectory) ) throw new IOException("Could not move " + directory + " to " + backupDirectory + ", the index is left unsorted");
+		if ( !sortedDirectory.renameTo(directory) ) {
+
+			if ( !backupDirectory.renameTo(directory) ) throw new IOException("Could not move the index back from " + backupDirectory + " to " + directory);
+			throw new IOException("Could not move " + sortedDirectory + " to " + directory + ", the index is left unsorted");
+		}
+		delete(backupDirectory);
+
+		logger.info("Sorted " + documents + " documents by popularity in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private static void delete(File directory) throws IOException {
+
+		Directory index = FSDirectory.open(directory);
+		for ( String file : index.listAll() ) index.deleteFile(file);
+		index.close();
+		directory.delete();
+	}
+
+	/**
+	 * The live documents ordered by descending score, documents with the same
+	 * score keep their relative order. Score and docid are packed into one
+	 * long per document: the scores are not negative, so the bits of the float
+	 * compare like the floats themselves.
+	 *
+	 * @return the docids of the reader in the order of the sorted index
+	 */
+	private static int[] getPopularityOrder(IndexReader reader) throws IOException {
+
+		long[] keys = new long[reader.numDocs()];
+		int size = 0;
+		for ( AtomicReaderContext context : reader.leaves() ) {
+
+			AtomicReader leaf = context.reader();
+			Bits liveDocs = leaf.getLiveDocs();
+			NumericDocValues pageRanks = getColumn(leaf, PopularityColumns.PAGE_RANK_FIELD);
+			NumericDocValues disambiguationScores = getColumn(leaf, PopularityColumns.DISAMBIGUATION_SCORE_FIELD);
+			for ( int doc = 0; doc < leaf.maxDoc(); doc++ ) {
+
+				if ( liveDocs != null && !liveDocs.get(doc) ) continue;
+
+				// the same float the collectors of PopularityColumns compare
+				float score = (float) PopularityColumns.score(pageRanks.get(doc), Double.longBitsToDouble(disambiguationScores.get(doc)));
+				keys[size++] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits(score)) << 32) | (context.docBase + doc);
+			}
+		}
+		Arrays.sort(keys, 0, size);
+
+		int[] order = new int[size];
+		for ( int i = 0; i < size; i++ ) order[i] = (int) keys[i];
+		return order;
+	}
+
+	private static NumericDocValues getColumn(AtomicReader reader, String field) throws IOException {
+
+		NumericDocValues values = reader.getNumericDocValues(field);
+		return values != null ? values : DocValues.EMPTY_NUMERIC;
+	}
+
+	/**
+	 * Every field of {@link IndexDocumentTemplate.Full} is stored, so the
+	 * document it was filled from can be restored completely.
+	 */
+	static IndexDocument toIndexDocument(Document document) {
+
+		IndexDocument indexDocument = new IndexDocument();
+		indexDocument.setUri(document.get("uri"));
+		indexDocument.setCanonicalDBpediaUri(document.get("dbpediaUri"));
+		indexDocument.setLabel(document.get(IndexAnalyzers.LABEL_FIELD));
+		indexDocument.setShortAbstract(document.get("comment"));
+		indexDocument.setImageUri(document.get("imageURL"));
+		indexDocument.setPageRank(document.getField(PopularityColumns.PAGE_RANK_FIELD).numericValue().intValue());
+		indexDocument.setDisambiguationScore(document.getField(PopularityColumns.DISAMBIGUATION_SCORE_FIELD).numericValue().doubleValue());
+		indexDocument.getTypes().addAll(Arrays.asList(document.getValues("types")));
+		indexDocument.getSurfaceForms().addAll(Arrays.asList(document.getValues(IndexAnalyzers.SURFACE_FORMS_FIELD)));
+		return indexDocument;
+	}
+}
@@ -0,0 +1,72 @@
+package de.aksw;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+
+/**
+ * Decides per field what an {@link IndexDocumentTemplate} writes: the index
+ * options (docs only, with frequencies or positions), the norms and whether
+ * the value is stored.
+ *
+ *  - full: every field is indexed and stored, the numeric fields are indexed
+ *    as trie terms besides their doc values columns
+ *  - lookup: only what is needed to find the candidates of a surface form
+ *    and show them. The uri (updates and deletes go by its term), label, types
+ *    and surface forms are searchable, the surface forms without norms since a
+ *    resource with many of them is not a worse match for one of them. Types
+ *    and surface forms are not stored, the abstracts, image and canonical uri
+ *    are stored but not indexed. Page rank and disambiguation score are only
+ *    written as columns (see {@link PopularityColumns}).
+ *
+ * Untokenized fields (uri, types) index docs only and have no norms in both
+ * profiles. A lookup index can not be sorted with {@link PopularitySortedIndex},
+ * which restores the documents from their stored fields.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public enum SchemaProfile {
+
+	FULL,
+	LOOKUP;
+
+	private static final FieldType STORED_ONLY_TYPE = StoredField.TYPE;
+
+	private static final Set<String> LOOKUP_SEARCHED_FIELDS = new HashSet<String>(Arrays.asList(
+			"uri", IndexAnalyzers.LABEL_FIELD, "types", IndexAnalyzers.SURFACE_FORMS_FIELD));
+	private static final Set<String> LOOKUP_STORED_FIELDS = new HashSet<String>(Arrays.asList(
+			"uri", "dbpediaUri", IndexAnalyzers.LABEL_FIELD, "comment", "imageURL", "short-abstract", "long-abstract"));
+	private static final Set<String> LOOKUP_NORMS_FIELDS = new HashSet<String>(Arrays.asList(
+			IndexAnalyzers.LABEL_FIELD));
+
+	/**
+	 * @param field - the name of the field
+	 * @param type - the type of the field in the full profile
+	 * @return the type of the field in this profile, null if the field is not written at all
+	 */
+	public FieldType getFieldType(String field, FieldType type) {
+
+		if ( this == FULL ) return type;
+
+		boolean searched = LOOKUP_SEARCHED_FIELDS.contains(field);
+		boolean stored = LOOKUP_STORED_FIELDS.contains(field);
+		if ( !searched ) return stored ? STORED_ONLY_TYPE : null;
+
+		FieldType lookupType = new FieldType(type);
+		lookupType.setStored(stored);
+		if ( !LOOKUP_NORMS_FIELDS.contains(field) ) lookupType.setOmitNorms(true);
+		lookupType.freeze();
+		return lookupType;
+	}
+
+	/**
+	 * @param name - the name of a profile, case insensitive
+	 * @return the profile
+	 */
+	public static SchemaProfile parse(String name) {
+
+		return valueOf(name.toUpperCase());
+	}
+}
@@ -0,0 +1,232 @@
+package de.aksw;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Writes an index through several independent index writers, so analysis,
+ * flushing and merging of the shards run on all cores instead of being
+ * serialized on a single writer's flush and merge.
+ *
+ * Every shard is an index of its own in a sub-directory (shard-0, shard-1, ...)
+ * of the index directory, a document goes to the shard picked by the hash of
+ * its uri. Once all documents are added the shards are either merged into the
+ * index directory with {@link #merge()} or kept and searched through a
+ * {@link MultiReader} (see {@link #openReader(String)}).
+ *
+ * With a single shard the documents are written to the index directory
+ * directly and there is nothing to merge.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class ShardedIndexWriter implements Closeable {
+
+	private static final Logger logger = Logger.getLogger("ShardedIndexWriter");
+
+	private static final String SHARD_PREFIX = "shard-";
+	private static final String URI_FIELD = "uri";
+
+	/**
+	 * Creates a new config for every writer, lucene does not allow sharing one.
+	 */
+	public interface ConfigFactory {
+
+		/**
+		 * @return the config of the index, the open mode is used for the index directory
+		 * and the RAM buffer is shared by all shards
+		 */
+		IndexWriterConfig create();
+	}
+
+	private final File indexDirectory;
+	private final ConfigFactory configFactory;
+	private final List<Directory> directories = new ArrayList<Directory>();
+	private final List<IndexWriter> writers = new ArrayList<IndexWriter>();
+
+	/**
+	 * @param indexDirectory - the directory of the (merged) index
+	 * @param shards - the number of shards, 1 writes to the index directory directly
+	 * @param append - continue the existing shards (of an interrupted build or for an incremental update) instead of recreating them
+	 * @param configFactory - the configuration of the index
+	 * @throws IOException
+	 */
+	public ShardedIndexWriter(String indexDirectory, int shards, boolean append, ConfigFactory configFactory) throws IOException {
+
+		if ( shards < 1 ) throw new IllegalArgumentException("The number of shards needs to be positive!");
+		this.indexDirectory = new File(indexDirectory);
+		this.configFactory = configFactory;
+
+		if ( shards == 1 ) {
+
+			directories.add(FSDirectory.open(this.indexDirectory));
+			writers.add(new IndexWriter(directories.get(0), configFactory.create()));
+			return;
+		}
+		for ( int shard = 0; shard < shards; shard++ ) {
+
+			IndexWriterConfig config = configFactory.create();
+			config.setRAMBufferSizeMB(config.getRAMBufferSizeMB() / shards);
+			config.setOpenMode(append ? OpenMode.CREATE_OR_APPEND : OpenMode.CREATE);
+			directories.add(FSDirectory.open(getShardDirectory(this.indexDirectory, shard)));
+			writers.add(new IndexWriter(directories.get(shard), config));
+		}
+	}
+
+	/**
+	 * Adds a document to the shard of its uri, can be called from several threads.
+	 *
+	 * @param uri - the uri of the resource
+	 * @param document - the fields of the document
+	 * @throws IOException
+	 */
+	public void addDocument(String uri, Iterable<? extends IndexableField> document) throws IOException {
+
+		writers.get(getShard(uri)).addDocument(document);
+	}
+
+	/**
+	 * Replaces the documents of the uri (in its shard) with the given one, can be called from several threads.
+	 *
+	 * @param uri - the uri of the resource
+	 * @param document - the fields of the document
+	 * @throws IOException
+	 */
+	public void updateDocument(String uri, Iterable<? extends IndexableField> document) throws IOException {
+
+		writers.get(getShard(uri)).updateDocument(new Term(URI_FIELD, uri), document);
+	}
+
+	/**
+	 * @param uri - the uri of the resource whose documents are deleted
+	 * @throws IOException
+	 */
+	public void deleteDocuments(String uri) throws IOException {
+
+		writers.get(getShard(uri)).deleteDocuments(new Term(URI_FIELD, uri));
+	}
+
+	/**
+	 * @param uri - the uri of the resource
+	 * @return the shard the document of the resource is written to
+	 */
+	public int getShard(String uri) {
+
+		return (uri.hashCode() & Integer.MAX_VALUE) % writers.size();
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+
+		return writers.size();
+	}
+
+	/**
+	 * @return the directories of the shards, the index directory if there is only one
+	 */
+	public List<Directory> getDirectories() {
+
+		return Collections.unmodifiableList(directories);
+	}
+
+	/**
+	 * Commits every shard with the same user data. The shards are committed one
+	 * after another, a crash in between leaves them at different commits.
+	 *
+	 * @param commitData - the user data of the commits
+	 * @throws IOException
+	 */
+	public void commit(Map<String,String> commitData) throws IOException {
+
+		for ( IndexWriter writer : writers ) {
+
+			writer.setCommitData(commitData);
+			writer.commit();
+		}
+	}
+
+	/**
+	 * Closes (and thereby commits) all shards.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		IOException exception = null;
+		for ( IndexWriter writer : writers ) {
+
+			try {
+
+				writer.close();
+			}
+			catch (IOException e) {
+
+				if ( exception == null ) exception = e;
+			}
+		}
+		if ( exception != null ) throw exception;
+	}
+
+	/**
+	 * Adds the closed shards to the index in the index directory and deletes
+	 * them afterwards, nothing to do for a single shard.
+	 *
+	 * @throws IOException
+	 */
+	public void merge() throws IOException {
+
+		if ( writers.size() == 1 ) return;
+
+		long start = System.currentTimeMillis();
+		logger.info("Merging " + writers.size() + " shards into: " + indexDirectory);
+		try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDirectory), configFactory.create())) {
+
+			writer.addIndexes(directories.toArray(new Directory[directories.size()]));
+		}
+		for ( int shard = 0; shard < directories.size(); shard++ ) {
+
+			Directory directory = directories.get(shard);
+			for ( String file : directory.listAll() ) directory.deleteFile(file);
+			directory.close();
+			getShardDirectory(indexDirectory, shard).delete();
+		}
+		logger.info("Finished merging " + writers.size() + " shards in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * @param indexDirectory - the directory of the index
+	 * @return a reader over all shards if the shards were kept, a reader of the index otherwise
+	 * @throws IOException
+	 */
+	public static IndexReader openReader(String indexDirectory) throws IOException {
+
+		File directory = new File(indexDirectory);
+		List<IndexReader> readers = new ArrayList<IndexReader>();
+		for ( int shard = 0; getShardDirectory(directory, shard).isDirectory(); shard++ )
+			readers.add(DirectoryReader.open(FSDirectory.open(getShardDirectory(directory, shard))));
+
+		if ( readers.isEmpty() ) return DirectoryReader.open(FSDirectory.open(directory));
+		return new MultiReader(readers.toArray(new IndexReader[readers.size()]), true);
+	}
+
+	private static File getShardDirectory(File indexDirectory, int shard) {
+
+		return new File(indexDirectory, SHARD_PREFIX + shard);
+	}
+}
@@ -0,0 +1,110 @@
+package de.aksw;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joins several files which are sorted by the same key (see {@link ExternalSorter})
+ * by streaming them side by side. Only the lines of the current key are held
+ * in memory, so the heap needed does not depend on the size of the inputs.
+ *
+ * Usage: call {@link #next()} until it returns false, {@link #getKey()} and
+ * {@link #getLines(int)} then describe the current key. The line lists are
+ * reused and only valid until the next call to {@link #next()}.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class SortedMergeJoin implements Closeable {
+
+	private final BufferedReader[] readers;
+	private final ExternalSorter.KeyExtractor[] keyExtractors;
+	private final String[] nextLines;
+	private final String[] nextKeys;
+	private final List<List<String>> lines;
+	private String key;
+
+	/**
+	 * @param sortedFiles - the inputs, all sorted with the key extractor at the same position
+	 * @param keyExtractors - the key of each input
+	 * @throws IOException
+	 */
+	public SortedMergeJoin(List<File> sortedFiles, List<ExternalSorter.KeyExtractor> keyExtractors) throws IOException {
+
+		if ( sortedFiles.size() != keyExtractors.size() ) throw new IllegalArgumentException("Every input needs a key extractor!");
+
+		int inputs = sortedFiles.size();
+		this.readers = new BufferedReader[inputs];
+		this.keyExtractors = keyExtractors.toArray(new ExternalSorter.KeyExtractor[inputs]);
+		this.nextLines = new String[inputs];
+		this.nextKeys = new String[inputs];
+		this.lines = new ArrayList<List<String>>(inputs);
+		for ( int i = 0; i < inputs; i++ ) {
+
+			this.readers[i] = ExternalSorter.openReader(sortedFiles.get(i));
+			this.lines.add(new ArrayList<String>());
+			read(i);
+		}
+	}
+
+	/**
+	 * Advances to the next (smallest) key found in any of the inputs.
+	 *
+	 * @return false if all inputs are exhausted
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+
+		key = null;
+		for ( String nextKey : nextKeys )
+			if ( nextKey != null && (key == null || nextKey.compareTo(key) < 0) ) key = nextKey;
+
+		for ( int i = 0; i < readers.length; i++ ) {
+
+			List<String> inputLines = lines.get(i);
+			inputLines.clear();
+			while ( key != null && key.equals(nextKeys[i]) ) {
+
+				inputLines.add(nextLines[i]);
+				read(i);
+			}
+		}
+		return key != null;
+	}
+
+	/**
+	 * @return the current key
+	 */
+	public String getKey() {
+
+		return key;
+	}
+
+	/**
+	 * @param input - the position of the input
+	 * @return the lines of the input with the current key, empty if there are none
+	 */
+	public List<String> getLines(int input) {
+
+		return lines.get(input);
+	}
+
+	private void read(int input) throws IOException {
+
+		String line;
+		String lineKey = null;
+		// skip lines without a key
+		while ( (line = readers[input].readLine()) != null && (lineKey = keyExtractors[input].getKey(line)) == null );
+
+		nextLines[input] = line;
+		nextKeys[input] = line == null ? null : lineKey;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		for ( BufferedReader reader : readers ) reader.close();
+	}
+}
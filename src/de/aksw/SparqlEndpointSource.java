@@ -0,0 +1,55 @@
+package de.aksw;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+import com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP;
+
+/**
+ * Sends the queries to a (virtuoso) SPARQL endpoint, every request goes
+ * through the {@link FetchController}. The result is read inside the
+ * request, so broken responses are retried as well.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class SparqlEndpointSource implements AttributeSource {
+
+	private final String endpoint;
+	private final FetchController fetchController;
+
+	/**
+	 * @param endpoint - the url of the endpoint
+	 * @param fetchController - limits and retries the requests
+	 */
+	public SparqlEndpointSource(String endpoint, FetchController fetchController) {
+
+		this.endpoint = endpoint;
+		this.fetchController = fetchController;
+	}
+
+	@Override
+	public <T> T select(final String query, Collection<String> uris, final ResultReader<T> reader) throws FetchController.FetchFailedException, InterruptedException {
+
+		return fetchController.execute(uris, new Callable<T>() {
+
+			@Override
+			public T call() {
+
+				QueryEngineHTTP qexec = new QueryEngineHTTP(endpoint, query);
+				try {
+
+					return reader.read(qexec.execSelect());
+				}
+				finally {
+
+					qexec.close();
+				}
+			}
+		});
+	}
+
+	@Override
+	public boolean isRankSupported() {
+
+		return true;
+	}
+}
@@ -0,0 +1,531 @@
+package de.aksw;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Read only multimap from resource keys to their surface forms, replacing
+ * the HashMap of HashSets which used to hold millions of small strings on
+ * the heap during indexing.
+ *
+ *  - keys get dense int ids, in the sort order of the keys, so the id of a
+ *    resource is also its position in a sorted iteration
+ *  - every resource is one length prefixed UTF-8 record (key, number of
+ *    surface forms, surface forms) in a sequential section, in id order
+ *  - an index section holds the record offset of every id and an open
+ *    addressing table over the key bytes, which finds the id of a key
+ *
+ * All sections are plain buffers, direct (off-heap) when built and memory
+ * mapped when loaded from a file written by {@link #save(String)}, so
+ * loading the store copies nothing and takes no time. Strings are only
+ * decoded if they are asked for, a {@link Cursor} walks all resources
+ * without allocating anything per resource. Use a {@link Builder} to create a store. Safe to
+ * read from several threads.
+ *
+ * File layout (big endian): magic, size, table length, records length, the
+ * size + 1 record offsets, the table, the records. A record is the key length
+ * (int), the key, the number of surface forms (int) and for every surface
+ * form its length (unsigned short) and bytes. The whole file is mapped at
+ * once, so it is limited to 2GB.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class SurfaceFormStore {
+
+	private static final Logger logger = Logger.getLogger("SurfaceFormStore");
+
+	private static final int MAGIC = 0x53464D31; // "SFM1"
+	private static final int HEADER_LENGTH = 16;
+	private static final int EMPTY = -1;
+
+	private final IntBuffer offsets;
+	private final IntBuffer table;
+	private final ByteBuffer records;
+
+	private SurfaceFormStore(IntBuffer offsets, IntBuffer table, ByteBuffer records) {
+
+		this.offsets = offsets;
+		this.table = table;
+		this.records = records;
+	}
+
+	/**
+	 * Writes the store to a file which {@link #load(String)} maps back into memory.
+	 * The file is written next to the target and renamed, so a crash never
+	 * leaves a partial store behind.
+	 *
+	 * @param storeFile - the file to write
+	 * @throws IOException
+	 */
+	public void save(String storeFile) throws IOException {
+
+		File target = new File(storeFile);
+		File temporary = new File(storeFile + ".tmp");
+		try (RandomAccessFile file = new RandomAccessFile(temporary, "rw")) {
+
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putInt(size()).putInt(table.capacity()).putInt(records.capacity()).flip();
+			writeFully(channel, header);
+
+			writeFully(channel, offsets);
+			writeFully(channel, table);
+			writeFully(channel, records.duplicate());
+		}
+		if ( target.exists() && !target.delete() ) throw new IOException("Could not replace: " + storeFile);
+		if ( !temporary.renameTo(target) ) throw new IOException("Could not rename " + temporary + " to " + storeFile);
+
+		logger.info("Finished writing " + size() + " resources with surface forms to: " + storeFile);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		buffer.rewind();
+		while ( buffer.hasRemaining() ) channel.write(buffer);
+	}
+
+	private static void writeFully(FileChannel channel, IntBuffer ints) throws IOException {
+
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		for ( int i = 0; i < ints.capacity(); ) {
+
+			buffer.clear();
+			while ( i < ints.capacity() && buffer.remaining() >= 4 ) buffer.putInt(ints.get(i++));
+			buffer.flip();
+			while ( buffer.hasRemaining() ) channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Maps a file written by {@link #save(String)}, nothing is read until it is used.
+	 *
+	 * @param storeFile - the file to map
+	 * @return the store
+	 * @throws IOException - if the file can not be read or is no surface form store
+	 */
+	public static SurfaceFormStore load(String storeFile) throws IOException {
+
+		try (RandomAccessFile file = new RandomAccessFile(storeFile, "r")) {
+
+			if ( file.length() > Integer.MAX_VALUE ) throw new IOException("Surface form store: " + storeFile + " is larger than 2GB!");
+			// the mapping stays valid after the channel is closed
+			ByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+			if ( buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC ) throw new IOException("Not a surface form store: " + storeFile);
+			int size = buffer.getInt();
+			int tableLength = buffer.getInt();
+			int recordsLength = buffer.getInt();
+			if ( (long) HEADER_LENGTH + 4L * (size + 1 + tableLength) + recordsLength != file.length() )
+				throw new IOException("Truncated surface form store: " + storeFile);
+
+			IntBuffer offsets = slice(buffer, (size + 1) * 4).asIntBuffer();
+			IntBuffer table = slice(buffer, tableLength * 4).asIntBuffer();
+			ByteBuffer records = slice(buffer, recordsLength);
+
+			logger.info("Mapped " + size + " resources with surface forms from: " + storeFile);
+			return new SurfaceFormStore(offsets, table, records);
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int length) {
+
+		ByteBuffer slice = buffer.slice();
+		slice.limit(length);
+		buffer.position(buffer.position() + length);
+		return slice;
+	}
+
+	/**
+	 * @return the number of resources
+	 */
+	public int size() {
+
+		return offsets.capacity() - 1;
+	}
+
+	/**
+	 * @param key - the key of the resource
+	 * @return the id of the resource or -1 if there is no such resource
+	 */
+	public int getId(String key) {
+
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		int mask = table.capacity() - 1;
+		for ( int slot = hash(ByteBuffer.wrap(bytes), 0, bytes.length) & mask; ; slot = (slot + 1) & mask ) {
+
+			int id = table.get(slot);
+			if ( id == EMPTY ) return EMPTY;
+			if ( equals(records, offsets.get(id) + 4, records.getInt(offsets.get(id)), bytes) ) return id;
+		}
+	}
+
+	/**
+	 * @param id - the id of the resource
+	 * @return the key of the resource
+	 */
+	public String getKey(int id) {
+
+		int offset = offsets.get(id);
+		return decode(records, offset + 4, records.getInt(offset));
+	}
+
+	/**
+	 * @param id - the id of the resource
+	 * @return a new set with the decoded surface forms of the resource
+	 */
+	public Set<String> getSurfaceForms(int id) {
+
+		int offset = offsets.get(id);
+		offset += 4 + records.getInt(offset);
+		int count = records.getInt(offset);
+		offset += 4;
+
+		Set<String> surfaceForms = new LinkedHashSet<String>();
+		for ( int i = 0; i < count; i++ ) {
+
+			int length = records.getChar(offset);
+			surfaceForms.add(decode(records, offset + 2, length));
+			offset += 2 + length;
+		}
+		return surfaceForms;
+	}
+
+	/**
+	 * @param key - the key of the resource
+	 * @return a new set with the decoded surface forms of the resource, null if there is no such resource
+	 */
+	public Set<String> getSurfaceForms(String key) {
+
+		int id = getId(key);
+		return id == EMPTY ? null : getSurfaceForms(id);
+	}
+
+	/**
+	 * @return a cursor positioned before the first resource
+	 */
+	public Cursor cursor() {
+
+		return new Cursor();
+	}
+
+	/**
+	 * Walks the records of the sequential section in key order. Not thread
+	 * safe, but every thread can have its own cursor.
+	 */
+	public class Cursor {
+
+		private int id = -1;
+		private int next = 0;
+		private int keyLength;
+		private int count;
+		// offset of the surface form with the index formIndex
+		private int formOffset;
+		private int formIndex;
+
+		/**
+		 * @return false if there are no more resources
+		 */
+		public boolean next() {
+
+			if ( id + 1 >= size() ) return false;
+			id++;
+			keyLength = records.getInt(next);
+			count = records.getInt(next + 4 + keyLength);
+			formOffset = next + 8 + keyLength;
+			formIndex = 0;
+			next = offsets.get(id + 1);
+			return true;
+		}
+
+		public int getId() {
+
+			return id;
+		}
+
+		public String getKey() {
+
+			return decode(records, offsets.get(id) + 4, keyLength);
+		}
+
+		/**
+		 * @return the number of surface forms of the current resource
+		 */
+		public int getSurfaceFormCount() {
+
+			return count;
+		}
+
+		/**
+		 * Fastest if the surface forms are asked for in order.
+		 *
+		 * @param index - between 0 and {@link #getSurfaceFormCount()} - 1
+		 * @return the surface form
+		 */
+		public String getSurfaceForm(int index) {
+
+			if ( index < 0 || index >= count ) throw new IndexOutOfBoundsException("No surface form: " + index);
+			if ( index < formIndex ) {
+
+				formIndex = 0;
+				formOffset = offsets.get(id) + 8 + keyLength;
+			}
+			for ( ; formIndex < index; formIndex++ ) formOffset += 2 + records.getChar(formOffset);
+			return decode(records, formOffset + 2, records.getChar(formOffset));
+		}
+
+		/**
+		 * Appends the current resource as a tab separated line (without line break).
+		 *
+		 * @param line - the builder to append to
+		 * @return the builder
+		 */
+		public StringBuilder appendTo(StringBuilder line) {
+
+			line.append(getKey());
+			for ( int i = 0; i < getSurfaceFormCount(); i++ ) line.append('\t').append(getSurfaceForm(i));
+			return line;
+		}
+	}
+
+	private static String decode(ByteBuffer buffer, int start, int length) {
+
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(start + length).position(start);
+		return StandardCharsets.UTF_8.decode(slice).toString();
+	}
+
+	private static boolean equals(ByteBuffer buffer, int start, int length, byte[] bytes) {
+
+		if ( length != bytes.length ) return false;
+		for ( int i = 0; i < length; i++ )
+			if ( buffer.get(start + i) != bytes[i] ) return false;
+		return true;
+	}
+
+	private static int hash(ByteBuffer buffer, int start, int end) {
+
+		int h = 0;
+		for ( int i = start; i < end; i++ ) h = 31 * h + buffer.get(i);
+		// spread the bits like UriDictionary, keys share long prefixes
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Collects (key, surface form) pairs. The surface forms are appended to a
+	 * growing byte array right away, only the keys are kept as strings until
+	 * {@link #build()} sorts them. Duplicate surface forms of a key are dropped.
+	 * Not thread safe.
+	 */
+	public static class Builder {
+
+		private final UriDictionary dictionary = new UriDictionary(1 << 16);
+		private byte[] forms = new byte[1 << 16];
+		private int formsLength = 0;
+		private int[] formOffsets = new int[1 << 12];
+		private int[] formKeys = new int[1 << 12];
+		private int formCount = 0;
+
+		/**
+		 * Adds the key without any surface forms, if it is new.
+		 *
+		 * @param key - the key of the resource
+		 */
+		public void add(String key) {
+
+			dictionary.add(key);
+		}
+
+		/**
+		 * @param key - the key of the resource
+		 * @param surfaceForm - one of its surface forms, at most 65535 bytes as UTF-8, encoded
+		 *        right away so it can be a reused view like the fields of {@link FastTSVReader}
+		 */
+		public void add(String key, CharSequence surfaceForm) {
+
+			// at most 3 bytes per char, a surrogate pair takes 4 bytes for 2 chars
+			int maximumLength = 3 * surfaceForm.length();
+			if ( (long) formsLength + maximumLength > Integer.MAX_VALUE - 8 )
+				throw new IllegalStateException("Surface forms exceed 2GB, the store can not hold them!");
+
+			if ( formsLength + maximumLength > forms.length )
+				forms = Arrays.copyOf(forms, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * forms.length, formsLength + maximumLength)));
+			if ( formCount + 1 >= formOffsets.length ) {
+
+				formOffsets = Arrays.copyOf(formOffsets, formOffsets.length * 2);
+				formKeys = Arrays.copyOf(formKeys, formKeys.length * 2);
+			}
+
+			int length = encode(surfaceForm, forms, formsLength);
+			if ( length > Character.MAX_VALUE ) throw new IllegalArgumentException("Surface form too long: " + surfaceForm);
+			formOffsets[formCount] = formsLength;
+			formKeys[formCount] = dictionary.add(key);
+			formCount++;
+			formsLength += length;
+		}
+
+		/**
+		 * UTF-16 to UTF-8, unpaired surrogates become '?' like in {@link String#getBytes(java.nio.charset.Charset)}.
+		 *
+		 * @return the number of bytes written
+		 */
+		private static int encode(CharSequence chars, byte[] bytes, int offset) {
+
+			int position = offset;
+			for ( int i = 0; i < chars.length(); i++ ) {
+
+				char c = chars.charAt(i);
+				if ( c < 0x80 ) bytes[position++] = (byte) c;
+				else if ( c < 0x800 ) {
+
+					bytes[position++] = (byte) (0xC0 | (c >> 6));
+					bytes[position++] = (byte) (0x80 | (c & 0x3F));
+				}
+				else if ( Character.isSurrogate(c) ) {
+
+					if ( Character.isHighSurrogate(c) && i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1)) ) {
+
+						int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+						bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+						bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+						bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+						bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+					}
+					else bytes[position++] = '?';
+				}
+				else {
+
+					bytes[position++] = (byte) (0xE0 | (c >> 12));
+					bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					bytes[position++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			return position - offset;
+		}
+
+		/**
+		 * @return the number of distinct keys added so far
+		 */
+		public int size() {
+
+			return dictionary.size();
+		}
+
+		/**
+		 * @return the store, the builder must not be used afterwards
+		 */
+		public SurfaceFormStore build() {
+
+			formOffsets[formCount] = formsLength;
+			int size = dictionary.size();
+
+			// ids of the store in key order
+			String[] sortedKeys = new String[size];
+			for ( int i = 0; i < size; i++ ) sortedKeys[i] = dictionary.getUri(i);
+			Arrays.sort(sortedKeys);
+			int[] newIds = new int[size];
+			for ( int id = 0; id < size; id++ ) newIds[dictionary.getId(sortedKeys[id])] = id;
+
+			// counting sort of the surface forms by new id, keeping the order they were added in
+			int[] firstForms = new int[size + 1];
+			for ( int i = 0; i < formCount; i++ ) firstForms[newIds[formKeys[i]] + 1]++;
+			for ( int id = 0; id < size; id++ ) firstForms[id + 1] += firstForms[id];
+			int[] sorted = new int[formCount];
+			int[] next = Arrays.copyOf(firstForms, size);
+			for ( int i = 0; i < formCount; i++ ) sorted[next[newIds[formKeys[i]]]++] = i;
+			next = null;
+			formKeys = null;
+			newIds = null;
+
+			// drop the duplicates and measure the records
+			byte[][] encodedKeys = new byte[size][];
+			long recordsLength = 0;
+			for ( int id = 0; id < size; id++ ) {
+
+				encodedKeys[id] = sortedKeys[id].getBytes(StandardCharsets.UTF_8);
+				recordsLength += 8 + encodedKeys[id].length;
+				for ( int i = firstForms[id]; i < firstForms[id + 1]; i++ ) {
+
+					if ( isDuplicate(sorted[i], sorted, firstForms[id], i) ) sorted[i] = EMPTY;
+					else recordsLength += 2 + formOffsets[sorted[i] + 1] - formOffsets[sorted[i]];
+				}
+			}
+			sortedKeys = null;
+			if ( recordsLength > Integer.MAX_VALUE - 8 ) throw new IllegalStateException("Surface forms exceed 2GB, the store can not hold them!");
+
+			ByteBuffer records = ByteBuffer.allocateDirect((int) recordsLength);
+			IntBuffer offsets = ByteBuffer.allocateDirect((size + 1) * 4).asIntBuffer();
+			for ( int id = 0; id < size; id++ ) {
+
+				offsets.put(records.position());
+				records.putInt(encodedKeys[id].length).put(encodedKeys[id]);
+				encodedKeys[id] = null;
+
+				int countOffset = records.position();
+				int count = 0;
+				records.putInt(0);
+				for ( int i = firstForms[id]; i < firstForms[id + 1]; i++ ) {
+
+					int form = sorted[i];
+					if ( form == EMPTY ) continue;
+					int length = formOffsets[form + 1] - formOffsets[form];
+					records.putChar((char) length).put(forms, formOffsets[form], length);
+					count++;
+				}
+				records.putInt(countOffset, count);
+			}
+			offsets.put(records.position());
+			forms = null;
+			formOffsets = null;
+
+			return new SurfaceFormStore(offsets, createTable(records, offsets, size), records);
+		}
+
+		/**
+		 * The surface forms of one key are few, a linear scan over the ones before is enough.
+		 */
+		private boolean isDuplicate(int form, int[] sorted, int from, int to) {
+
+			int start = formOffsets[form];
+			int length = formOffsets[form + 1] - start;
+			for ( int i = from; i < to; i++ ) {
+
+				if ( sorted[i] == EMPTY ) continue;
+				int other = formOffsets[sorted[i]];
+				if ( formOffsets[sorted[i] + 1] - other != length ) continue;
+
+				int j = 0;
+				while ( j < length && forms[start + j] == forms[other + j] ) j++;
+				if ( j == length ) return true;
+			}
+			return false;
+		}
+
+		private static IntBuffer createTable(ByteBuffer records, IntBuffer offsets, int size) {
+
+			// load factor below 0.25, keeps the probe sequences of misses short
+			int tableLength = Math.max(32, Integer.highestOneBit(Math.max(1, size) * 2 - 1) << 2);
+			IntBuffer table = ByteBuffer.allocateDirect(tableLength * 4).asIntBuffer();
+			for ( int slot = 0; slot < table.capacity(); slot++ ) table.put(slot, EMPTY);
+			int mask = table.capacity() - 1;
+			for ( int id = 0; id < size; id++ ) {
+
+				int offset = offsets.get(id);
+				int slot = hash(records, offset + 4, offset + 4 + records.getInt(offset)) & mask;
+				while ( table.get(slot) != EMPTY ) slot = (slot + 1) & mask;
+				table.put(slot, id);
+			}
+			return table;
+		}
+	}
+}
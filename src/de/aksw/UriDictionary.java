@@ -0,0 +1,129 @@
+package de.aksw;
+import java.util.Arrays;
+
+/**
+ * Dictionary encoding of URIs to dense int ids (0, 1, 2, ...) in order of
+ * insertion. Uses open addressing over a primitive int table instead of a
+ * HashMap, so there is no entry object per URI. Not thread safe.
+ *
+ * @author Daniel Gerber <dgerber@informatik.uni-leipzig.de>
+ */
+public class UriDictionary {
+
+	private static final int EMPTY = -1;
+
+	private String[] uris;
+	private int[] hashes;
+	private int[] table;
+	private int size = 0;
+
+	public UriDictionary() {
+
+		this(1024);
+	}
+
+	/**
+	 * @param expectedSize - number of URIs expected, avoids rehashing
+	 */
+	public UriDictionary(int expectedSize) {
+
+		int capacity = Math.max(16, expectedSize);
+		this.uris = new String[capacity];
+		this.hashes = new int[capacity];
+		this.table = new int[tableSizeFor(capacity)];
+		Arrays.fill(this.table, EMPTY);
+	}
+
+	/**
+	 * @param uri - the uri to look up
+	 * @return the id of the uri or -1 if the uri is not in the dictionary
+	 */
+	public int getId(String uri) {
+
+		int hash = hash(uri);
+		int mask = table.length - 1;
+		for ( int slot = hash & mask; ; slot = (slot + 1) & mask ) {
+
+			int id = table[slot];
+			if ( id == EMPTY ) return EMPTY;
+			if ( hashes[id] == hash && uris[id].equals(uri) ) return id;
+		}
+	}
+
+	/**
+	 * Returns the id of the uri and assigns the next free id if the uri is new.
+	 *
+	 * @param uri - the uri to add
+	 * @return the id of the uri
+	 */
+	public int add(String uri) {
+
+		int hash = hash(uri);
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		for ( ; ; slot = (slot + 1) & mask ) {
+
+			int id = table[slot];
+			if ( id == EMPTY ) break;
+			if ( hashes[id] == hash && uris[id].equals(uri) ) return id;
+		}
+
+		if ( size == uris.length ) {
+
+			uris = Arrays.copyOf(uris, uris.length * 2);
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+		}
+		int id = size++;
+		uris[id] = uri;
+		hashes[id] = hash;
+		table[slot] = id;
+
+		// keep the load factor below 0.5
+		if ( size * 2 > table.length ) rehash(table.length * 2);
+		return id;
+	}
+
+	/**
+	 * @param id - an id handed out by this dictionary
+	 * @return the uri for the id
+	 */
+	public String getUri(int id) {
+
+		if ( id < 0 || id >= size ) throw new IndexOutOfBoundsException("No uri with id: " + id);
+		return uris[id];
+	}
+
+	/**
+	 * @return the number of uris in the dictionary, ids range from 0 to size - 1
+	 */
+	public int size() {
+
+		return size;
+	}
+
+	private void rehash(int newTableSize) {
+
+		table = new int[newTableSize];
+		Arrays.fill(table, EMPTY);
+		int mask = newTableSize - 1;
+		for ( int id = 0; id < size; id++ ) {
+
+			int slot = hashes[id] & mask;
+			while ( table[slot] != EMPTY ) slot = (slot + 1) & mask;
+			table[slot] = id;
+		}
+	}
+
+	private static int hash(String uri) {
+
+		// spread the bits, uris share long prefixes and String.hashCode is weak in the low bits
+		int h = uri.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int tableSizeFor(int capacity) {
+
+		int size = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		return Math.max(32, size);
+	}
+}